@@ -1,5 +1,6 @@
 package marius.server;
 
+import marius.server.controller.SessionTokenFilter;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -21,6 +22,8 @@ public class CorsoConfig implements WebMvcConfigurer {
                 )
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS", "HEAD")
                 .allowedHeaders("*")
+                // il token di sessione nuovo (login e rinnovo) deve essere leggibile dal frontend
+                .exposedHeaders(SessionTokenFilter.TOKEN_HEADER, SessionTokenFilter.TOKEN_EXPIRES_HEADER)
                 .allowCredentials(true)
                 .maxAge(3600); // Cache preflight per 1 ora
     }
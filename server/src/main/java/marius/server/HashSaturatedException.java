@@ -0,0 +1,18 @@
+package marius.server;
+
+/**
+ * Raised when a password hash is refused because the hashing pool is saturated:
+ * its queue is full or the hash could not start within auth.hash.max-wait-ms
+ */
+public class HashSaturatedException extends RuntimeException {
+    private final long retryAfterSeconds;
+
+    public HashSaturatedException(String reason, long retryAfterSeconds) {
+        super("hash della password rifiutato: " + reason + ", riprovare tra " + retryAfterSeconds + "s");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,110 @@
+package marius.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the Argon2 parameters at startup and sets them in {@link Tools}.
+ * With auth.hash.calibrate=false (default) the parameters are the configured ones, the same on every restart and instance.
+ * With auth.hash.calibrate=true the hash is measured on this machine: the memory starts from auth.hash.memory-kib
+ * and is halved, not below auth.hash.min-memory-kib, until two iterations fit in auth.hash.target-ms,
+ * then the iterations are the most that fit in the target, rounded down to a power of two so that the noise
+ * of the measure does not change them at every restart. The result is logged with the properties to fix it.
+ * The users whose hash is weaker than the current parameters get a new hash at their next login.
+ */
+@Component
+public class PasswordHashCalibrator {
+
+    private static final Logger log = LoggerFactory.getLogger(PasswordHashCalibrator.class);
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int MIN_ITERATIONS = 2;
+    private static final int MAX_ITERATIONS = 32;
+    private static final int SAMPLES = 3;
+
+    private final Tools.HashParams params;
+
+    public PasswordHashCalibrator(@Value("${auth.hash.calibrate:false}") boolean calibrate,
+                                  @Value("${auth.hash.target-ms:250}") long targetMillis,
+                                  @Value("${auth.hash.memory-kib:65536}") int memoryKib,
+                                  @Value("${auth.hash.min-memory-kib:19456}") int minMemoryKib,
+                                  @Value("${auth.hash.iterations:8}") int iterations,
+                                  @Value("${auth.hash.parallelism:4}") int parallelism) {
+        int lanes = Math.max(1, parallelism);
+        // argon2 needs at least 8 KiB for every lane
+        int maxMemory = Math.max(8 * lanes, memoryKib);
+        if (calibrate) {
+            this.params = calibrate(targetMillis, maxMemory, Math.min(maxMemory, Math.max(8 * lanes, minMemoryKib)), lanes);
+        } else {
+            this.params = new Tools.HashParams(SALT_LENGTH, HASH_LENGTH, lanes, maxMemory, Math.max(1, iterations));
+        }
+        Tools.setHashParams(params);
+    }
+
+    /**
+     * @return the parameters of the new hashes
+     */
+    public Tools.HashParams getParams() {
+        return params;
+    }
+
+    private static Tools.HashParams calibrate(long targetMillis, int maxMemoryKib, int minMemoryKib, int parallelism) {
+        long start = System.nanoTime();
+        int memory = maxMemoryKib;
+        double perIteration = millisPerIteration(memory, parallelism);
+        while (perIteration * MIN_ITERATIONS > targetMillis && memory / 2 >= minMemoryKib) {
+            memory /= 2;
+            perIteration = millisPerIteration(memory, parallelism);
+        }
+        int iterations = quantize((int) Math.min(MAX_ITERATIONS, Math.floor(targetMillis / perIteration)));
+        Tools.HashParams calibrated = new Tools.HashParams(SALT_LENGTH, HASH_LENGTH, parallelism, memory, iterations);
+        double expected = median(calibrated);
+        log.info("Calibrazione Argon2 in {} ms: m={} KiB, t={}, p={}, verifica ~{} ms (obiettivo {} ms)",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), memory, iterations, parallelism,
+                Math.round(expected), targetMillis);
+        log.info("Per fissare questi parametri: auth.hash.calibrate=false, auth.hash.memory-kib={}, auth.hash.iterations={}",
+                memory, iterations);
+        if (expected > targetMillis * 1.5) {
+            log.warn("Calibrazione Argon2: anche con i parametri minimi il hash supera l'obiettivo di {} ms", targetMillis);
+        }
+        return calibrated;
+    }
+
+    /**
+     * @return the greatest power of two not above the iterations, at least MIN_ITERATIONS
+     */
+    static int quantize(int iterations) {
+        return Math.max(MIN_ITERATIONS, Integer.highestOneBit(Math.max(1, iterations)));
+    }
+
+    /**
+     * The time of argon2 grows linearly with the iterations, it is measured with two of them
+     */
+    private static double millisPerIteration(int memoryKib, int parallelism) {
+        return median(new Tools.HashParams(SALT_LENGTH, HASH_LENGTH, parallelism, memoryKib, MIN_ITERATIONS)) / MIN_ITERATIONS;
+    }
+
+    /**
+     * @return the median time of a hash in milliseconds, after a first hash to warm up
+     */
+    private static double median(Tools.HashParams params) {
+        Argon2PasswordEncoder encoder = params.encoder();
+        String password = UUID.randomUUID().toString();
+        encoder.encode(password);
+        double[] samples = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            long begin = System.nanoTime();
+            encoder.encode(password);
+            samples[i] = (System.nanoTime() - begin) / 1_000_000.0;
+        }
+        Arrays.sort(samples);
+        return samples[SAMPLES / 2];
+    }
+}
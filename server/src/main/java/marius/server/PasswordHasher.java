@@ -0,0 +1,195 @@
+package marius.server;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the Argon2 hashes of the passwords on a dedicated pool instead of the request threads.
+ * Every hash takes on the heap the memory of its parameters: the one chosen by {@link PasswordHashCalibrator} for the new hashes,
+ * the one of {@link Tools.HashParams#DEFAULT} for the hashes saved before, and the pool is sized for the greater.
+ * At most auth.hash.max-concurrent hashes run together:
+ * with 0 the limit is the share auth.hash.heap-fraction of the max heap divided by the memory of a hash,
+ * never more than the processors. The others wait in a queue of auth.hash.queue-capacity;
+ * a hash that can not start within auth.hash.max-wait-ms is dropped, and with the queue full the hash is refused at once:
+ * in both cases {@link HashSaturatedException} is raised, the caller answers 503 with Retry-After.
+ */
+@Component
+public class PasswordHasher {
+
+    private static final Logger log = LoggerFactory.getLogger(PasswordHasher.class);
+    // a hash already started is never interrupted, this only protects the caller from a stuck pool
+    private static final long RUN_TIMEOUT_MILLIS = 30_000;
+
+    private final int concurrency;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+
+    private final Timer waitTimer;
+    private final Timer verifyTimer;
+    private final Timer encodeTimer;
+    private final Counter rejected;
+
+    public PasswordHasher(MeterRegistry meterRegistry, PasswordHashCalibrator calibrator,
+                          @Value("${auth.hash.max-concurrent:0}") int maxConcurrent,
+                          @Value("${auth.hash.heap-fraction:0.25}") double heapFraction,
+                          @Value("${auth.hash.queue-capacity:32}") int queueCapacity,
+                          @Value("${auth.hash.max-wait-ms:2000}") long maxWaitMillis) {
+        // the logins still verify the hashes saved with the default parameters until they are computed again
+        int hashMemoryKib = Math.max(calibrator.getParams().memoryKib(), Tools.HashParams.DEFAULT.memoryKib());
+        this.concurrency = maxConcurrent > 0 ? maxConcurrent
+                : concurrencyFor(Runtime.getRuntime().maxMemory(), heapFraction, hashMemoryKib,
+                        Runtime.getRuntime().availableProcessors());
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxWaitMillis));
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "PasswordHasher-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+
+        this.waitTimer = Timer.builder("corvo.auth.hash.wait")
+                .description("Time a password hash waited in the queue before it started")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.verifyTimer = Timer.builder("corvo.auth.hash.time")
+                .description("Time to compute a password hash")
+                .tag("operation", "verify")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.encodeTimer = Timer.builder("corvo.auth.hash.time")
+                .description("Time to compute a password hash")
+                .tag("operation", "encode")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.rejected = Counter.builder("corvo.auth.hash.rejected")
+                .description("Password hashes refused because the pool was saturated")
+                .register(meterRegistry);
+        Gauge.builder("corvo.auth.hash.queue.depth", queue, BlockingQueue::size)
+                .description("Password hashes waiting for a thread")
+                .register(meterRegistry);
+        Gauge.builder("corvo.auth.hash.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Password hashes running")
+                .register(meterRegistry);
+        log.info("Hash delle password: {} in parallelo ({} KiB ciascuno), coda {}, attesa massima {} ms",
+                concurrency, hashMemoryKib, Math.max(1, queueCapacity), maxWaitMillis);
+    }
+
+    /**
+     * @param maxHeap the max heap in bytes
+     * @param heapFraction the share of the heap that the hashes can use
+     * @param hashMemoryKib the memory of a hash in KiB
+     * @param processors the available processors
+     * @return how many hashes can run together, at least 1
+     */
+    public static int concurrencyFor(long maxHeap, double heapFraction, int hashMemoryKib, int processors) {
+        long budget = (long) (maxHeap * heapFraction);
+        long perHash = Math.max(1, hashMemoryKib) * 1024L;
+        return (int) Math.max(1, Math.min(processors, budget / perHash));
+    }
+
+    /**
+     * @return how many hashes run together
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Checks the password on the pool, the calling thread waits for the result
+     * @param plain the plain text password
+     * @param encoded the Argon2 hash
+     * @return true if the password matches the hash
+     * @throws HashSaturatedException if the pool is saturated
+     */
+    public boolean matches(String plain, String encoded) {
+        return run(() -> Tools.isPasswordHashedWith(plain, encoded), verifyTimer);
+    }
+
+    /**
+     * Hashes the password on the pool, the calling thread waits for the result
+     * @param plain the plain text password
+     * @return the Argon2 hash
+     * @throws HashSaturatedException if the pool is saturated
+     */
+    public String encode(String plain) {
+        return run(() -> Tools.hashPassword(plain), encodeTimer);
+    }
+
+    private <T> T run(Supplier<T> hash, Timer timer) {
+        long queuedAt = System.nanoTime();
+        long deadline = queuedAt + maxWaitNanos;
+        CompletableFuture<T> result;
+        try {
+            result = CompletableFuture.supplyAsync(() -> {
+                long started = System.nanoTime();
+                waitTimer.record(started - queuedAt, TimeUnit.NANOSECONDS);
+                if (started - deadline > 0) {
+                    // the caller already gave up or is about to, the hash would be wasted
+                    throw new HashSaturatedException("attesa in coda oltre il limite", retryAfterSeconds());
+                }
+                return timer.record(hash);
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new HashSaturatedException("coda piena", retryAfterSeconds());
+        }
+
+        try {
+            // waits the start deadline and then the hash
+            return result.get(maxWaitNanos + TimeUnit.MILLISECONDS.toNanos(RUN_TIMEOUT_MILLIS), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof HashSaturatedException saturated) {
+                rejected.increment();
+                throw saturated;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            result.cancel(false);
+            rejected.increment();
+            throw new HashSaturatedException("hash non completato in tempo", retryAfterSeconds());
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrotto in attesa del hash della password", e);
+        }
+    }
+
+    /**
+     * @return the seconds to drain the current queue at the average hash time, at least 1
+     */
+    private long retryAfterSeconds() {
+        double hashMillis = Math.max(verifyTimer.mean(TimeUnit.MILLISECONDS), encodeTimer.mean(TimeUnit.MILLISECONDS));
+        double rounds = (double) (queue.size() + executor.getActiveCount()) / concurrency;
+        return Math.max(1, (long) Math.ceil(rounds * hashMillis / 1000));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -5,13 +5,76 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
 
+import java.util.Base64;
 import java.util.regex.Pattern;
 
 public class Tools {
 
     private static final Logger log = LoggerFactory.getLogger(Tools.class);
-    private static int saltLength=16,  hashLength=32, parallelism=4, memory=65536 , iterations=8;
-    private static final Argon2PasswordEncoder encoder =new Argon2PasswordEncoder(saltLength,  hashLength, parallelism, memory , iterations);
+    /**
+     * Parameters of Argon2id
+     * @param saltLength the length of the random salt in bytes
+     * @param hashLength the length of the hash in bytes
+     * @param parallelism the number of lanes
+     * @param memoryKib the memory used by a hash in KiB
+     * @param iterations the number of passes over the memory
+     */
+    public record HashParams(int saltLength, int hashLength, int parallelism, int memoryKib, int iterations) {
+        /** the parameters used before the calibration, the hashes already saved have these */
+        public static final HashParams DEFAULT = new HashParams(16, 32, 4, 65536, 8);
+
+        public Argon2PasswordEncoder encoder() {
+            return new Argon2PasswordEncoder(saltLength, hashLength, parallelism, memoryKib, iterations);
+        }
+
+        /**
+         * The parallelism is not compared: it changes how the memory is split, not the cost of the hash
+         * @param other the parameters to compare with
+         * @return true if no parameter is stronger than in other and at least one is weaker
+         */
+        public boolean isWeakerThan(HashParams other) {
+            boolean notStronger = saltLength <= other.saltLength && hashLength <= other.hashLength
+                    && memoryKib <= other.memoryKib && iterations <= other.iterations;
+            boolean weaker = saltLength < other.saltLength || hashLength < other.hashLength
+                    || memoryKib < other.memoryKib || iterations < other.iterations;
+            return notStronger && weaker;
+        }
+
+        /**
+         * Reads the parameters from an encoded hash ($argon2id$v=19$m=65536,t=8,p=4$salt$hash)
+         * @param encoded the hash
+         * @return the parameters, null if the hash is not an Argon2id hash
+         */
+        public static HashParams of(String encoded) {
+            if (encoded == null) {
+                return null;
+            }
+            String[] parts = encoded.split("\\$");
+            if (parts.length != 6 || !parts[1].equals("argon2id")) {
+                return null;
+            }
+            try {
+                int memory = 0, iterations = 0, parallelism = 0;
+                for (String param : parts[3].split(",")) {
+                    int value = Integer.parseInt(param.substring(2));
+                    switch (param.substring(0, 2)) {
+                        case "m=" -> memory = value;
+                        case "t=" -> iterations = value;
+                        case "p=" -> parallelism = value;
+                        default -> { return null; }
+                    }
+                }
+                Base64.Decoder decoder = Base64.getDecoder();
+                return new HashParams(decoder.decode(parts[4]).length, decoder.decode(parts[5]).length,
+                        parallelism, memory, iterations);
+            } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+    }
+
+    private static volatile HashParams params = HashParams.DEFAULT;
+    private static volatile Argon2PasswordEncoder encoder = params.encoder();
 
     /**
      * Validates if the provided email address has a valid format according to RFC standards.
@@ -44,16 +107,9 @@ public class Tools {
     }
 
     /**
-     * Hashes a password using the Argon2id algorithm with predefined security parameters.
-     *
-     * <p>This method uses the following Argon2 configuration:
-     * <ul>
-     *   <li>Salt length: 16 bytes (randomly generated)</li>
-     *   <li>Hash length: 16 bytes</li>
-     *   <li>Parallelism: 4 threads</li>
-     *   <li>Memory: 47104 KB (~46 MB)</li>
-     *   <li>Iterations: 8</li>
-     * </ul>
+     * Hashes a password using the Argon2id algorithm with the current parameters, see {@link #setHashParams(HashParams)}.
+     * Until the parameters are set the hash uses {@link HashParams#DEFAULT}:
+     * salt of 16 bytes, hash of 32 bytes, parallelism 4, 64 MB of memory and 8 iterations.
      *
      * @param password the plain text password to hash (must not be null or empty)
      * @return a securely hashed password string including salt and parameters
@@ -66,6 +122,36 @@ public class Tools {
         return encoder.encode(password);
     }
 
+    /**
+     * Sets the parameters of the new hashes, the hashes already saved are still verified with their own parameters
+     * @param hashParams the new parameters
+     */
+    public static void setHashParams(HashParams hashParams){
+        if (hashParams == null) {
+            throw new IllegalArgumentException("hash params cannot be null");
+        }
+        encoder = hashParams.encoder();
+        params = hashParams;
+    }
+
+    /**
+     * @return the parameters of the new hashes
+     */
+    public static HashParams getHashParams(){
+        return params;
+    }
+
+    /**
+     * Only a weaker hash is computed again: a hash made with stronger or just different parameters
+     * (e.g. by another instance or before a restart) is kept, so the hashes are never downgraded
+     * @param encoded a hash that matched the password
+     * @return true if the hash is not Argon2id or its parameters are weaker than the current ones
+     */
+    public static boolean needsRehash(String encoded){
+        HashParams stored = HashParams.of(encoded);
+        return stored == null || stored.isWeakerThan(params);
+    }
+
     /**
      * Verifies if a plain text password matches the given Argon2 hash.
      *
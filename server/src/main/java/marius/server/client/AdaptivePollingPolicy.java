@@ -0,0 +1,57 @@
+package marius.server.client;
+
+/**
+ * Computes the polling interval of an agent from what the last syncs observed.
+ * A sync that found nothing changed stretches the interval by the growth factor up to the maximum,
+ * a sync that found a change or failed brings the interval back to the minimum.
+ */
+public class AdaptivePollingPolicy {
+
+    private final long minIntervalMillis;
+    private final long baseIntervalMillis;
+    private final long maxIntervalMillis;
+    private final double growthFactor;
+
+    public AdaptivePollingPolicy(long minIntervalMillis, long baseIntervalMillis, long maxIntervalMillis, double growthFactor) {
+        if (minIntervalMillis <= 0 || baseIntervalMillis < minIntervalMillis
+                || maxIntervalMillis < baseIntervalMillis || growthFactor < 1.0) {
+            throw new IllegalArgumentException("invalid polling policy: min=" + minIntervalMillis + " base=" + baseIntervalMillis
+                    + " max=" + maxIntervalMillis + " growth=" + growthFactor);
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.baseIntervalMillis = baseIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * @param currentMillis the interval used for the last sync
+     * @param stable true if the last sync found services and rules unchanged
+     * @return the interval before the next sync
+     */
+    public long nextInterval(long currentMillis, boolean stable) {
+        if (!stable) {
+            return minIntervalMillis;
+        }
+        long next = (long) Math.ceil(Math.max(currentMillis, minIntervalMillis) * growthFactor);
+        return Math.min(next, maxIntervalMillis);
+    }
+
+    /**
+     * @return the interval of an agent just registered
+     */
+    public long getBaseIntervalMillis() {
+        return baseIntervalMillis;
+    }
+
+    /**
+     * @return the interval of an agent that recently changed or failed
+     */
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    public long getMaxIntervalMillis() {
+        return maxIntervalMillis;
+    }
+}
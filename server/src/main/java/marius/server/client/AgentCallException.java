@@ -0,0 +1,17 @@
+package marius.server.client;
+
+/**
+ * Raised when an agent answers a request with a status code that is not 2xx
+ */
+public class AgentCallException extends RuntimeException {
+    private final int statusCode;
+
+    public AgentCallException(AgentOperation operation, String host, int port, int statusCode, String body) {
+        super(operation + " su " + host + ":" + port + " ha risposto " + statusCode + ": " + body);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,223 @@
+package marius.server.client;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker of a single agent.
+ * The outcome of the last calls is kept in a sliding window: when the rate of failed or slow calls
+ * goes over its threshold the circuit opens and the calls are rejected without touching the network.
+ * After the open duration a single probe is let through (half-open): if it succeeds the circuit closes,
+ * otherwise it opens again.
+ * Every permission is tagged with the generation of the circuit, bumped at every transition:
+ * the result of a call started before the last transition is ignored, so it is never taken for the probe.
+ */
+public class AgentCircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** returned by {@link #tryAcquirePermission()} when the call is rejected */
+    public static final long REJECTED = -1;
+
+    /**
+     * @param windowSize the number of calls kept in the sliding window
+     * @param minimumCalls the calls needed before the rates are evaluated
+     * @param failureRateThreshold the percentage of failed calls that opens the circuit
+     * @param slowCallRateThreshold the percentage of slow calls that opens the circuit
+     * @param openDurationMillis how long the circuit stays open before the probe
+     */
+    public record Settings(int windowSize, int minimumCalls, float failureRateThreshold,
+                           float slowCallRateThreshold, long openDurationMillis) {
+        public Settings {
+            if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize || openDurationMillis < 0) {
+                throw new IllegalArgumentException("invalid circuit breaker settings");
+            }
+        }
+    }
+
+    private final Settings settings;
+    private final LongSupplier nanoClock;
+    private final Consumer<State> onTransition;
+
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    public AgentCircuitBreaker(Settings settings, LongSupplier nanoClock, Consumer<State> onTransition) {
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+        this.onTransition = onTransition;
+        this.failed = new boolean[settings.windowSize()];
+        this.slow = new boolean[settings.windowSize()];
+    }
+
+    public AgentCircuitBreaker(Settings settings) {
+        this(settings, System::nanoTime, state -> {});
+    }
+
+    /**
+     * Asks to make a call, a permitted call must always be followed by {@link #onResult(long, boolean, boolean)}
+     * @return the permit of the call, {@link #REJECTED} if the call can not be made
+     */
+    public long tryAcquirePermission() {
+        State changed = null;
+        boolean permitted;
+        long permit;
+        synchronized (this) {
+            switch (state) {
+                case CLOSED -> permitted = true;
+                case OPEN -> {
+                    permitted = openElapsed();
+                    if (permitted) {
+                        transitionTo(State.HALF_OPEN);
+                        probeInFlight = true;
+                        changed = state;
+                    }
+                }
+                default -> {
+                    permitted = !probeInFlight;
+                    probeInFlight = true;
+                }
+            }
+            permit = permitted ? generation : REJECTED;
+        }
+        notifyTransition(changed);
+        return permit;
+    }
+
+    /**
+     * Records the outcome of a permitted call
+     * @param permit the permit returned for the call by {@link #tryAcquirePermission()}
+     * @param failure true if the call failed
+     * @param slowCall true if the call took more than the slow call threshold
+     */
+    public void onResult(long permit, boolean failure, boolean slowCall) {
+        State changed = null;
+        synchronized (this) {
+            if (permit != generation) {
+                // started before the last transition: it says nothing about the current circuit
+                return;
+            }
+            switch (state) {
+                case HALF_OPEN -> {
+                    probeInFlight = false;
+                    if (failure || slowCall) {
+                        open();
+                    } else {
+                        reset();
+                        transitionTo(State.CLOSED);
+                    }
+                    changed = state;
+                }
+                case CLOSED -> {
+                    record(failure, slowCall);
+                    if (calls >= settings.minimumCalls() &&
+                            (rate(failures) >= settings.failureRateThreshold() ||
+                             rate(slowCalls) >= settings.slowCallRateThreshold())) {
+                        open();
+                        changed = state;
+                    }
+                }
+                default -> {
+                    // no call is permitted while the circuit is open
+                }
+            }
+        }
+        notifyTransition(changed);
+    }
+
+    /**
+     * @return true if a call made now would be rejected
+     */
+    public synchronized boolean isRejecting() {
+        return switch (state) {
+            case CLOSED -> false;
+            case OPEN -> !openElapsed();
+            case HALF_OPEN -> probeInFlight;
+        };
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the milliseconds before the probe is allowed, 0 if the circuit is not open
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        long elapsedMillis = (nanoClock.getAsLong() - openedAt) / 1_000_000;
+        return Math.max(0, settings.openDurationMillis() - elapsedMillis);
+    }
+
+    public synchronized float getFailureRate() {
+        return calls == 0 ? 0 : rate(failures);
+    }
+
+    public synchronized float getSlowCallRate() {
+        return calls == 0 ? 0 : rate(slowCalls);
+    }
+
+    public synchronized int getBufferedCalls() {
+        return calls;
+    }
+
+    private void record(boolean failure, boolean slowCall) {
+        if (calls == failed.length) {
+            if (failed[next]) failures--;
+            if (slow[next]) slowCalls--;
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = slowCall;
+        if (failure) failures++;
+        if (slowCall) slowCalls++;
+        next = (next + 1) % failed.length;
+    }
+
+    private void transitionTo(State next) {
+        state = next;
+        generation++;
+    }
+
+    private void open() {
+        transitionTo(State.OPEN);
+        openedAt = nanoClock.getAsLong();
+        reset();
+    }
+
+    private void reset() {
+        Arrays.fill(failed, false);
+        Arrays.fill(slow, false);
+        next = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private boolean openElapsed() {
+        return nanoClock.getAsLong() - openedAt >= settings.openDurationMillis() * 1_000_000;
+    }
+
+    private float rate(int count) {
+        return count * 100f / calls;
+    }
+
+    private void notifyTransition(State changed) {
+        if (changed != null) {
+            onTransition.accept(changed);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package marius.server.client;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import marius.server.data.dto.AgentCircuitStateDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The circuit breakers of the agents, one for each host:port
+ */
+@Component
+public class AgentCircuitBreakers {
+
+    private static final Logger log = LoggerFactory.getLogger(AgentCircuitBreakers.class);
+
+    private final AgentCircuitBreaker.Settings settings;
+    private final Map<String, AgentCircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<AgentCircuitBreaker.State, Counter> transitions = new EnumMap<>(AgentCircuitBreaker.State.class);
+
+    public AgentCircuitBreakers(MeterRegistry meterRegistry,
+                                @Value("${agent.circuit.window-size:20}") int windowSize,
+                                @Value("${agent.circuit.minimum-calls:5}") int minimumCalls,
+                                @Value("${agent.circuit.failure-rate-threshold:50}") float failureRateThreshold,
+                                @Value("${agent.circuit.slow-call-rate-threshold:80}") float slowCallRateThreshold,
+                                @Value("${agent.circuit.open-duration-ms:30000}") long openDurationMillis) {
+        this.settings = new AgentCircuitBreaker.Settings(windowSize, minimumCalls, failureRateThreshold,
+                slowCallRateThreshold, openDurationMillis);
+        for (AgentCircuitBreaker.State state : AgentCircuitBreaker.State.values()) {
+            transitions.put(state, Counter.builder("corvo.agent.circuit.transitions")
+                    .description("Transitions of the circuit breakers of the agents")
+                    .tag("state", state.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        Gauge.builder("corvo.agent.circuit.open", breakers,
+                        map -> map.values().stream().filter(AgentCircuitBreaker::isRejecting).count())
+                .description("Agents whose calls are rejected by the circuit breaker")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the breaker of the agent, created closed on the first call
+     */
+    public AgentCircuitBreaker forAgent(String host, int port) {
+        String key = key(host, port);
+        return breakers.computeIfAbsent(key, k -> new AgentCircuitBreaker(settings, System::nanoTime, state -> {
+            transitions.get(state).increment();
+            if (state == AgentCircuitBreaker.State.OPEN) {
+                log.warn("Circuit aperto per l'agent {}: le chiamate vengono rifiutate per {}ms", k, settings.openDurationMillis());
+            } else {
+                log.info("Circuit dell'agent {} ora {}", k, state);
+            }
+        }));
+    }
+
+    /**
+     * @return true if a call to the agent would be rejected now
+     */
+    public boolean isRejecting(String host, int port) {
+        AgentCircuitBreaker breaker = breakers.get(key(host, port));
+        return breaker != null && breaker.isRejecting();
+    }
+
+    /**
+     * @return the seconds after which the agent can be called again, at least 1
+     */
+    public long retryAfterSeconds(String host, int port) {
+        AgentCircuitBreaker breaker = breakers.get(key(host, port));
+        long millis = breaker == null ? 0 : breaker.getRemainingOpenMillis();
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    /**
+     * Drops the breaker of an agent removed from the fleet
+     */
+    public void remove(String host, int port) {
+        breakers.remove(key(host, port));
+    }
+
+    /**
+     * @return the state of the breaker of every agent contacted at least once
+     */
+    public List<AgentCircuitStateDTO> getStates() {
+        List<AgentCircuitStateDTO> states = new ArrayList<>();
+        breakers.forEach((key, breaker) -> {
+            int colon = key.lastIndexOf(':');
+            states.add(new AgentCircuitStateDTO(key.substring(0, colon), Integer.parseInt(key.substring(colon + 1)),
+                    breaker.getState().name(), breaker.getFailureRate(), breaker.getSlowCallRate(),
+                    breaker.getBufferedCalls(), breaker.getRemainingOpenMillis()));
+        });
+        return states;
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+}
@@ -1,22 +1,36 @@
 package marius.server.client;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import jakarta.transaction.Transactional;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import marius.server.data.AgentService;
 import marius.server.data.Rules;
 import marius.server.data.dto.*;
-import marius.server.repo.ServiceRepo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
-import java.util.*;
 
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Client of the python agents.
+ * Every operation has an asynchronous version that returns a CompletableFuture and does not hold a thread
+ * while the request is in flight, the synchronous methods wait for it and keep the old behaviour:
+ * on errors they return false, null or an empty list.
+ * Every agent has a circuit breaker: while it is open the calls fail at once with an {@link AgentUnavailableException}.
+ * The pings are not subject to the breaker, the supervisor already handles their failures with its retries.
+ * Concurrent identical reads of the same agent share a single request in flight and its answer.
+ */
 @Service
 public class AgentClientPython {
     @Value("${agent.local.port:5000}")
@@ -25,13 +39,27 @@ public class AgentClientPython {
     @Value("${agent.local.host:localhost}")
     private String defaultHost;
 
-    private RestTemplate restTemplate;
+    private final AgentTransport transport;
+    private final AgentCircuitBreakers circuitBreakers;
+    private final ObjectMapper mapper;
+    // requests in flight by host:port:operation, only for idempotent operations
+    private final Map<String, CompletableFuture<HttpResponse<String>>> inFlight = new ConcurrentHashMap<>();
+    private final Map<AgentOperation, Counter> coalescedCounters = new EnumMap<>(AgentOperation.class);
     private static final Logger log = LoggerFactory.getLogger(AgentClientPython.class);
-    private static ServiceRepo serviceRepo;
 
-    public AgentClientPython(RestTemplate restTemplate , ServiceRepo serviceRepo) {
-        this.restTemplate = restTemplate;
-        this.serviceRepo = serviceRepo;
+    public AgentClientPython(AgentTransport transport, AgentCircuitBreakers circuitBreakers,
+                             ObjectMapper mapper, MeterRegistry meterRegistry) {
+        this.transport = transport;
+        this.circuitBreakers = circuitBreakers;
+        for (AgentOperation operation : AgentOperation.values()) {
+            if (operation.isIdempotent()) {
+                coalescedCounters.put(operation, Counter.builder("corvo.agent.requests.coalesced")
+                        .description("Requests to the agents served by a request already in flight")
+                        .tag("operation", AgentTransport.propertyName(operation))
+                        .register(meterRegistry));
+            }
+        }
+        this.mapper = mapper;
     }
 
     /**
@@ -41,15 +69,23 @@ public class AgentClientPython {
      * @return true if the status of the request is successful
      */
     public boolean pingAgent(String host, int port){
+        return pingAgentAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #pingAgent(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with true if the status of the request is successful
+     */
+    public CompletableFuture<Boolean> pingAgentAsync(String host, int port){
         log.info("pingAgent(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/ping", host, port);
-        try {
-            AgentPingResponse response = restTemplate.getForObject(url, AgentPingResponse.class);
-            return response != null && "success".equals(response.getStatus()) && "Agent is running".equals(response.getMessage());
-        }catch (RestClientException e){
-            log.error("Pinging agent failed at {}:{}, error = {}", host, port, e.getMessage());
-            return false;
-        }
+        return getJson(host, port, AgentOperation.PING, AgentPingResponse.class)
+                .thenApply(response -> response != null && "success".equals(response.getStatus()) && "Agent is running".equals(response.getMessage()))
+                .exceptionally(e -> {
+                    log.error("Pinging agent failed at {}:{}, error = {}", host, port, causeMessage(e));
+                    return false;
+                });
     }
 
     /**
@@ -69,31 +105,34 @@ public class AgentClientPython {
      * @return true if username is set, false otherwise
      */
     public boolean setActiveUser(String host, int port, String username){
+        return setActiveUserAsync(host, port, username).join();
+    }
 
+    /**
+     * Asynchronous version of {@link #setActiveUser(String, int, String)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @param username the username to set
+     * @return a future completed with true if username is set, false otherwise
+     */
+    public CompletableFuture<Boolean> setActiveUserAsync(String host, int port, String username){
         log.info("setActiveUser (host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/set_user", host, port);
-        // Crea il JSON come stringa
-        String jsonBody = String.format("{\"name\":\"%s\"}", username);
-        // Imposta gli headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        // Crea l'HttpEntity
-        HttpEntity<String> entity = new HttpEntity<>(jsonBody, headers);
-        try {
-            AgentResponseDTO response = restTemplate.postForObject(url, entity, AgentResponseDTO.class);
-            boolean success = response != null &&
-                    "success".equalsIgnoreCase(response.getStatus()) &&
-                    response.getMessage() != null;
-            if (success) {
-                log.info("✅ Utente '{}' registrato con successo su {}:{}: {}", username, host, port, response.getMessage());
-            } else {
-                log.error("❌ Registrazione fallita per '{}' su {}:{}: {}", username, host, port, response != null ? response.getMessage() : "nessuna risposta");
-            }
-            return success;
-        } catch (RestClientException e){
-            log.error("❌ setActiveUser fallito su {}:{}: {}", host, port, e.getMessage());
-            return false;
-        }
+        return postJson(host, port, AgentOperation.SET_USER, Map.of("name", username), AgentResponseDTO.class)
+                .thenApply(response -> {
+                    boolean success = response != null &&
+                            "success".equalsIgnoreCase(response.getStatus()) &&
+                            response.getMessage() != null;
+                    if (success) {
+                        log.info("✅ Utente '{}' registrato con successo su {}:{}: {}", username, host, port, response.getMessage());
+                    } else {
+                        log.error("❌ Registrazione fallita per '{}' su {}:{}: {}", username, host, port, response != null ? response.getMessage() : "nessuna risposta");
+                    }
+                    return success;
+                })
+                .exceptionally(e -> {
+                    log.error("❌ setActiveUser fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return false;
+                });
     }
 
     /**
@@ -113,14 +152,21 @@ public class AgentClientPython {
      * @return a json node
      */
     public JsonNode getStatusServer(String host, int port){
-        String url = String.format("http://%s:%d/get_status", host, port);
-        try {
-            JsonNode response = restTemplate.getForObject(url, JsonNode.class);
-            return response;
-        } catch (RestClientException e){
-            log.error("❌ getStatusServer fallito su {}:{}: {}", host, port, e.getMessage());
-            return null;
-        }
+        return getStatusServerAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #getStatusServer(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with the json node, or null on errors
+     */
+    public CompletableFuture<JsonNode> getStatusServerAsync(String host, int port){
+        return getJson(host, port, AgentOperation.GET_STATUS, JsonNode.class)
+                .exceptionally(e -> {
+                    log.error("❌ getStatusServer fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return null;
+                });
     }
 
     /**
@@ -138,15 +184,22 @@ public class AgentClientPython {
      * @return a json node
      */
     public JsonNode getLogsServer(String host, int port){
+        return getLogsServerAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #getLogsServer(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with the json node, or null on errors
+     */
+    public CompletableFuture<JsonNode> getLogsServerAsync(String host, int port){
         log.info("getLogsServer(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/get_logs", host, port);
-        try {
-            JsonNode response = restTemplate.getForObject(url, JsonNode.class);
-            return response;
-        } catch (RestClientException e){
-            log.error("❌ getLogsServer fallito su {}:{}: {}", host, port, e.getMessage());
-            return null;
-        }
+        return getJson(host, port, AgentOperation.GET_LOGS, JsonNode.class)
+                .exceptionally(e -> {
+                    log.error("❌ getLogsServer fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return null;
+                });
     }
 
     /**
@@ -164,15 +217,22 @@ public class AgentClientPython {
      * @return a json node
      */
     public JsonNode getLynisReport(String host, int port){
+        return getLynisReportAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #getLynisReport(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with the json node, or null on errors
+     */
+    public CompletableFuture<JsonNode> getLynisReportAsync(String host, int port){
         log.info("getLynisReport(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/get_report_content", host, port);
-        try {
-            JsonNode response = restTemplate.getForObject(url, JsonNode.class);
-            return response;
-        } catch (RestClientException e){
-            log.error("getLynisReport fallito su {}:{}: {}", host, port, e.getMessage());
-            return null;
-        }
+        return getJson(host, port, AgentOperation.GET_REPORT_CONTENT, JsonNode.class)
+                .exceptionally(e -> {
+                    log.error("getLynisReport fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return null;
+                });
     }
 
     /**
@@ -191,88 +251,63 @@ public class AgentClientPython {
      * @return true if rules are added successfully, false otherwise
      */
     public boolean addLynisRules(String host, int port, List<String> rules){
-        log.info("addLynisRules(host: {}, port: {})", host, port);
-        log.info("addLynisRules(host: {}, port: {}) rules = {}", host, port, rules);
+        return addLynisRulesAsync(host, port, rules).join();
+    }
 
-        if(host == null || host.isEmpty()){
-            host = defaultHost;
-        }
+    /**
+     * Asynchronous version of {@link #addLynisRules(String, int, List)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @param rules list of rule IDs to add
+     * @return a future completed with true if rules are added successfully, false otherwise
+     */
+    public CompletableFuture<Boolean> addLynisRulesAsync(String host, int port, List<String> rules){
+        log.info("addLynisRules(host: {}, port: {}) rules = {}", host, port, rules);
 
-        String url = String.format("http://%s:%d/add_rules", host, port);
-        log.info("URL finale: {}", url);
+        String targetHost = (host == null || host.isEmpty()) ? defaultHost : host;
 
         // Crea il JSON body
         Map<String, List<String>> requestBody = new HashMap<>();
         requestBody.put("rules", rules);
-
-        // Debug del JSON
-        ObjectMapper mapper = new ObjectMapper();
-        String jsonString = "";
+        String jsonString;
         try {
             jsonString = mapper.writeValueAsString(requestBody);
-            log.info("JSON che verrà inviato: {}", jsonString);
-            log.info("Lunghezza JSON: {}", jsonString.length());
-        } catch (Exception e) {
+            log.info("JSON che verrà inviato a {}: {}", AgentOperation.ADD_RULES.url(targetHost, port), jsonString);
+        } catch (JsonProcessingException e) {
             log.error("Errore serializzazione JSON: {}", e.getMessage());
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        // Imposta gli headers per simulare curl
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.set("User-Agent", "curl/7.68.0");
-        headers.set("Accept", "*/*");
-        headers.set("Content-Length", String.valueOf(jsonString.length()));
-
-        // Log degli headers
-        log.info("Headers che verranno inviati:");
-        headers.forEach((key, value) -> log.info("  {}: {}", key, value));
-
-        // Crea l'HttpEntity
-        HttpEntity<Map<String, List<String>>> entity = new HttpEntity<>(requestBody, headers);
-
-        try {
-            // Usa exchange per avere più controllo
-            ResponseEntity<String> responseEntity = restTemplate.exchange(
-                    url,
-                    HttpMethod.POST,
-                    entity,
-                    String.class
-            );
-
-            log.info("Status code: {}", responseEntity.getStatusCode());
-            log.info("Response headers: {}", responseEntity.getHeaders());
-            log.info("Response body: {}", responseEntity.getBody());
-
-            // Prova a parsare la risposta
-            try {
-                AgentResponseDTO response = mapper.readValue(responseEntity.getBody(), AgentResponseDTO.class);
-                boolean success = response != null && "success".equalsIgnoreCase(response.getStatus());
-
-                if (success) {
-                    log.info("✅ Regole Lynis aggiunte con successo su {}:{}: {}", host, port, rules);
-                } else {
-                    log.error("❌ Aggiunta regole Lynis fallita su {}:{}: {}", host, port, response.getMessage());
-                }
-                return success;
-            } catch (Exception e) {
-                log.error("Errore parsing risposta: {}", e.getMessage());
-                return false;
-            }
-
-        } catch (RestClientException e){
-            log.error("❌ addLynisRules fallito su {}:{}: {}", host, port, e.getMessage());
-
-            // Se è un HttpClientErrorException, ottieni più dettagli
-            if (e instanceof HttpClientErrorException) {
-                HttpClientErrorException httpEx = (HttpClientErrorException) e;
-                log.error("Status code: {}", httpEx.getStatusCode());
-                log.error("Response body: {}", httpEx.getResponseBodyAsString());
-                log.error("Response headers: {}", httpEx.getResponseHeaders());
-            }
-
-            return false;
-        }
+        // Imposta gli headers per simulare curl, la Content-Length è calcolata dal client
+        HttpRequest.Builder request = request(targetHost, port, AgentOperation.ADD_RULES)
+                .header("Content-Type", "application/json")
+                .header("User-Agent", "curl/7.68.0")
+                .header("Accept", "*/*")
+                .POST(HttpRequest.BodyPublishers.ofString(jsonString));
+
+        return send(targetHost, port, AgentOperation.ADD_RULES, request)
+                .thenApply(response -> {
+                    log.info("Status code: {}", response.statusCode());
+                    log.info("Response body: {}", response.body());
+                    // Prova a parsare la risposta
+                    try {
+                        AgentResponseDTO dto = mapper.readValue(response.body(), AgentResponseDTO.class);
+                        boolean success = dto != null && "success".equalsIgnoreCase(dto.getStatus());
+                        if (success) {
+                            log.info("✅ Regole Lynis aggiunte con successo su {}:{}: {}", targetHost, port, rules);
+                        } else {
+                            log.error("❌ Aggiunta regole Lynis fallita su {}:{}: {}", targetHost, port, dto != null ? dto.getMessage() : "nessuna risposta");
+                        }
+                        return success;
+                    } catch (JsonProcessingException e) {
+                        log.error("Errore parsing risposta: {}", e.getMessage());
+                        return false;
+                    }
+                })
+                .exceptionally(e -> {
+                    log.error("❌ addLynisRules fallito su {}:{}: {}", targetHost, port, causeMessage(e));
+                    return false;
+                });
     }
 
     /**
@@ -283,6 +318,7 @@ public class AgentClientPython {
     public boolean addLynisRules(List<String> rules){
         return addLynisRules(defaultHost, defaultPort, rules);
     }
+
     /**
      * Returns the Lynis report content as plain text
      * @param host the host address of the agent
@@ -290,39 +326,31 @@ public class AgentClientPython {
      * @return the report content as String, or null if error occurs
      */
     public String getLynisReportText(String host, int port){
-        String url = String.format("http://%s:%d/get_lynis_report", host, port);
-        try {
-            // Configura RestTemplate per ricevere text/plain
-            HttpHeaders headers = new HttpHeaders();
-            headers.setAccept(Arrays.asList(MediaType.TEXT_PLAIN));
-            HttpEntity<String> entity = new HttpEntity<>(headers);
-
-            ResponseEntity<String> response = restTemplate.exchange(
-                    url,
-                    HttpMethod.GET,
-                    entity,
-                    String.class
-            );
-
-            if (response.getStatusCode().is2xxSuccessful()) {
-                log.info("✅ Report Lynis ottenuto con successo :{}", host, port);
-
-                // Log opzionale del nome file se presente negli headers
-                String filename = response.getHeaders().getFirst("X-Filename");
-                if (filename != null) {
-                    log.info("📄 Nome file report: {}", filename);
-                }
-
-                return response.getBody();
-            } else {
-                log.error("❌ Errore HTTP nell'ottenere report Lynis da {}:{}: status {}",
-                        host, port, response.getStatusCode());
-                return null;
-            }
-        } catch (RestClientException e){
-            log.error("❌ getLynisReportText fallito su {}:{}: {}", host, port, e.getMessage());
-            return null;
-        }
+        return getLynisReportTextAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #getLynisReportText(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with the report content, or null if error occurs
+     */
+    public CompletableFuture<String> getLynisReportTextAsync(String host, int port){
+        HttpRequest.Builder request = request(host, port, AgentOperation.GET_LYNIS_REPORT)
+                .header("Accept", "text/plain")
+                .GET();
+        return shared(host, port, AgentOperation.GET_LYNIS_REPORT, request)
+                .thenApply(response -> {
+                    log.info("✅ Report Lynis ottenuto con successo da {}:{}", host, port);
+                    // Log opzionale del nome file se presente negli headers
+                    response.headers().firstValue("X-Filename")
+                            .ifPresent(filename -> log.info("📄 Nome file report: {}", filename));
+                    return response.body();
+                })
+                .exceptionally(e -> {
+                    log.error("❌ getLynisReportText fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return null;
+                });
     }
 
     /**
@@ -340,32 +368,42 @@ public class AgentClientPython {
      * @return true if scan is started successfully, false otherwise
      */
     public boolean startLynisScan(String host, int port){
-        log.info("startLynisScan(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/start_lynis_scan", host, port);
-        try {
-            AgentResponseDTO response = restTemplate.getForObject(url, AgentResponseDTO.class);
-            boolean success = response != null && "success".equalsIgnoreCase(response.getStatus());
-
-            if (success) {
-                log.info("✅ Scansione Lynis avviata con successo su {}:{}: {}", host, port, response.getMessage());
-            } else if (response != null && "error".equalsIgnoreCase(response.getStatus())) {
-                // Gestisce i diversi tipi di errore
-                if (response.getMessage().contains("già in corso")) {
-                    log.warn("⚠️ Scansione Lynis già in corso su {}:{}: {}", host, port, response.getMessage());
-                } else if (response.getMessage().contains("non riconosciuto")) {
-                    log.error("❌ Utente non autorizzato per scansione Lynis su {}:{}: {}", host, port, response.getMessage());
-                } else {
-                    log.error("❌ Errore nell'avvio scansione Lynis su {}:{}: {}", host, port, response.getMessage());
-                }
-            } else {
-                log.error("❌ Avvio scansione Lynis fallito su {}:{}: nessuna risposta valida", host, port);
-            }
+        return startLynisScanAsync(host, port).join();
+    }
 
-            return success;
-        } catch (RestClientException e){
-            log.error("❌ startLynisScan fallito su {}:{}: {}", host, port, e.getMessage());
-            return false;
-        }
+    /**
+     * Asynchronous version of {@link #startLynisScan(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with true if scan is started successfully, false otherwise
+     */
+    public CompletableFuture<Boolean> startLynisScanAsync(String host, int port){
+        log.info("startLynisScan(host: {}, port: {})", host, port);
+        return getJson(host, port, AgentOperation.START_LYNIS_SCAN, AgentResponseDTO.class)
+                .thenApply(response -> {
+                    boolean success = response != null && "success".equalsIgnoreCase(response.getStatus());
+
+                    if (success) {
+                        log.info("✅ Scansione Lynis avviata con successo su {}:{}: {}", host, port, response.getMessage());
+                    } else if (response != null && "error".equalsIgnoreCase(response.getStatus())) {
+                        // Gestisce i diversi tipi di errore
+                        String message = String.valueOf(response.getMessage());
+                        if (message.contains("già in corso")) {
+                            log.warn("⚠️ Scansione Lynis già in corso su {}:{}: {}", host, port, message);
+                        } else if (message.contains("non riconosciuto")) {
+                            log.error("❌ Utente non autorizzato per scansione Lynis su {}:{}: {}", host, port, message);
+                        } else {
+                            log.error("❌ Errore nell'avvio scansione Lynis su {}:{}: {}", host, port, message);
+                        }
+                    } else {
+                        log.error("❌ Avvio scansione Lynis fallito su {}:{}: nessuna risposta valida", host, port);
+                    }
+                    return success;
+                })
+                .exceptionally(e -> {
+                    log.error("❌ startLynisScan fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return false;
+                });
     }
 
     /**
@@ -376,85 +414,66 @@ public class AgentClientPython {
         return startLynisScan(defaultHost, defaultPort);
     }
 
-
     /**
      * Gets the status of various services and maps them to Services entities
      * @param host the host address of the agent
      * @param port the port of the agent
      * @return a list of Services entities representing each service's status
      */
-
-    /*
     public List<AgentService> getServiceStatus(String host, int port) {
+        return getServiceStatusAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #getServiceStatus(String, int)}
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with the services of the agent, or an empty list on errors
+     */
+    public CompletableFuture<List<AgentService>> getServiceStatusAsync(String host, int port) {
+        return fetchServiceStatus(host, port)
+                .exceptionally(e -> {
+                    log.error("❌ getServiceStatus fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return Collections.emptyList();
+                });
+    }
+
+    /**
+     * Reads the services of the agent, unlike {@link #getServiceStatusAsync(String, int)} the errors fail the future
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return a future completed with the services of the agent
+     */
+    CompletableFuture<List<AgentService>> fetchServiceStatus(String host, int port) {
         log.info("getServiceStatus(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/get_service_status", host, port);
-        try {
-            ServiceStatusResponseDTO response = restTemplate.getForObject(url, ServiceStatusResponseDTO.class);
-            if (response != null && "success".equalsIgnoreCase(response.getStatus())) {
-                log.info("✅ Stato servizi ottenuto da {}:{}", host, port);
-
-                List<AgentService> servicesList = new ArrayList<>();
-                for (Map<String, Boolean> serviceEntry : response.getStatusServices()) {
-                    for (Map.Entry<String, Boolean> entry : serviceEntry.entrySet()) {
-                        String serviceName = entry.getKey().trim();
-                        boolean state = entry.getValue();
-                        if (host.equals( "127.0.0.1")){
-                            log.info("getServiceStatus forzo l'ip a quello della wsl");
-                            host = "172.22.59.12";
-                        }
+        return getJson(host, port, AgentOperation.GET_SERVICE_STATUS, ServiceStatusResponseDTO.class)
+                .thenApply(response -> {
+                    if (response == null || !"success".equalsIgnoreCase(response.getStatus())) {
+                        throw new IllegalStateException("⚠️ Risposta non valida da getServiceStatus: " +
+                                (response != null ? response.getMessage() : "nessuna risposta"));
+                    }
+                    log.info("✅ Stato servizi ottenuto da {}:{}", host, port);
+                    List<AgentService> servicesList = new ArrayList<>();
+
+                    // Gestione del cambio IP per WSL
+                    String actualHost = host;
+                    if ("127.0.0.1".equals(host)) {
+                        log.info("getServiceStatus forzo l'ip a quello della wsl");
+                        actualHost = "172.22.59.12";
+                    }
 
-                        AgentService service = new AgentService(host, serviceName, "todo", port, false, state);
+                    for (ServiceStatusResponseDTO.ServiceInfo serviceInfo : response.getStatusServices()) {
+                        String serviceName = serviceInfo.getName().trim();
+                        boolean state = serviceInfo.isStatus();
+                        boolean automaticStart = serviceInfo.isAutomaticStart();
 
+                        log.info("getServiceStatus servizo creato con ip {} nome {} automaticStart{} stato {}", actualHost, serviceName, automaticStart, state);
 
+                        AgentService service = new AgentService(host, serviceName, "todo", port, automaticStart, state);
                         servicesList.add(service);
                     }
-                }
-
-                return servicesList;
-            } else {
-                log.error( "⚠️ Risposta non valida da getServiceStatus su {}:{}: {}", host, port, response != null ? response.getMessage() : "nessuna risposta");
-            }
-        } catch (RestClientException e){
-            log.error("❌ getServiceStatus fallito su {}:{}: {}", host, port, e.getMessage());
-        }
-
-        return Collections.emptyList();
-    }
-    */
-    public List<AgentService> getServiceStatus(String host, int port) {
-        log.info("getServiceStatus(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/get_service_status", host, port);
-        try {
-            ServiceStatusResponseDTO response = restTemplate.getForObject(url, ServiceStatusResponseDTO.class);
-            if (response != null && "success".equalsIgnoreCase(response.getStatus())) {
-                log.info("✅ Stato servizi ottenuto da {}:{}", host, port);
-                List<AgentService> servicesList = new ArrayList<>();
-
-                // Gestione del cambio IP per WSL
-                String actualHost = host;
-                if ("127.0.0.1".equals(host)) {
-                    log.info("getServiceStatus forzo l'ip a quello della wsl");
-                    actualHost = "172.22.59.12";
-                }
-
-                for (ServiceStatusResponseDTO.ServiceInfo serviceInfo : response.getStatusServices()) {
-                    String serviceName = serviceInfo.getName().trim();
-                    boolean state = serviceInfo.isStatus();
-                    boolean automaticStart = serviceInfo.isAutomaticStart();
-
-                    log.info("getServiceStatus servizo creato con ip {} nome {} automaticStart{} stato {}", actualHost,serviceName, automaticStart, state);
-
-                    AgentService service = new AgentService(host, serviceName, "todo", port, automaticStart, state);
-                    servicesList.add(service);
-                }
-                return servicesList;
-            } else {
-                log.error("⚠️ Risposta non valida da getServiceStatus su {}:{}: {}", host, port, response != null ? response.getMessage() : "nessuna risposta");
-            }
-        } catch (RestClientException e) {
-            log.error("❌ getServiceStatus fallito su {}:{}: {}", host, port, e.getMessage());
-        }
-        return Collections.emptyList();
+                    return servicesList;
+                });
     }
 
     /**
@@ -464,49 +483,153 @@ public class AgentClientPython {
      * @return a list of Rules for the ip
      */
     public List<Rules> getSystemRules(String host, int port) {
+        return getSystemRulesAsync(host, port).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #getSystemRules(String, int)}
+     * @param host the ip v4 address of the agent
+     * @param port the port used by the server for comunicate with the server
+     * @return a future completed with the rules of the agent, or an empty list on errors
+     */
+    public CompletableFuture<List<Rules>> getSystemRulesAsync(String host, int port) {
+        return fetchSystemRules(host, port)
+                .exceptionally(e -> {
+                    log.error("❌ getSystemRules fallito su {}:{}: {}", host, port, causeMessage(e));
+                    return Collections.emptyList();
+                });
+    }
+
+    /**
+     * Reads the rules of the agent, unlike {@link #getSystemRulesAsync(String, int)} the errors fail the future
+     * @param host the ip v4 address of the agent
+     * @param port the port used by the server for comunicate with the server
+     * @return a future completed with the rules of the agent
+     */
+    CompletableFuture<List<Rules>> fetchSystemRules(String host, int port) {
         log.info("getSystemRules(host: {}, port: {})", host, port);
-        String url = String.format("http://%s:%d/get_rules", host, port);
-        try {
-            // Cambiato per usare una struttura dati che corrisponde alla risposta reale
-            SystemRulesResponseDTO response = restTemplate.getForObject(url, SystemRulesResponseDTO.class);
-
-            if (response != null && "success".equalsIgnoreCase(response.getStatus())) {
-                log.info("✅ Stato servizi ottenuto da {}:{}", host, port);
-                List<Rules> rulesList = new ArrayList<>();
-
-                // Processa l'array di regole dal campo "message"
-                if (response.getMessage() != null) {
-                    for (RuleDTO rule : response.getMessage()) {
-                        String finalHost = host;
-                        if ("127.0.0.1".equals(host)) {
-                            log.info("getSystemRules forzo l'ip a quello della wsl");
-                            finalHost = "172.22.59.12";
+        return getJson(host, port, AgentOperation.GET_RULES, SystemRulesResponseDTO.class)
+                .thenApply(response -> {
+                    if (response == null || !"success".equalsIgnoreCase(response.getStatus())) {
+                        throw new IllegalStateException("⚠️ Risposta non valida da getSystemRules: " +
+                                (response != null ? response.toString() : "nessuna risposta"));
+                    }
+                    log.info("✅ Stato servizi ottenuto da {}:{}", host, port);
+                    List<Rules> rulesList = new ArrayList<>();
+
+                    // Processa l'array di regole dal campo "message"
+                    if (response.getMessage() != null) {
+                        // the ip of the agent, the same the sync uses to reconcile the rules on the database
+                        for (RuleDTO rule : response.getMessage()) {
+                            rulesList.add(new Rules(
+                                    rule.getName(),           // name
+                                    rule.getDescription(),    // descr
+                                    rule.isStatus(),          // status
+                                    host                      // ip
+                            ));
                         }
-
-                        Rules localRule = new Rules(
-                                rule.getName(),           // name
-                                rule.getDescription(),    // descr
-                                rule.isStatus(),         // status
-                                finalHost               // ip
-                        );
-                        rulesList.add(localRule);
                     }
-                }
-                return rulesList;
+                    return rulesList;
+                });
+    }
+
+    private HttpRequest.Builder request(String host, int port, AgentOperation operation) {
+        return HttpRequest.newBuilder(URI.create(operation.url(host, port)));
+    }
+
+    /**
+     * Sends the request, or joins the identical one already in flight when the operation is idempotent.
+     * Every caller receives its own copy of the future, so cancelling it does not affect the others,
+     * and parses the body by itself, so the returned entities are not shared.
+     */
+    private CompletableFuture<HttpResponse<String>> shared(String host, int port, AgentOperation operation, HttpRequest.Builder request) {
+        if (!operation.isIdempotent()) {
+            return send(host, port, operation, request);
+        }
+        String key = host + ":" + port + ":" + operation;
+        CompletableFuture<HttpResponse<String>> leader = new CompletableFuture<>();
+        CompletableFuture<HttpResponse<String>> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            coalescedCounters.get(operation).increment();
+            return existing.copy();
+        }
+        send(host, port, operation, request).whenComplete((response, e) -> {
+            // removed before completing, the callers arriving later start a new request
+            inFlight.remove(key, leader);
+            if (e != null) {
+                leader.completeExceptionally(e);
             } else {
-                log.error("⚠️ Risposta non valida da getSystemRules su {}:{}: {}",
-                        host, port, response != null ? response.toString() : "nessuna risposta");
+                leader.complete(response);
             }
-        } catch (RestClientException e) {
-            log.error("❌ getSystemRules fallito su {}:{}: {}", host, port, e.getMessage());
+        });
+        return leader.copy();
+    }
+
+    /**
+     * Sends the request through the transport without blocking, responses with a status code that is not 2xx
+     * complete the future exceptionally with an {@link AgentCallException}.
+     * Connection errors, timeouts and 5xx responses count as failures for the circuit breaker of the agent.
+     */
+    private CompletableFuture<HttpResponse<String>> send(String host, int port, AgentOperation operation, HttpRequest.Builder request) {
+        AgentCircuitBreaker breaker = operation == AgentOperation.PING ? null : circuitBreakers.forAgent(host, port);
+        long permit = breaker == null ? AgentCircuitBreaker.REJECTED : breaker.tryAcquirePermission();
+        if (breaker != null && permit == AgentCircuitBreaker.REJECTED) {
+            return CompletableFuture.failedFuture(new AgentUnavailableException(host, port, breaker.getRemainingOpenMillis()));
+        }
+        long start = System.nanoTime();
+        long slowCallNanos = transport.getSettings().get(operation).slowCallThreshold().toNanos();
+        return transport.send(host, port, operation, request, HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, e) -> {
+                    if (breaker != null) {
+                        boolean failure = e != null || response.statusCode() >= 500;
+                        breaker.onResult(permit, failure, System.nanoTime() - start > slowCallNanos);
+                    }
+                })
+                .thenApply(response -> {
+                    if (response.statusCode() / 100 != 2) {
+                        throw new AgentCallException(operation, host, port, response.statusCode(), response.body());
+                    }
+                    return response;
+                });
+    }
+
+    private <T> CompletableFuture<T> getJson(String host, int port, AgentOperation operation, Class<T> type) {
+        HttpRequest.Builder request = request(host, port, operation)
+                .header("Accept", "application/json")
+                .GET();
+        return shared(host, port, operation, request).thenApply(response -> readBody(response, type));
+    }
 
+    private <T> CompletableFuture<T> postJson(String host, int port, AgentOperation operation, Object body, Class<T> type) {
+        String json;
+        try {
+            json = mapper.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        return Collections.emptyList();
+        HttpRequest.Builder request = request(host, port, operation)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json));
+        return send(host, port, operation, request).thenApply(response -> readBody(response, type));
     }
 
+    private <T> T readBody(HttpResponse<String> response, Class<T> type) {
+        String body = response.body();
+        if (body == null || body.isBlank()) {
+            return null;
+        }
+        try {
+            return mapper.readValue(body, type);
+        } catch (JsonProcessingException e) {
+            throw new CompletionException(e);
+        }
+    }
 
-    @Transactional
-    public boolean deleteOldServices(String ip) {
-        return serviceRepo.deleteByIp(ip)>0;
+    private static String causeMessage(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
     }
 }
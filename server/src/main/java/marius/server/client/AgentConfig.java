@@ -1,14 +1,31 @@
 package marius.server.client;
 
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.web.client.RestTemplate;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executors;
 
 @Configuration
 public class AgentConfig {
+
+    /**
+     * Non-blocking client used to talk with the agents. The I/O is done by the selector thread of the client
+     * and the responses are completed on virtual threads, so many requests in flight do not hold platform threads.
+     * The HTTP/1.1 connections are kept alive and reused. The idle timeout and the number of idle connections
+     * are JDK properties read once for the whole JVM, so they are JVM options and not set here:
+     * -Djdk.httpclient.keepalive.timeout and -Djdk.httpclient.connectionPoolSize, see JAVA_TOOL_OPTIONS in the Dockerfile.
+     */
     @Bean
-    public RestTemplate restTemplate (RestTemplateBuilder builder){
-        return builder.build();
+    public HttpClient agentHttpClient(@Value("${agent.http.version:HTTP_1_1}") HttpClient.Version version,
+                                      @Value("${agent.transport.connect-timeout-ms:3000}") long connectTimeoutMillis) {
+        return HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .executor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("AgentHttp-", 0).factory()))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
     }
 }
@@ -0,0 +1,45 @@
+package marius.server.client;
+
+/**
+ * The routes exposed by the python agent
+ */
+public enum AgentOperation {
+    PING("/ping", true),
+    SET_USER("/set_user", false),
+    GET_STATUS("/get_status", true),
+    GET_LOGS("/get_logs", true),
+    GET_REPORT_CONTENT("/get_report_content", true),
+    ADD_RULES("/add_rules", false),
+    GET_LYNIS_REPORT("/get_lynis_report", true),
+    START_LYNIS_SCAN("/start_lynis_scan", false),
+    GET_SERVICE_STATUS("/get_service_status", true),
+    GET_RULES("/get_rules", true);
+
+    private final String path;
+    private final boolean idempotent;
+
+    AgentOperation(String path, boolean idempotent) {
+        this.path = path;
+        this.idempotent = idempotent;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the operation only reads the state of the agent, so concurrent identical calls can share the answer
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @return the url of the route on the agent
+     */
+    public String url(String host, int port) {
+        return String.format("http://%s:%d%s", host, port, path);
+    }
+}
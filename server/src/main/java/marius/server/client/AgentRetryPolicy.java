@@ -0,0 +1,56 @@
+package marius.server.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter used for the onboarding retries of the agents.
+ * The delay of the attempt n is a random value between 0 and min(maxDelay, baseDelay * 2^n),
+ * so agents that fail together do not retry together.
+ */
+public class AgentRetryPolicy {
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+
+    public AgentRetryPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis || maxAttempts <= 0) {
+            throw new IllegalArgumentException("invalid retry policy: base=" + baseDelayMillis
+                    + " max=" + maxDelayMillis + " attempts=" + maxAttempts);
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param attempt the number of failed attempts so far, starting from 0
+     * @return the upper bound of the delay before the next attempt
+     */
+    public long backoffCeiling(int attempt) {
+        // the shift is capped to avoid an overflow for big attempt numbers
+        int shift = Math.min(Math.max(attempt, 0), 30);
+        long ceiling = baseDelayMillis << shift;
+        return (ceiling <= 0 || ceiling > maxDelayMillis) ? maxDelayMillis : ceiling;
+    }
+
+    /**
+     * @param attempt the number of failed attempts so far, starting from 0
+     * @return the delay in milliseconds before the next attempt, with full jitter
+     */
+    public long nextDelayMillis(int attempt) {
+        return ThreadLocalRandom.current().nextLong(backoffCeiling(attempt) + 1);
+    }
+
+    /**
+     * @param attempts the number of failed attempts so far
+     * @return true if the agent still has attempts in its budget
+     */
+    public boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
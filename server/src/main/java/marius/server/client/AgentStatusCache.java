@@ -0,0 +1,71 @@
+package marius.server.client;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import marius.server.client.StaleWhileRevalidateCache.Snapshot;
+import marius.server.data.AgentService;
+import marius.server.data.Rules;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Live services and rules of the active agents, by ip.
+ * The periodic sync stores here what it reads, so the UI is answered without going to the agent
+ * while the data is fresh; older data is served while it is refreshed in background.
+ */
+@Component
+public class AgentStatusCache {
+
+    private final AgentClientPython client;
+    private final StaleWhileRevalidateCache<List<AgentService>> services;
+    private final StaleWhileRevalidateCache<List<Rules>> rules;
+
+    public AgentStatusCache(AgentClientPython client, MeterRegistry meterRegistry,
+                            @Value("${agent.cache.ttl-ms:30000}") long ttlMillis,
+                            @Value("${agent.cache.max-stale-ms:600000}") long maxStaleMillis) {
+        this.client = client;
+        Duration ttl = Duration.ofMillis(ttlMillis);
+        Duration maxStale = Duration.ofMillis(maxStaleMillis);
+        this.services = new StaleWhileRevalidateCache<>("services", ttl, maxStale, Clock.systemUTC());
+        this.rules = new StaleWhileRevalidateCache<>("rules", ttl, maxStale, Clock.systemUTC());
+        Gauge.builder("corvo.agent.cache.size", services, StaleWhileRevalidateCache::size)
+                .tag("cache", "services").register(meterRegistry);
+        Gauge.builder("corvo.agent.cache.size", rules, StaleWhileRevalidateCache::size)
+                .tag("cache", "rules").register(meterRegistry);
+    }
+
+    /**
+     * @return the services of the agent, cached or read from it; the future fails if the agent can not be read
+     */
+    public CompletableFuture<Snapshot<List<AgentService>>> getServices(String ip, int port) {
+        return services.get(ip, () -> client.fetchServiceStatus(ip, port).thenApply(List::copyOf));
+    }
+
+    /**
+     * @return the rules of the agent, cached or read from it; the future fails if the agent can not be read
+     */
+    public CompletableFuture<Snapshot<List<Rules>>> getRules(String ip, int port) {
+        return rules.get(ip, () -> client.fetchSystemRules(ip, port).thenApply(List::copyOf));
+    }
+
+    public void putServices(String ip, List<AgentService> agentServices) {
+        services.put(ip, List.copyOf(agentServices));
+    }
+
+    public void putRules(String ip, List<Rules> agentRules) {
+        rules.put(ip, List.copyOf(agentRules));
+    }
+
+    /**
+     * Forgets the data of an agent that is down or removed
+     */
+    public void evict(String ip) {
+        services.evict(ip);
+        rules.evict(ip);
+    }
+}
@@ -0,0 +1,60 @@
+package marius.server.client;
+
+import marius.server.data.AgentService;
+import marius.server.data.Rules;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Computes a fingerprint of the services and rules received from an agent.
+ * The payload is normalized (trimmed names, sorted rows, only the fields that are persisted)
+ * so that two syncs with the same state produce the same fingerprint regardless of the order used by the agent.
+ */
+public final class AgentSyncFingerprint {
+
+    private AgentSyncFingerprint() {}
+
+    /**
+     * @param services the services returned by AgentClientPython.getServiceStatus
+     * @return the SHA-256 of the normalized services, as hex string
+     */
+    public static String ofServices(List<AgentService> services) {
+        return digest(services.stream()
+                .map(s -> field(s.getName()) + '\u001f' + s.isState() + '\u001f' + s.isAutomaticStart())
+                .sorted()
+                .toList());
+    }
+
+    /**
+     * @param rules the rules returned by AgentClientPython.getSystemRules
+     * @return the SHA-256 of the normalized rules, as hex string
+     */
+    public static String ofRules(List<Rules> rules) {
+        return digest(rules.stream()
+                .map(r -> field(r.getName()) + '\u001f' + field(r.getDescr()) + '\u001f' + r.isStatus())
+                .sorted()
+                .toList());
+    }
+
+    private static String field(String value) {
+        return Objects.toString(value, "").trim();
+    }
+
+    private static String digest(List<String> rows) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (String row : rows) {
+                sha.update(row.getBytes(StandardCharsets.UTF_8));
+                sha.update((byte) '\n');
+            }
+            return HexFormat.of().formatHex(sha.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
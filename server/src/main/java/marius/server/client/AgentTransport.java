@@ -0,0 +1,202 @@
+package marius.server.client;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transport used by {@link AgentClientPython} to reach the agents.
+ * The connections are kept alive and reused by the HttpClient, this class bounds how many of them are used:
+ * at most maxPerHost requests in flight for each agent and maxConnections in total, the others wait in a
+ * queue without holding a thread. Every operation has its own response timeout and overall deadline,
+ * the deadline covers also the time spent waiting for a connection.
+ * <p>
+ * The defaults are agent.transport.request-timeout-ms and agent.transport.deadline-ms, they can be changed
+ * for a single operation with agent.transport.operations.&lt;operation&gt;.request-timeout-ms and .deadline-ms,
+ * where the operation is the name of the {@link AgentOperation} in kebab case (e.g. get-lynis-report).
+ * The same prefix with slow-call-ms sets when a call is slow for the circuit breaker, the default is agent.circuit.slow-call-ms.
+ */
+@Component
+public class AgentTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(AgentTransport.class);
+
+    /**
+     * Timeouts of an operation
+     * @param requestTimeout the maximum wait for the response once the request is sent
+     * @param deadline the maximum duration of the whole call, queueing included
+     * @param slowCallThreshold calls longer than this are counted as slow by the circuit breaker
+     */
+    public record OperationSettings(Duration requestTimeout, Duration deadline, Duration slowCallThreshold) {}
+
+    /**
+     * Outcome of a request, a tag of its timer
+     */
+    private enum Outcome { SUCCESS, TIMEOUT, ERROR }
+
+    private final HttpClient httpClient;
+    // one timer for every operation and outcome, registered once: the completion of a request only records
+    private final Map<AgentOperation, Map<Outcome, Timer>> timers = new EnumMap<>(AgentOperation.class);
+    private final AsyncPermits globalPermits;
+    private final int maxPerHost;
+    private final Map<String, AsyncPermits> hostPermits = new ConcurrentHashMap<>();
+    private final Map<AgentOperation, OperationSettings> settings = new EnumMap<>(AgentOperation.class);
+
+    public AgentTransport(HttpClient agentHttpClient, Environment environment, MeterRegistry meterRegistry,
+                          @Value("${agent.transport.max-connections:256}") int maxConnections,
+                          @Value("${agent.transport.max-connections-per-host:4}") int maxPerHost,
+                          @Value("${agent.transport.request-timeout-ms:10000}") long requestTimeoutMillis,
+                          @Value("${agent.transport.deadline-ms:15000}") long deadlineMillis) {
+        this.httpClient = agentHttpClient;
+        this.globalPermits = new AsyncPermits(maxConnections);
+        this.maxPerHost = maxPerHost;
+        long slowCallMillis = environment.getProperty("agent.circuit.slow-call-ms", Long.class, 5000L);
+        for (AgentOperation operation : AgentOperation.values()) {
+            String prefix = "agent.transport.operations." + propertyName(operation) + ".";
+            long request = environment.getProperty(prefix + "request-timeout-ms", Long.class, requestTimeoutMillis);
+            long deadline = environment.getProperty(prefix + "deadline-ms", Long.class, Math.max(deadlineMillis, request));
+            long slowCall = environment.getProperty(prefix + "slow-call-ms", Long.class, Math.min(slowCallMillis, request));
+            settings.put(operation, new OperationSettings(Duration.ofMillis(request), Duration.ofMillis(deadline),
+                    Duration.ofMillis(slowCall)));
+            Map<Outcome, Timer> byOutcome = new EnumMap<>(Outcome.class);
+            for (Outcome outcome : Outcome.values()) {
+                byOutcome.put(outcome, Timer.builder("corvo.agent.transport.requests")
+                        .description("Duration of the requests to the agents")
+                        .tag("operation", propertyName(operation))
+                        .tag("outcome", outcome.name().toLowerCase())
+                        .register(meterRegistry));
+            }
+            timers.put(operation, byOutcome);
+        }
+        log.info("Agent transport: max {} connessioni, {} per agent, timeout {}", maxConnections, maxPerHost, settings);
+
+        Gauge.builder("corvo.agent.transport.connections.active", globalPermits, AsyncPermits::inUse)
+                .description("Requests to the agents holding a connection")
+                .register(meterRegistry);
+        Gauge.builder("corvo.agent.transport.connections.max", globalPermits, AsyncPermits::limit)
+                .description("Maximum number of concurrent connections to the agents")
+                .register(meterRegistry);
+        Gauge.builder("corvo.agent.transport.queued", this, AgentTransport::queued)
+                .description("Requests to the agents waiting for a connection")
+                .register(meterRegistry);
+        Gauge.builder("corvo.agent.transport.hosts", hostPermits, Map::size)
+                .description("Agents with a connection pool")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Sends a request to an agent without blocking the caller
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     * @param operation the operation, used to choose the timeouts
+     * @param request the request, the timeout is set by the transport
+     * @param bodyHandler the handler of the response body
+     * @return the future of the response, completed exceptionally with a {@link TimeoutException} when the deadline expires
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(String host, int port, AgentOperation operation,
+                                                       HttpRequest.Builder request, HttpResponse.BodyHandler<T> bodyHandler) {
+        OperationSettings operationSettings = settings.get(operation);
+        HttpRequest httpRequest = request.timeout(operationSettings.requestTimeout()).build();
+        AsyncPermits hostPool = hostPermits.computeIfAbsent(host + ":" + port, k -> new AsyncPermits(maxPerHost));
+        long start = System.nanoTime();
+
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        CompletableFuture<Void> hostWait = hostPool.acquire();
+        hostWait.whenComplete((granted, hostError) -> {
+            if (hostError != null) {
+                return;
+            }
+            if (result.isDone()) {
+                hostPool.release();
+                return;
+            }
+            CompletableFuture<Void> globalWait = globalPermits.acquire();
+            result.whenComplete((r, e) -> globalWait.cancel(false));
+            globalWait.whenComplete((globalGranted, globalError) -> {
+                if (globalError != null) {
+                    hostPool.release();
+                    return;
+                }
+                if (result.isDone()) {
+                    globalPermits.release();
+                    hostPool.release();
+                    return;
+                }
+                CompletableFuture<HttpResponse<T>> call = httpClient.sendAsync(httpRequest, bodyHandler);
+                // when the deadline expires first the exchange is aborted and its connection closed
+                result.whenComplete((r, e) -> call.cancel(true));
+                call.whenComplete((response, callError) -> {
+                    globalPermits.release();
+                    hostPool.release();
+                    if (callError != null) {
+                        result.completeExceptionally(callError);
+                    } else {
+                        result.complete(response);
+                    }
+                });
+            });
+        });
+        result.whenComplete((r, e) -> hostWait.cancel(false));
+        result.orTimeout(operationSettings.deadline().toMillis(), TimeUnit.MILLISECONDS);
+        Map<Outcome, Timer> operationTimers = timers.get(operation);
+        result.whenComplete((r, e) -> operationTimers.get(outcome(e)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        return result;
+    }
+
+    /**
+     * Forgets the connection pool of the agent, the calls still in flight release their permits to the old one
+     * @param host the host address of the agent
+     * @param port the port of the agent
+     */
+    public void removeHost(String host, int port) {
+        hostPermits.remove(host + ":" + port);
+    }
+
+    /**
+     * @return the timeouts of every operation
+     */
+    public Map<AgentOperation, OperationSettings> getSettings() {
+        return Collections.unmodifiableMap(settings);
+    }
+
+    private int queued() {
+        int queued = globalPermits.queued();
+        for (AsyncPermits pool : hostPermits.values()) {
+            queued += pool.queued();
+        }
+        return queued;
+    }
+
+    private static Outcome outcome(Throwable e) {
+        if (e == null) {
+            return Outcome.SUCCESS;
+        }
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        if (e instanceof TimeoutException || cause instanceof TimeoutException || cause instanceof HttpTimeoutException) {
+            return Outcome.TIMEOUT;
+        }
+        return Outcome.ERROR;
+    }
+
+    static String propertyName(AgentOperation operation) {
+        return operation.name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,17 @@
+package marius.server.client;
+
+/**
+ * Raised without contacting the agent when its circuit breaker is open
+ */
+public class AgentUnavailableException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    public AgentUnavailableException(String host, int port, long retryAfterMillis) {
+        super("circuit aperto per l'agent " + host + ":" + port + ", riprovare tra " + retryAfterMillis + "ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
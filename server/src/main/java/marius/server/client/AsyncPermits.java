@@ -0,0 +1,71 @@
+package marius.server.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Counting semaphore that never blocks: when no permit is free the caller receives a future
+ * completed as soon as a permit is released. A waiter that is cancelled or timed out before
+ * being served is skipped, so its permit goes to the next one.
+ */
+final class AsyncPermits {
+
+    private final int limit;
+    private int available;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    AsyncPermits(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        this.limit = limit;
+        this.available = limit;
+    }
+
+    /**
+     * @return a future completed when the permit is granted
+     */
+    CompletableFuture<Void> acquire() {
+        synchronized (this) {
+            if (available > 0) {
+                available--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Gives the permit to the first waiter still interested in it, or back to the pool
+     */
+    void release() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiters.poll();
+                if (next == null) {
+                    available = Math.min(limit, available + 1);
+                    return;
+                }
+            }
+            // completed outside the lock, the waiter continues on this thread
+            if (next.complete(null)) {
+                return;
+            }
+        }
+    }
+
+    synchronized int inUse() {
+        return limit - available;
+    }
+
+    synchronized int queued() {
+        return waiters.size();
+    }
+
+    int limit() {
+        return limit;
+    }
+}
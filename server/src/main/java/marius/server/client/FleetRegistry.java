@@ -0,0 +1,188 @@
+package marius.server.client;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the agents known by the server and of their state.
+ * The entries are immutable and every change is atomic for its agent (a compute on its key), so a change costs
+ * the same with any fleet size and the changes of different agents do not contend.
+ * The request threads read an agent without locks, the snapshot of the whole fleet is built only when asked.
+ */
+@Component
+public class FleetRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(FleetRegistry.class);
+
+    public enum AgentState {
+        // added, the first handshake is in progress
+        REGISTERING,
+        // handshake done, pinged periodically
+        ACTIVE,
+        // the ping failed, the connection is retried with backoff
+        DEGRADED,
+        // all the attempts failed, the agent waits for a new registration
+        DOWN;
+
+        private Set<AgentState> next;
+
+        static {
+            REGISTERING.next = EnumSet.of(ACTIVE, DEGRADED, DOWN);
+            ACTIVE.next = EnumSet.of(DEGRADED, DOWN);
+            DEGRADED.next = EnumSet.of(ACTIVE, DOWN);
+            DOWN.next = EnumSet.of(REGISTERING);
+        }
+
+        public boolean canMoveTo(AgentState state) {
+            return next.contains(state);
+        }
+
+        /**
+         * @return true if the live calls to the agent are worth trying
+         */
+        public boolean isReachable() {
+            return this == REGISTERING || this == ACTIVE;
+        }
+    }
+
+    /**
+     * Immutable entry of an agent
+     * @param ip the IP v4 address of the agent
+     * @param port the port of the agent
+     * @param state the current state
+     * @param since when the agent entered the state
+     */
+    public record AgentEntry(String ip, int port, AgentState state, Instant since) {
+        public boolean isReachable() {
+            return state.isReachable();
+        }
+    }
+
+    private final Map<String, AgentEntry> fleet = new ConcurrentHashMap<>();
+    // agents by state, kept with the entries so the gauges do not scan the fleet
+    private final Map<AgentState, AtomicInteger> counts = new EnumMap<>(AgentState.class);
+
+    public FleetRegistry(MeterRegistry meterRegistry) {
+        for (AgentState state : AgentState.values()) {
+            counts.put(state, new AtomicInteger());
+            Gauge.builder("corvo.agent.fleet.agents", this, r -> r.count(state))
+                    .description("Agents in the registry by state")
+                    .tag("state", state.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Adds the agent as REGISTERING, a DOWN agent is registered again
+     * @param ip the IP v4 address of the agent
+     * @param port the port of the agent
+     * @return true if the agent is now REGISTERING, false if it is already registering, active or degraded
+     */
+    public boolean register(String ip, int port) {
+        AgentEntry entry = new AgentEntry(ip, port, AgentState.REGISTERING, Instant.now());
+        boolean[] registered = new boolean[1];
+        fleet.compute(ip, (key, old) -> {
+            if (old != null && !old.state().canMoveTo(AgentState.REGISTERING)) {
+                return old;
+            }
+            moved(old, entry);
+            registered[0] = true;
+            return entry;
+        });
+        return registered[0];
+    }
+
+    /**
+     * Moves the agent to the state if the transition is allowed
+     * @param ip the IP v4 address of the agent
+     * @param state the new state
+     * @return true if the agent is now in the state, false if it is unknown or the transition is not allowed
+     */
+    public boolean transition(String ip, AgentState state) {
+        AgentEntry[] previous = new AgentEntry[1];
+        AgentEntry current = fleet.computeIfPresent(ip, (key, old) -> {
+            previous[0] = old;
+            if (old.state() == state || !old.state().canMoveTo(state)) {
+                return old;
+            }
+            AgentEntry entry = new AgentEntry(ip, old.port(), state, Instant.now());
+            moved(old, entry);
+            return entry;
+        });
+        AgentEntry old = previous[0];
+        if (current == null || old == null) {
+            return false;
+        }
+        if (current.state() != state) {
+            log.warn("Transizione non valida per agente {}: {} -> {}", ip, old.state(), state);
+            return false;
+        }
+        if (current != old) {
+            log.info("Agente {}: {} -> {}", ip, old.state(), state);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the agent was in the registry
+     */
+    public boolean remove(String ip) {
+        boolean[] removed = new boolean[1];
+        fleet.computeIfPresent(ip, (key, old) -> {
+            moved(old, null);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * @return the entry of the agent, null if unknown
+     */
+    public AgentEntry get(String ip) {
+        return fleet.get(ip);
+    }
+
+    /**
+     * @return the entry of the agent if the live calls to it are worth trying, null otherwise
+     */
+    public AgentEntry getReachable(String ip) {
+        AgentEntry entry = fleet.get(ip);
+        return entry != null && entry.isReachable() ? entry : null;
+    }
+
+    /**
+     * Copies the fleet, meant for the status endpoints and not for the hot paths
+     * @return an immutable snapshot of the whole fleet, the key is the ip of the agent
+     */
+    public Map<String, AgentEntry> snapshot() {
+        return Map.copyOf(fleet);
+    }
+
+    private int count(AgentState state) {
+        return counts.get(state).get();
+    }
+
+    /**
+     * Called inside the compute of the agent, so the counts move together with its entry
+     */
+    private void moved(AgentEntry old, AgentEntry entry) {
+        if (old != null) {
+            counts.get(old.state()).decrementAndGet();
+        }
+        if (entry != null) {
+            counts.get(entry.state()).incrementAndGet();
+        }
+    }
+}
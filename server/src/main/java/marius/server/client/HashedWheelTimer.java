@@ -0,0 +1,229 @@
+package marius.server.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Timer that keeps the timeouts in a wheel of buckets instead of a priority queue.
+ * A single thread advances the wheel once per tick and hands all the timeouts expired in that tick
+ * to the dispatcher as one batch, so scheduling and cancelling are O(1) and many agents
+ * do not mean many entries in the heap of a ScheduledThreadPoolExecutor.
+ * Timeouts fire with the precision of a tick.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * Handle of a scheduled task
+     */
+    public interface Timeout {
+        /**
+         * @return true if the task is cancelled by this call, false if it is already expired or cancelled
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<WheelTimeout>[] wheel;
+    // new timeouts are added by any thread and moved in the wheel by the tick thread
+    private final Queue<WheelTimeout> pending = new ConcurrentLinkedQueue<>();
+    private final Consumer<List<Runnable>> dispatcher;
+    private final AtomicInteger size = new AtomicInteger();
+    private final Thread tickThread;
+    private volatile boolean running = true;
+    private final long startTime;
+    private long tick;
+
+    /**
+     * @param name the name of the tick thread
+     * @param tickDuration the duration of a tick
+     * @param unit the unit of tickDuration
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     * @param dispatcher receives the tasks expired in a tick, it must not block the tick thread
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel,
+                            Consumer<List<Runnable>> dispatcher) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0 || ticksPerWheel > (1 << 20)) {
+            throw new IllegalArgumentException("invalid wheel: tick=" + tickDuration + " buckets=" + ticksPerWheel);
+        }
+        int buckets = 1;
+        while (buckets < ticksPerWheel) {
+            buckets <<= 1;
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = buckets - 1;
+        this.wheel = new List[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.dispatcher = dispatcher;
+        this.startTime = System.nanoTime();
+        this.tickThread = new Thread(this::run, name);
+        this.tickThread.setDaemon(true);
+        this.tickThread.start();
+    }
+
+    /**
+     * Schedules a task to run once after the given delay
+     * @param task the task, executed by the dispatcher
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the handle used to cancel the task
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("timer stopped");
+        }
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        WheelTimeout timeout = new WheelTimeout(task, deadline);
+        size.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of scheduled timeouts not yet expired or cancelled
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of buckets of the wheel
+     */
+    public int getBuckets() {
+        return wheel.length;
+    }
+
+    /**
+     * Stops the tick thread, the pending timeouts are discarded
+     */
+    public void stop() {
+        running = false;
+        tickThread.interrupt();
+        try {
+            tickThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            if (!waitForNextTick()) {
+                break;
+            }
+            transferPending();
+            List<Runnable> expired = expireBucket(wheel[(int) (tick & mask)]);
+            tick++;
+            if (!expired.isEmpty()) {
+                try {
+                    dispatcher.accept(expired);
+                } catch (RuntimeException e) {
+                    log.error("Errore nel dispatch di {} timeout: ", expired.size(), e);
+                }
+            }
+        }
+    }
+
+    private boolean waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepNanos = startTime + deadline - System.nanoTime();
+            if (sleepNanos <= 0) {
+                return true;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void transferPending() {
+        WheelTimeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // a deadline already passed goes in the current bucket
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private List<Runnable> expireBucket(List<WheelTimeout> bucket) {
+        List<Runnable> expired = new ArrayList<>();
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            WheelTimeout timeout = bucket.get(i);
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            if (timeout.remainingRounds <= 0) {
+                if (timeout.expire()) {
+                    expired.add(timeout.task);
+                }
+                continue;
+            }
+            timeout.remainingRounds--;
+            bucket.set(kept++, timeout);
+        }
+        bucket.subList(kept, bucket.size()).clear();
+        return expired;
+    }
+
+    private final class WheelTimeout implements Timeout {
+        private static final int ST_INIT = 0, ST_CANCELLED = 1, ST_EXPIRED = 2;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        // touched only by the tick thread
+        private long remainingRounds;
+
+        private WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        private boolean expire() {
+            if (state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,25 +1,29 @@
 package marius.server.client;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PreDestroy;
-import marius.server.controller.ServerController;
 import marius.server.data.AgentService;
 import marius.server.data.Lynis;
 import marius.server.data.Rules;
 import marius.server.data.Server;
+import marius.server.data.dto.AgentPollingStateDTO;
+import marius.server.data.dto.AgentRetryStateDTO;
+import marius.server.repo.AgentStateStore;
 import marius.server.repo.LynisRepo;
-import marius.server.repo.RulesRepo;
 import marius.server.repo.ServerRepo;
-import marius.server.repo.ServiceRepo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.annotation.Lazy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 /*
@@ -29,29 +33,109 @@ public class LocalAgentRegistration {
 
     private static final Logger log = LoggerFactory.getLogger(LocalAgentRegistration.class);
     private final AgentClientPython client;
+    private final AgentStatusCache statusCache;
+    private final AgentStateStore stateStore;
     private final ServerRepo serverRepo;
-    private static ServiceRepo serviceRepo;
-    private static RulesRepo rulesRepo;
-    private final ServerController serverController;
+    private final FleetRegistry fleet;
+    private final AgentCircuitBreakers circuitBreakers;
+    private final AgentTransport transport;
     private final LynisRepo lynisRepo;
-    private final Map<String, ScheduledFuture<?>> pingSchedulers = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService executorService;
-    private final Long MINUTE_IN_MILLIS = 60000L;
-    private final Long TIME_TO_WAIT = MINUTE_IN_MILLIS / 2;
-
-    public LocalAgentRegistration(AgentClientPython client, ServerRepo serverRepo,
-                                  @Lazy ServerController serverController, LynisRepo lynisRepo,ServiceRepo serviceRepo,RulesRepo rulesRepo) {
+    // agents with a periodic ping, the key is the ip of the agent
+    private final Map<String, PollEntry> pingSchedulers = new ConcurrentHashMap<>();
+    // current polling interval of every agent, kept also while the agent is retrying
+    private final Map<String, AgentPollingStateDTO> pollingStates = new ConcurrentHashMap<>();
+    private final AdaptivePollingPolicy pollingPolicy;
+    // tick loop of the whole fleet, null unless agent.scheduler.mode=fleet
+    private final HashedWheelTimer fleetTimer;
+    private final Semaphore fleetPermits;
+    // agents whose periodic sync is running right now, used to avoid overlapping syncs of the same agent
+    private final Set<String> syncInProgress = ConcurrentHashMap.newKeySet();
+    // platform threads used only for timing, the work is handed off to workers
+    private final ScheduledExecutorService scheduler;
+    // runs the lifecycle of the agents (init, retry, periodic sync, failure handling)
+    private final ExecutorService workers;
+    // pending onboarding retries, the key is the ip of the agent
+    private final Map<String, ScheduledFuture<?>> retryTasks = new ConcurrentHashMap<>();
+    private final Map<String, AgentRetryStateDTO> retryStates = new ConcurrentHashMap<>();
+    // generation of the lifecycle of every supervised agent: removeAgent drops it, so the init, retry and poll tasks
+    // still running for a removed agent do not schedule it again
+    private final Map<String, Long> lifecycles = new ConcurrentHashMap<>();
+    private final AtomicLong lifecycleIds = new AtomicLong();
+    private final AgentRetryPolicy retryPolicy;
+    // fingerprints of the last services and rules written on the database, the key is the ip of the agent
+    private final Map<String, String> servicesFingerprints = new ConcurrentHashMap<>();
+    private final Map<String, String> rulesFingerprints = new ConcurrentHashMap<>();
+    private final Map<SyncResult, Counter> syncCounters = new EnumMap<>(SyncResult.class);
+    // agents given up and not yet written down on the database
+    private final Set<String> pendingDown = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean downFlushScheduled = new AtomicBoolean();
+    private final long downCoalesceMillis;
+
+    public LocalAgentRegistration(AgentClientPython client, AgentStatusCache statusCache, AgentStateStore stateStore,
+                                  ServerRepo serverRepo,
+                                  FleetRegistry fleet, AgentCircuitBreakers circuitBreakers, AgentTransport transport,
+                                  LynisRepo lynisRepo,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${agent.supervisor.virtual-threads:true}") boolean virtualThreads,
+                                  @Value("${agent.supervisor.scheduler-threads:2}") int schedulerThreads,
+                                  @Value("${agent.retry.base-delay-ms:5000}") long retryBaseDelay,
+                                  @Value("${agent.retry.max-delay-ms:300000}") long retryMaxDelay,
+                                  @Value("${agent.retry.max-attempts:10}") int retryMaxAttempts,
+                                  @Value("${agent.poll.interval-ms:300000}") long pollIntervalMillis,
+                                  @Value("${agent.poll.min-interval-ms:60000}") long pollMinIntervalMillis,
+                                  @Value("${agent.poll.max-interval-ms:1800000}") long pollMaxIntervalMillis,
+                                  @Value("${agent.poll.growth-factor:1.5}") double pollGrowthFactor,
+                                  @Value("${agent.scheduler.mode:per-agent}") String schedulerMode,
+                                  @Value("${agent.fleet.tick-ms:1000}") long fleetTickMillis,
+                                  @Value("${agent.fleet.wheel-size:512}") int fleetWheelSize,
+                                  @Value("${agent.fleet.max-parallel:64}") int fleetMaxParallel,
+                                  @Value("${agent.down.coalesce-ms:100}") long downCoalesceMillis) {
         this.client = client;
+        this.statusCache = statusCache;
+        this.stateStore = stateStore;
         this.serverRepo = serverRepo;
-        this.serverController = serverController;
+        this.fleet = fleet;
+        this.circuitBreakers = circuitBreakers;
+        this.transport = transport;
         this.lynisRepo = lynisRepo;
-        this.serviceRepo = serviceRepo;
-        this.rulesRepo = rulesRepo;
-        this.executorService = Executors.newScheduledThreadPool(10, r -> {
-            Thread t = new Thread(r, "AgentManager-" + System.currentTimeMillis());
+        this.retryPolicy = new AgentRetryPolicy(retryBaseDelay, retryMaxDelay, retryMaxAttempts);
+        this.downCoalesceMillis = Math.max(0, downCoalesceMillis);
+        for (SyncResult result : SyncResult.values()) {
+            syncCounters.put(result, Counter.builder("corvo.agent.sync")
+                    .description("Syncs with the agents by result, unchanged syncs do not write on the database")
+                    .tag("result", result.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(1, schedulerThreads), r -> {
+            Thread t = new Thread(r, "AgentScheduler-" + System.currentTimeMillis());
             t.setDaemon(true);
             return t;
         });
+        if (virtualThreads) {
+            // every agent task gets its own virtual thread, a blocked agent does not starve the others
+            this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("AgentWorker-", 0).factory());
+        } else {
+            this.workers = Executors.newFixedThreadPool(10, r -> {
+                Thread t = new Thread(r, "AgentManager-" + System.currentTimeMillis());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.pollingPolicy = new AdaptivePollingPolicy(pollMinIntervalMillis, pollIntervalMillis, pollMaxIntervalMillis, pollGrowthFactor);
+        if ("fleet".equalsIgnoreCase(schedulerMode)) {
+            // one tick loop for the whole fleet, the agents of a slot are pinged together with bounded parallelism
+            this.fleetPermits = new Semaphore(Math.max(1, fleetMaxParallel));
+            this.fleetTimer = new HashedWheelTimer("AgentFleetTick", fleetTickMillis, TimeUnit.MILLISECONDS,
+                    fleetWheelSize, this::dispatchFleetSlot);
+            Gauge.builder("corvo.agent.fleet.scheduled", fleetTimer, HashedWheelTimer::size)
+                    .description("Agents waiting for their next tick in the fleet scheduler")
+                    .register(meterRegistry);
+        } else {
+            this.fleetPermits = null;
+            this.fleetTimer = null;
+        }
+        log.info("Supervisore agenti avviato: virtualThreads={}, schedulerThreads={}, mode={}",
+                virtualThreads, schedulerThreads, schedulerMode);
     }
 
 
@@ -65,117 +149,214 @@ public class LocalAgentRegistration {
     public boolean registerAgent(String ip, int port) {
         log.info("Registrazione nuovo agente: {}:{}", ip, port);
 
-        // Verifica se l'agente è già registrato
-        if (pingSchedulers.containsKey(ip)) {
+        // Verifica se l'agente è già registrato o in attesa di un nuovo tentativo
+        if (pingSchedulers.containsKey(ip)
+                || retryStates.putIfAbsent(ip, new AgentRetryStateDTO(ip, port, 0, retryPolicy.getMaxAttempts(), 0, Instant.now(), null)) != null) {
             log.warn("Agente {} già registrato", ip);
             return false;
         }
 
-        // Avvia il processo di inizializzazione in un thread separato
-        CompletableFuture.runAsync(() -> initAgent(ip, port), executorService)
-                .exceptionally(throwable -> {
-                    log.error("Errore durante l'inizializzazione dell'agente {}: ", ip, throwable);
-                    return null;
-                });
+        FleetRegistry.AgentEntry previous = fleet.get(ip);
+        if (previous != null && previous.port() != port) {
+            // the agent moved to another port, the state kept for the old address is of no use
+            forgetAddress(ip, previous.port());
+        }
+        long lifecycle = lifecycleIds.incrementAndGet();
+        lifecycles.put(ip, lifecycle);
+        fleet.register(ip, port);
+        // Avvia il primo tentativo di inizializzazione in un thread separato
+        workers.execute(() -> initAgent(ip, port, 0, lifecycle));
 
         return true;
     }
 
     /**
-     * Init the comunication between java server and the agent python
+     * Single attempt to init the comunication between java server and the agent python,
+     * if it fails the next attempt is scheduled with exponential backoff and jitter instead of blocking the thread
      * @param ip the IP v4 address of the agent
      * @param port the port
+     * @param attempt the number of attempts already failed for the agent
+     * @param lifecycle the lifecycle the attempt belongs to
      */
-    private void initAgent(String ip, int port) {
-        log.info("Inizializzazione agente {}:{}", ip, port);
-
-        boolean connectionEstablished = false;
-        int retryCount = 0;
-        int maxRetries = 10;
-
-        while (!connectionEstablished && retryCount < maxRetries && !Thread.currentThread().isInterrupted()) {
-            try {
-                boolean pingResult = client.pingAgent(ip, port);
-                if (pingResult) {
-                    log.info("Ping riuscito per agente {}", ip);
-
-                    if (setupAgent(ip, port)) {
-                        connectionEstablished = true;
-                        startPeriodicPing(ip, port);
-                        log.info("Agente {} inizializzato con successo", ip);
-                    } else {
-                        log.warn("Setup fallito per agente {}", ip);
-                    }
-                } else {
-                    log.warn("Ping fallito per agente {}, tentativo {}/{}", ip, retryCount + 1, maxRetries);
-                }
-
-                if (!connectionEstablished) {
-                    retryCount++;
-                    Thread.sleep(TIME_TO_WAIT);
-                }
-
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.info("Inizializzazione agente {} interrotta", ip);
-                return;
-            } catch (Exception e) {
-                log.error("Errore durante inizializzazione agente {}: ", ip, e);
-                retryCount++;
-                try {
-                    Thread.sleep(TIME_TO_WAIT);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
+    private void initAgent(String ip, int port, int attempt, long lifecycle) {
+        if (!isCurrent(ip, lifecycle)) {
+            log.info("Agente {} rimosso, inizializzazione annullata", ip);
+            return;
+        }
+        log.info("Inizializzazione agente {}:{}, tentativo {}/{}", ip, port, attempt + 1, retryPolicy.getMaxAttempts());
+        retryTasks.remove(ip);
+        String error;
+        try {
+            if (client.pingAgent(ip, port)) {
+                log.info("Ping riuscito per agente {}", ip);
+                if (setupAgent(ip, port) != SyncResult.FAILED) {
+                    boolean current = whileCurrent(ip, lifecycle, () -> {
+                        fleet.transition(ip, FleetRegistry.AgentState.ACTIVE);
+                        // the ping entry goes in before the retry state goes out, so a concurrent registerAgent
+                        // always finds the agent supervised and does not start a second lifecycle
+                        startPeriodicPing(ip, port, lifecycle);
+                        retryStates.remove(ip);
+                    });
+                    log.info(current ? "Agente {} inizializzato con successo" : "Agente {} rimosso durante l'inizializzazione", ip);
                     return;
                 }
+                log.warn("Setup fallito per agente {}", ip);
+                error = "setup failed";
+            } else {
+                log.warn("Ping fallito per agente {}, tentativo {}/{}", ip, attempt + 1, retryPolicy.getMaxAttempts());
+                error = "ping failed";
             }
+        } catch (Exception e) {
+            log.error("Errore durante inizializzazione agente {}: ", ip, e);
+            error = e.getMessage();
         }
+        String lastError = error;
+        whileCurrent(ip, lifecycle, () -> scheduleRetry(ip, port, attempt + 1, lastError, lifecycle));
+    }
+
+    /**
+     * @return true if the agent has not been removed or registered again since the lifecycle started
+     */
+    private boolean isCurrent(String ip, long lifecycle) {
+        Long current = lifecycles.get(ip);
+        return current != null && current == lifecycle;
+    }
+
+    /**
+     * Runs the action only if the lifecycle is still the current one of the agent, atomically with removeAgent:
+     * a removal either waits for the action, and then undoes it, or comes first and the action is skipped.
+     * The action must be short and must not call this method again
+     * @return true if the action ran
+     */
+    private boolean whileCurrent(String ip, long lifecycle, Runnable action) {
+        boolean[] ran = new boolean[1];
+        lifecycles.computeIfPresent(ip, (key, current) -> {
+            if (current == lifecycle) {
+                action.run();
+                ran[0] = true;
+            }
+            return current;
+        });
+        return ran[0];
+    }
 
-        if (!connectionEstablished) {
-            log.error("Impossibile stabilire connessione con agente {} dopo {} tentativi", ip, maxRetries);
-            serverController.removeActiveNode(ip);
-            Optional<Server> tmp_server = serverRepo.findByIp(ip);
-            if (tmp_server.isPresent()) {
-                tmp_server.get().setState(false);
-                // set the status of the server down on database
-                serverRepo.save(tmp_server.get());
-                setsDownServices(ip);
-                setsDownRule(ip);
+    /**
+     * Schedules the next init attempt of the agent or gives up when its attempt budget is exhausted,
+     * called through {@link #whileCurrent(String, long, Runnable)}
+     * @param ip the IP v4 address of the agent
+     * @param port the port
+     * @param failedAttempts the number of attempts failed so far
+     * @param error the reason of the last failure
+     * @param lifecycle the lifecycle the next attempt belongs to
+     */
+    private void scheduleRetry(String ip, int port, int failedAttempts, String error, long lifecycle) {
+        if (!retryPolicy.canRetry(failedAttempts)) {
+            markAgentDown(ip, failedAttempts);
+            retryStates.remove(ip);
+            return;
+        }
+        long delay = retryPolicy.nextDelayMillis(failedAttempts - 1);
+        retryStates.put(ip, new AgentRetryStateDTO(ip, port, failedAttempts, retryPolicy.getMaxAttempts(),
+                delay, Instant.now().plusMillis(delay), error));
+        log.info("Nuovo tentativo per agente {} tra {} ms", ip, delay);
+        try {
+            retryTasks.put(ip, scheduler.schedule(() -> workers.execute(() -> initAgent(ip, port, failedAttempts, lifecycle)),
+                    delay, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            log.info("Scheduler fermato, nessun nuovo tentativo per agente {}", ip);
+            retryStates.remove(ip);
+        }
+    }
 
+    /**
+     * Sets the agent and its services and rules down after the last failed attempt
+     * @param ip the IP v4 address of the agent
+     * @param attempts the number of failed attempts
+     */
+    private void markAgentDown(String ip, int attempts) {
+        log.error("Impossibile stabilire connessione con agente {} dopo {} tentativi", ip, attempts);
+        // services and rules are set down on the database, the next successful sync must write them again
+        forgetFingerprints(ip);
+        fleet.transition(ip, FleetRegistry.AgentState.DOWN);
+        pendingDown.add(ip);
+        // the hosts that fall together (e.g. a network partition) are written down in one transaction
+        if (downFlushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(() -> {
+                    try {
+                        workers.execute(this::flushDownHosts);
+                    } catch (RejectedExecutionException e) {
+                        flushDownHosts();
+                    }
+                }, downCoalesceMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushDownHosts();
             }
         }
     }
 
-    private void setsDownRule(String ip) {
-        List<Rules> dbRules = rulesRepo.findByIp(ip).get();
-        for (Rules dbRule : dbRules) {
-            dbRule.setStatus(false);
+    /**
+     * Sets down on the database the servers collected by markAgentDown, with their services and rules
+     */
+    private void flushDownHosts() {
+        // reset before draining: an ip added from now on schedules the next flush
+        downFlushScheduled.set(false);
+        List<String> ips = new ArrayList<>();
+        for (Iterator<String> it = pendingDown.iterator(); it.hasNext(); ) {
+            ips.add(it.next());
+            it.remove();
+        }
+        if (ips.isEmpty()) {
+            return;
+        }
+        try {
+            AgentStateStore.HostsDown down = stateStore.markHostsDown(ips);
+            log.info("Agenti {} segnati down: {} server, {} servizi, {} regole",
+                    ips, down.servers(), down.services(), down.rules());
+        } catch (RuntimeException e) {
+            log.error("Errore nel segnare down gli agenti {}: ", ips, e);
         }
-        rulesRepo.saveAll(dbRules);
     }
 
-    private void setsDownServices(String ip) {
-        List<AgentService> servicesIp = serviceRepo.findAllByIp(ip);
-       for (AgentService service : servicesIp) {
-           service.setState(false);
-       }
-       serviceRepo.saveAll(servicesIp);
+    /**
+     * @return the retry state of the agents that are not connected yet
+     */
+    public List<AgentRetryStateDTO> getRetryStates() {
+        return new ArrayList<>(retryStates.values());
     }
 
+    /**
+     * Result of a sync with an agent
+     */
+    private enum SyncResult {
+        // the handshake or the download of services/rules failed
+        FAILED,
+        // services and rules are the same of the last sync, nothing written on the database
+        UNCHANGED,
+        // services or rules are changed and written on the database
+        CHANGED
+    }
 
     /**
-     * Method that sets a java user for the agent identified with IP and Port and gets the status of active rules
+     * Method that sets a java user for the agent identified with IP and Port and gets the status of active rules.
+     * Services and rules are written on the database only when their fingerprint differs from the last persisted one.
      * @param ip the ip of the agent
      * @param port the port user by the agent
-     * @return true if the java server make a handshake with the python agent
+     * @return FAILED if the java server can't make a handshake with the python agent, UNCHANGED or CHANGED otherwise
      */
-    private boolean setupAgent(String ip, int port) {
+    private SyncResult setupAgent(String ip, int port) {
+        SyncResult result = doSetupAgent(ip, port);
+        syncCounters.get(result).increment();
+        return result;
+    }
+
+    private SyncResult doSetupAgent(String ip, int port) {
         try {
             // Imposta l'utente attivo
             boolean setUser = client.setActiveUser(ip, port, "java");
             if (!setUser) {
                 log.error("Impossibile impostare utente attivo per agente {}", ip);
-                return false;
+                return SyncResult.FAILED;
             }
 
             log.info("Utente impostato con successo per agente {}", ip);
@@ -186,110 +367,64 @@ public class LocalAgentRegistration {
                 processServerStatus(statusJson, ip, port);
             }
 
+            boolean changed = false;
             List<AgentService> services = client.getServiceStatus(ip,port);
             if (services != null && !services.isEmpty()) {
-                List<AgentService> dbServices = serviceRepo.findAllByIp(ip);
-                if (dbServices != null && !dbServices.isEmpty()) {
-                    //updateServices(ip,dbServices,services);
-                    updateServicesAlt(ip,services);
-                }
-                else {
-                    this.serviceRepo.saveAll(services);
+                // la UI legge i dati appena letti senza interrogare di nuovo l'agente
+                statusCache.putServices(ip, services);
+                String fingerprint = AgentSyncFingerprint.ofServices(services);
+                if (fingerprint.equals(servicesFingerprints.get(ip))) {
+                    log.debug("Servizi invariati per agente {}, nessuna scrittura", ip);
+                } else {
+                    AgentStateStore.Reconciliation result = stateStore.reconcileServices(ip, services);
+                    log.info("Servizi dell'agente {} riconciliati: {} inseriti o aggiornati, {} rimossi",
+                            ip, result.upserted(), result.deleted());
+                    servicesFingerprints.put(ip, fingerprint);
+                    changed = true;
                 }
             }
             else{
-                return false;
+                return SyncResult.FAILED;
             }
 
             List<Rules> localRules = client.getSystemRules(ip, port);
             if (localRules != null && !localRules.isEmpty()) {
-                Optional<List<Rules>> oldRules = rulesRepo.findByIp(ip);
-                if (!oldRules.isPresent()) {
-                    this.rulesRepo.saveAll(localRules);
-                }else {
-                    log.info("Setup agent try to update the new rules by deletign the old version and save the new ");
-                    manageUpdateRules(ip,oldRules.get(), localRules);
+                statusCache.putRules(ip, localRules);
+                String fingerprint = AgentSyncFingerprint.ofRules(localRules);
+                if (fingerprint.equals(rulesFingerprints.get(ip))) {
+                    log.debug("Regole invariate per agente {}, nessuna scrittura", ip);
+                } else {
+                    AgentStateStore.Reconciliation result = stateStore.reconcileRules(ip, localRules);
+                    log.info("Regole dell'agente {} riconciliate: {} inserite o aggiornate, {} rimosse",
+                            ip, result.upserted(), result.deleted());
+                    rulesFingerprints.put(ip, fingerprint);
+                    changed = true;
                 }
             }
             else{
-                return false;
+                return SyncResult.FAILED;
             }
 
             // Gestisci le regole Lynis
             handleLynisRules(ip, port);
 
 
-            return true;
+            return changed ? SyncResult.CHANGED : SyncResult.UNCHANGED;
 
         } catch (Exception e) {
             log.error("Errore durante setup agente {}: ", ip, e);
-            return false;
+            return SyncResult.FAILED;
         }
     }
 
-   private void updateServices(String ip,List<AgentService> dbService,List<AgentService> incomingServices) {
-       log.info("Manage update services for {} agente {}", ip,incomingServices.size());
-
-       Map<String, AgentService> oldServicesMap = dbService.stream()
-               .collect(Collectors.toMap(AgentService::getName, Function.identity()));
-
-       List<AgentService> newRules = new ArrayList<>();
-
-       for (AgentService updatedRule : incomingServices) {
-           AgentService oldService = oldServicesMap.get(updatedRule.getName());
-           if (oldService != null ) {
-               oldService.setState(updatedRule.isState());
-               oldService.setAutomaticStart(updatedRule.isAutomaticStart());
-           } else {
-               newRules.add(updatedRule); // 👈 è una regola nuova, va aggiunta
-           }
-       }
-
-       this.serviceRepo.saveAll(dbService);
-       this.serviceRepo.saveAll(newRules);
-
-   }
-
-   private void updateServicesAlt(String ip,List<AgentService> incomingServices) {
-        log.info("MANAGE UPDATE ALT :services by deleting the old data in the database for {} agente {}", ip,incomingServices.size());
-        boolean state = client.deleteOldServices(ip);
-        if (!state) {
-            log.info("MANAGE UPDATE ALT: old data not deleted");
-        }
-        else {
-            log.info("MANAGE UPDATE ALT: old data deleted");
-        }
-        this.serviceRepo.saveAll(incomingServices);
-
-
-   }
-
-
     /**
-     *  Updates the server rules by deleting old ones and re-proposing new ones from the agent.
-     * @param  ip the ip address of the repo where ip are the rules
-     * @param rulesList the updated version of ip
+     * Forgets the last persisted fingerprints and the cached state of the agent, so the next sync writes its state again
+     * @param ip the ip of the agent
      */
-    private void manageUpdateRules(String ip, List<Rules> oldRules, List<Rules> rulesList) {
-        log.info("Manage update rules for {} agente {}", ip, rulesList.size());
-
-        Map<String, Rules> oldRulesMap = oldRules.stream()
-                .collect(Collectors.toMap(Rules::getName, Function.identity()));
-
-        List<Rules> newRules = new ArrayList<>();
-
-        for (Rules updatedRule : rulesList) {
-            Rules oldRule = oldRulesMap.get(updatedRule.getName());
-            if (oldRule != null) {
-                oldRule.setDescr(updatedRule.getDescr());
-                oldRule.setStatus(updatedRule.isStatus());
-            } else {
-                newRules.add(updatedRule); // 👈 è una regola nuova, va aggiunta
-            }
-        }
-
-        this.rulesRepo.saveAll(oldRules);     // aggiorna le esistenti
-        this.rulesRepo.saveAll(newRules);     // inserisce le nuove
+    private void forgetFingerprints(String ip) {
+        servicesFingerprints.remove(ip);
+        rulesFingerprints.remove(ip);
+        statusCache.evict(ip);
     }
 
     /**
@@ -345,55 +480,174 @@ public class LocalAgentRegistration {
     /**
      * Avvia il ping periodico per un agente specifico
      */
-    private void startPeriodicPing(String ip, int port) {
+    private void startPeriodicPing(String ip, int port, long lifecycle) {
         log.info("Avvio ping periodico per agente {}", ip);
 
-        ScheduledFuture<?> pingTask = executorService.scheduleWithFixedDelay(() -> {
-            try {
-                boolean pingResult = client.pingAgent(ip, port);
+        PollEntry entry = new PollEntry();
+        pingSchedulers.put(ip, entry);
+        long interval = pollingStates.containsKey(ip) ? pollingStates.get(ip).getIntervalMillis() : pollingPolicy.getBaseIntervalMillis();
+        // in the fleet the first tick of every agent falls in a random slot of the interval, so the fleet is spread evenly
+        long firstDelay = fleetTimer != null ? ThreadLocalRandom.current().nextLong(interval) : interval;
+        schedulePoll(ip, port, lifecycle, entry, interval, firstDelay, null);
+    }
 
-                if (pingResult) {
-                    log.info("Ping periodico riuscito per agente {}", ip);
-                    setupAgent(ip, port);
+    /**
+     * Handle of the next periodic ping of an agent, on the scheduler or on the fleet tick loop
+     */
+    private static final class PollEntry {
+        private volatile ScheduledFuture<?> future;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private void cancel() {
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
 
-                } else {
-                    log.error("Ping periodico fallito per agente {}", ip);
-                    handlePingFailure(ip, port);
+    /**
+     * Schedules the next periodic ping of the agent, the task reschedules itself with the interval chosen by the polling policy
+     * @param interval the current polling interval of the agent
+     * @param delay the delay before the next ping
+     * @param lastResult the result of the last sync, null if unknown
+     */
+    private void schedulePoll(String ip, int port, long lifecycle, PollEntry entry, long interval, long delay, SyncResult lastResult) {
+        pollingStates.put(ip, new AgentPollingStateDTO(ip, interval, Instant.now().plusMillis(delay),
+                lastResult == null ? null : lastResult.name()));
+        Runnable task = () -> {
+            // the agent may be stopped or registered again while waiting
+            if (pingSchedulers.get(ip) != entry) {
+                return;
+            }
+            SyncResult result = periodicPing(ip, port, lifecycle);
+            long next = result == null ? interval : pollingPolicy.nextInterval(interval, result == SyncResult.UNCHANGED);
+            whileCurrent(ip, lifecycle, () -> {
+                if (pingSchedulers.get(ip) == entry) {
+                    if (next != interval) {
+                        log.info("Intervallo di polling per agente {}: {} ms -> {} ms", ip, interval, next);
+                    }
+                    schedulePoll(ip, port, lifecycle, entry, next, next, result);
                 }
+            });
+        };
+        try {
+            if (fleetTimer != null) {
+                entry.timeout = fleetTimer.newTimeout(task, delay, TimeUnit.MILLISECONDS);
+            } else {
+                entry.future = scheduler.schedule(() -> workers.execute(task), delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (IllegalStateException | RejectedExecutionException e) {
+            log.info("Scheduler fermato, nessun ping per agente {}", ip);
+        }
+    }
+
+    /**
+     * @return the current polling interval and the time of the next ping of every agent
+     */
+    public List<AgentPollingStateDTO> getPollingStates() {
+        return new ArrayList<>(pollingStates.values());
+    }
 
-            } catch (Exception e) {
-                log.error("Errore durante ping periodico per agente {}: ", ip, e);
-                handlePingFailure(ip, port);
+    /**
+     * Pings concurrently the agents of a slot, at most agent.fleet.max-parallel at the same time
+     * @param slot the tasks of the agents expired in the current tick
+     */
+    private void dispatchFleetSlot(List<Runnable> slot) {
+        log.debug("Tick della flotta: {} agenti da contattare", slot.size());
+        for (Runnable task : slot) {
+            try {
+                workers.execute(() -> {
+                    try {
+                        fleetPermits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        fleetPermits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.info("Workers fermati, tick della flotta ignorato");
+                return;
             }
-        }, 5, 5, TimeUnit.MINUTES);
+        }
+    }
 
-        pingSchedulers.put(ip, pingTask);
+    /**
+     * Esegue un ciclo di ping e sincronizzazione per l'agente, saltandolo se il ciclo precedente non è ancora terminato
+     * @return the result of the sync, null if the cycle is skipped
+     */
+    private SyncResult periodicPing(String ip, int port, long lifecycle) {
+        if (!syncInProgress.add(ip)) {
+            log.warn("Sincronizzazione precedente ancora in corso per agente {}, salto il ciclo", ip);
+            return null;
+        }
+        try {
+            boolean pingResult = client.pingAgent(ip, port);
+
+            if (pingResult) {
+                log.info("Ping periodico riuscito per agente {}", ip);
+                return setupAgent(ip, port);
+
+            } else {
+                log.error("Ping periodico fallito per agente {}", ip);
+                handlePingFailure(ip, port, lifecycle);
+            }
+
+        } catch (Exception e) {
+            log.error("Errore durante ping periodico per agente {}: ", ip, e);
+            handlePingFailure(ip, port, lifecycle);
+        } finally {
+            syncInProgress.remove(ip);
+        }
+        return SyncResult.FAILED;
     }
 
     /**
      * Gestisce il fallimento del ping per un agente specifico
      */
-    private void handlePingFailure(String ip, int port) {
+    private void handlePingFailure(String ip, int port, long lifecycle) {
         log.warn("Gestione fallimento ping per agente {}", ip);
+        if (!whileCurrent(ip, lifecycle, () -> restartLifecycle(ip, port, lifecycle))) {
+            log.info("Agente {} rimosso, nessuna riconnessione", ip);
+        }
+    }
 
-        // Rimuovi il nodo dalla lista attivi
-        serverController.removeActiveNode(ip);
+    /**
+     * Moves a reachable agent back to the init attempts, called through {@link #whileCurrent(String, long, Runnable)}
+     */
+    private void restartLifecycle(String ip, int port, long lifecycle) {
+        // il nodo non è più raggiungibile finché la riconnessione non riesce
+        fleet.transition(ip, FleetRegistry.AgentState.DEGRADED);
+        statusCache.evict(ip);
 
-        // Ferma il ping periodico
+        // Ferma il ping periodico, dopo la riconnessione l'agente viene controllato più spesso
         stopPeriodicPing(ip);
+        long minInterval = pollingPolicy.getMinIntervalMillis();
+        pollingStates.put(ip, new AgentPollingStateDTO(ip, minInterval, null, SyncResult.FAILED.name()));
 
-        // Avvia processo di ri-inizializzazione
+        // Avvia processo di ri-inizializzazione con backoff, senza ritentare subito
         log.info("Riavvio processo di inizializzazione per agente {}", ip);
-        registerAgent(ip, port);
+        if (retryStates.putIfAbsent(ip, new AgentRetryStateDTO(ip, port, 0, retryPolicy.getMaxAttempts(), 0, Instant.now(), "ping failed")) == null) {
+            scheduleRetry(ip, port, 1, "ping failed", lifecycle);
+        }
     }
 
     /**
      * Ferma il ping periodico per un agente specifico
      */
     public void stopPeriodicPing(String ip) {
-        ScheduledFuture<?> pingTask = pingSchedulers.remove(ip);
-        if (pingTask != null && !pingTask.isCancelled()) {
-            pingTask.cancel(true);
+        PollEntry pingTask = pingSchedulers.remove(ip);
+        if (pingTask != null) {
+            pingTask.cancel();
             log.info("Ping periodico fermato per agente {}", ip);
         }
     }
@@ -403,8 +657,30 @@ public class LocalAgentRegistration {
      */
     public void removeAgent(String ip) {
         log.info("Rimozione agente {}", ip);
+        // first: the tasks still running for the agent see it removed and do not schedule it again
+        lifecycles.remove(ip);
         stopPeriodicPing(ip);
-        serverController.removeActiveNode(ip);
+        ScheduledFuture<?> retryTask = retryTasks.remove(ip);
+        if (retryTask != null) {
+            retryTask.cancel(false);
+        }
+        retryStates.remove(ip);
+        pollingStates.remove(ip);
+        forgetFingerprints(ip);
+        FleetRegistry.AgentEntry agent = fleet.get(ip);
+        if (agent != null) {
+            forgetAddress(ip, agent.port());
+        }
+        fleet.remove(ip);
+    }
+
+    /**
+     * Drops the circuit breaker and the connection pool of the address,
+     * both are created again, closed and empty, if the agent registers later
+     */
+    private void forgetAddress(String ip, int port) {
+        circuitBreakers.remove(ip, port);
+        transport.removeHost(ip, port);
     }
 
     /**
@@ -451,18 +727,30 @@ public class LocalAgentRegistration {
         log.info("Shutdown LocalAgentRegistration...");
 
         // Ferma tutti i ping periodici
-        pingSchedulers.values().forEach(task -> task.cancel(true));
+        pingSchedulers.values().forEach(PollEntry::cancel);
         pingSchedulers.clear();
+        if (fleetTimer != null) {
+            fleetTimer.stop();
+        }
+        retryTasks.values().forEach(task -> task.cancel(false));
+        retryTasks.clear();
+
+        // Shutdown scheduler and workers
+        shutdownExecutor(scheduler);
+        shutdownExecutor(workers);
+        // the agents given up in the last coalescing window
+        flushDownHosts();
+    }
 
-        // Shutdown executor service
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdown();
+    private void shutdownExecutor(ExecutorService executor) {
+        if (executor != null && !executor.isShutdown()) {
+            executor.shutdown();
             try {
-                if (!executorService.awaitTermination(30, TimeUnit.SECONDS)) {
-                    executorService.shutdownNow();
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
                 }
             } catch (InterruptedException e) {
-                executorService.shutdownNow();
+                executor.shutdownNow();
                 Thread.currentThread().interrupt();
             }
         }
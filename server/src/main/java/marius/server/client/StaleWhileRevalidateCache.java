@@ -0,0 +1,128 @@
+package marius.server.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Cache that serves a value while it is fresh, and after the ttl keeps serving the stale value
+ * while a single refresh runs in background. A value older than ttl + maxStale is not served anymore:
+ * the caller waits for the loader as if the key was missing.
+ * @param <V> the type of the cached values, they are shared between the callers and must not be modified
+ */
+public class StaleWhileRevalidateCache<V> {
+
+    private static final Logger log = LoggerFactory.getLogger(StaleWhileRevalidateCache.class);
+
+    /**
+     * A cached value
+     * @param value the value
+     * @param asOf when the value was read from the source
+     * @param stale true if the value is older than the ttl
+     */
+    public record Snapshot<V>(V value, Instant asOf, boolean stale) {}
+
+    private static final class Entry<V> {
+        private final V value;
+        private final Instant asOf;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(V value, Instant asOf) {
+            this.value = value;
+            this.asOf = asOf;
+        }
+    }
+
+    private final String name;
+    private final Duration ttl;
+    private final Duration maxAge;
+    private final Clock clock;
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param name the name used in the logs
+     * @param ttl how long a value is fresh
+     * @param maxStale how long a value is served after the ttl while it is refreshed
+     * @param clock the clock of the timestamps
+     */
+    public StaleWhileRevalidateCache(String name, Duration ttl, Duration maxStale, Clock clock) {
+        this.name = name;
+        this.ttl = ttl;
+        this.maxAge = ttl.plus(maxStale);
+        this.clock = clock;
+    }
+
+    /**
+     * @param key the key of the value
+     * @param loader reads the value from the source, its future fails if the value can not be read
+     * @return the cached value if still servable, otherwise the value read by the loader
+     */
+    public CompletableFuture<Snapshot<V>> get(String key, Supplier<CompletableFuture<V>> loader) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            Duration age = Duration.between(entry.asOf, clock.instant());
+            if (age.compareTo(ttl) <= 0) {
+                return CompletableFuture.completedFuture(new Snapshot<>(entry.value, entry.asOf, false));
+            }
+            if (age.compareTo(maxAge) <= 0) {
+                refresh(key, entry, loader);
+                return CompletableFuture.completedFuture(new Snapshot<>(entry.value, entry.asOf, true));
+            }
+        }
+        return loader.get().thenApply(value -> {
+            Entry<V> loaded = new Entry<>(value, clock.instant());
+            entries.put(key, loaded);
+            return new Snapshot<>(value, loaded.asOf, false);
+        });
+    }
+
+    /**
+     * @return the cached value, even if too old to be served by {@link #get(String, Supplier)}, or null
+     */
+    public Snapshot<V> peek(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        return new Snapshot<>(entry.value, entry.asOf, Duration.between(entry.asOf, clock.instant()).compareTo(ttl) > 0);
+    }
+
+    /**
+     * Stores a value read from the source by someone else
+     */
+    public void put(String key, V value) {
+        entries.put(key, new Entry<>(value, clock.instant()));
+    }
+
+    public void evict(String key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void refresh(String key, Entry<V> entry, Supplier<CompletableFuture<V>> loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        log.debug("Cache {}: valore di {} scaduto, aggiornamento in background", name, key);
+        loader.get().whenComplete((value, e) -> {
+            if (e != null) {
+                log.debug("Cache {}: aggiornamento di {} fallito: {}", name, key, e.getMessage());
+                entry.refreshing.set(false);
+                return;
+            }
+            // an entry evicted or replaced in the meantime is not brought back
+            entries.replace(key, entry, new Entry<>(value, clock.instant()));
+        });
+    }
+}
@@ -2,14 +2,18 @@ package marius.server.controller;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.transaction.Transactional;
+import marius.server.HashSaturatedException;
+import marius.server.PasswordHasher;
 import marius.server.Tools;
 import marius.server.data.ApprovedUsers;
 import marius.server.data.RoleEnum;
 import marius.server.data.User;
 import marius.server.repo.ApprovedUsersRepo;
+import marius.server.repo.UserCache;
 import marius.server.repo.UserRepo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -24,11 +28,52 @@ import java.util.stream.Collectors;
 public class AuthController {
     private final ApprovedUsersRepo approvedUsersRepo;
     private final UserRepo userRepo;
+    private final UserCache userCache;
+    private final CallerIdentity callerIdentity;
+    private final SessionTokens sessionTokens;
+    private final PasswordHasher passwordHasher;
     private static final Logger log = LoggerFactory.getLogger(AuthController.class);
 
-    public AuthController(ApprovedUsersRepo approvedUsersRepo, UserRepo userRepo) {
+    public AuthController(ApprovedUsersRepo approvedUsersRepo, UserRepo userRepo, UserCache userCache,
+                          CallerIdentity callerIdentity, SessionTokens sessionTokens, PasswordHasher passwordHasher) {
         this.approvedUsersRepo = approvedUsersRepo;
         this.userRepo = userRepo;
+        this.userCache = userCache;
+        this.callerIdentity = callerIdentity;
+        this.sessionTokens = sessionTokens;
+        this.passwordHasher = passwordHasher;
+    }
+
+    /**
+     * Builds the answer for a request whose password hash was refused by the saturated pool
+     * @return 503 SERVICE UNAVAILABLE with the Retry-After header
+     */
+    private ResponseEntity<String> hashUnavailable(HashSaturatedException e, String route, HttpServletRequest request) {
+        log.warn("IP=" + request.getRemoteAddr() + " " + route + " rifiutata: " + e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body("server busy, retry later");
+    }
+
+    /**
+     * Saves a new hash of the password just checked if the saved one is weaker than the current Argon2 parameters.
+     * The login does not wait for a free slot of the pool: if it is saturated the new hash is made at the next login
+     * @param email the email of the user
+     * @param password the plain text password, already checked
+     * @param saved the hash read from the database
+     */
+    private void rehashIfNeeded(String email, String password, String saved) {
+        if (!Tools.needsRehash(saved)) {
+            return;
+        }
+        try {
+            // the update is skipped if the password was changed after the login read it
+            if (userRepo.replacePassword(email, saved, passwordHasher.encode(password)) == 1) {
+                log.info("Hash della password di " + email + " aggiornato ai parametri correnti");
+            }
+        } catch (HashSaturatedException e) {
+            log.info("Nuovo hash della password di " + email + " rimandato: " + e.getMessage());
+        }
     }
 
 
@@ -54,7 +99,7 @@ public class AuthController {
             }
             String username = requestBody.get("username").asText();
 
-            if (!userRepo.existsByUsername(username)) {
+            if (!callerIdentity.byUsername(request, username).isPresent()) {
                 log.error("IP=" + request.getRemoteAddr());
                 return ResponseEntity.badRequest().body("username not auth ");
             }
@@ -101,7 +146,7 @@ public class AuthController {
         }
 
         log.info("IP=" + request.getRemoteAddr(),"getApprovedUsers:parametro "+username);
-            if (!userRepo.existsByUsername(username)) {
+            if (!callerIdentity.byUsername(request, username).isPresent()) {
                 log.error("IP=" + request.getRemoteAddr());
                 return ResponseEntity.badRequest().body("username not auth ");
             }
@@ -159,7 +204,7 @@ public class AuthController {
             }
             String username = requestBody.get("username").asText();
 
-            if (!userRepo.existsByUsername(username)) {
+            if (!callerIdentity.byUsername(request, username).isPresent()) {
                 log.error("IP=" + request.getRemoteAddr());
                 return ResponseEntity.badRequest().body("username not auth ");
             }
@@ -220,7 +265,7 @@ public class AuthController {
                 return ResponseEntity.badRequest().body("format not valid email " + tmp_email + " during creation user with username =" + tmp_name);
             }
 
-            String tmp_password = Tools.hashPassword(requestBody.get("user").get("password").asText());
+            String tmp_password = passwordHasher.encode(requestBody.get("user").get("password").asText());
             //String tmp_password = requestBody.get("user").get("password").asText();
 
             log.info("tmp_password=" + tmp_password);
@@ -229,8 +274,11 @@ public class AuthController {
             User tmp = new User(tmp_name, tmp_email, tmp_password, tmp_role);
             log.info("tmp_user=" + tmp.toString());
             userRepo.save(tmp);
+            userCache.invalidate(tmp_email);
             return ResponseEntity.ok(tmp);
 
+        } catch (HashSaturatedException e) {
+            return hashUnavailable(e, "addUser", request);
         } catch (Exception e) {
             log.error("IP=" + request.getRemoteAddr() + "Problema con richiesta =" + e.getMessage());
             return ResponseEntity.badRequest().body("missing 'username' and 'user'");
@@ -275,13 +323,13 @@ public class AuthController {
             }
 
             String operator = requestBody.get("username").asText();
-            User operatorUser = userRepo.findUserByUsername(operator).orElse(null);
+            UserCache.CachedUser operatorUser = callerIdentity.byUsername(request, operator).orElse(null);
 
             if (operatorUser == null) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).body("User creator not registered");
             }
 
-            if (operatorUser.getRole() != RoleEnum.SUPERVISOR) {
+            if (operatorUser.role() != RoleEnum.SUPERVISOR) {
                 log.error("Attempt to change role of a user made by IP=" + request.getRemoteAddr());
                 return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Only supervisors can change user roles");
             }
@@ -322,6 +370,7 @@ public class AuthController {
 
                 localUser.get().setRole(newRole);
                 userRepo.save(localUser.get());
+                userCache.invalidate(userEmail);
 
                 return ResponseEntity.ok("true");
 
@@ -379,19 +428,20 @@ public class AuthController {
         }
         String operator = requestBody.get("username").asText();
         String userEmail = requestBody.get("email").asText();
-        Optional<User> operatorUser = userRepo.findUserByUsername(operator);
+        Optional<UserCache.CachedUser> operatorUser = callerIdentity.byUsername(request, operator);
         if (operatorUser.isEmpty()) {
             log.error("IP=" + request.getRemoteAddr() + " - Unknown operator: " + operator + " tried to delete user: " + userEmail);
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Operator not found");
         }
 
-        RoleEnum roleOperator = operatorUser.get().getRole();
+        RoleEnum roleOperator = operatorUser.get().role();
         if (roleOperator != RoleEnum.SUPERVISOR) {
             log.error("User=" + operator + " tried to delete=" + userEmail + " without permissions");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized"); // Fixed: added return
         }
         log.info("operator =" + operator + " delete user =" + userEmail);
         userRepo.deleteById(userEmail);
+        userCache.invalidate(userEmail);
         return ResponseEntity.ok("true");
 
     }
@@ -406,9 +456,11 @@ public class AuthController {
      *                    - password (string, required): the user's plain text password
      * @param request     HttpServletRequest used for IP address logging
      * @return ResponseEntity with:
-     * - 200 OK: authentication successful, body contains User object
+     * - 200 OK: authentication successful, body contains User object, the header X-Auth-Token has the session token
+     *   to send in the header Authorization: Bearer and X-Auth-Token-Expires its expiration
      * - 400 BAD REQUEST: missing required fields (username or password)
      * - 401 UNAUTHORIZED: invalid username or password
+     * - 503 SERVICE UNAVAILABLE: too many logins at the same time, with Retry-After
      */
     @PostMapping("/authUser")
     public ResponseEntity authUser(@RequestBody JsonNode requestBody, HttpServletRequest request) {
@@ -431,17 +483,27 @@ public class AuthController {
         }
 
 
-        if (!Tools.isPasswordHashedWith(password, serverUser.get().getPassword())) {
+        boolean valid;
+        try {
+            valid = passwordHasher.matches(password, serverUser.get().getPassword());
+        } catch (HashSaturatedException e) {
+            return hashUnavailable(e, "authUser", request);
+        }
+        if (!valid) {
             log.error("Invalid password during login of user =" + email + " from IP=" + request.getRemoteAddr());
             log.info("DEBUG HASH =" +serverUser.get().getPassword());
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid password");
         }
 
-
+        rehashIfNeeded(email, password, serverUser.get().getPassword());
 
         log.info("User =" + email + " successfully authenticated with IP=" + request.getRemoteAddr());
+        SessionTokens.Token token = sessionTokens.issue(UserCache.CachedUser.of(serverUser.get()));
         serverUser.get().setPassword("");
-        return ResponseEntity.ok(serverUser.get());
+        return ResponseEntity.ok()
+                .header(SessionTokenFilter.TOKEN_HEADER, token.value())
+                .header(SessionTokenFilter.TOKEN_EXPIRES_HEADER, token.expiresAt().toString())
+                .body(serverUser.get());
     }
 
     /**
@@ -457,9 +519,11 @@ public class AuthController {
      * - 400 BAD REQUEST: missing required fields (username or password)
      * - 401 UNAUTHORIZED: invalid username or password
      * - 403 FORBIDDEN: if the old password is not correct
+     * - 409 CONFLICT: the password was changed by another request in the meantime
+     * - 503 SERVICE UNAVAILABLE: too many password hashes at the same time, with Retry-After
      */
+    // no transaction around the hashes: they wait for the pool without holding a connection, the write is a single update
     @PostMapping("/updatePassword")
-    @Transactional
     public ResponseEntity updatePassword(@RequestBody JsonNode requestBody, HttpServletRequest request) {
 
         if (!requestBody.hasNonNull("email")) {
@@ -486,7 +550,13 @@ public class AuthController {
         String oldPwd = requestBody.get("oldPassword").asText();
 
 
-        if (!Tools.isPasswordHashedWith(oldPwd, serverUser.get().getPassword())) {
+        boolean valid;
+        try {
+            valid = passwordHasher.matches(oldPwd, serverUser.get().getPassword());
+        } catch (HashSaturatedException e) {
+            return hashUnavailable(e, "updatePassword", request);
+        }
+        if (!valid) {
             log.error("updatePassword : failed to update the password with email " + email + " from IP=" + request.getRemoteAddr() + " because the old password is wrong");
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Invalid old password");
         }
@@ -500,7 +570,12 @@ public class AuthController {
         }
 
          */
-        String newPwd = Tools.hashPassword( requestBody.get("newPassword").asText());
+        String newPwd;
+        try {
+            newPwd = passwordHasher.encode(requestBody.get("newPassword").asText());
+        } catch (HashSaturatedException e) {
+            return hashUnavailable(e, "updatePassword", request);
+        }
         //String newPwd =  requestBody.get("newPassword").asText();
         log.info("new password =" + newPwd);
 
@@ -508,8 +583,12 @@ public class AuthController {
         serverUser.get().setPassword(newPwd);
         userRepo.save(serverUser.get());
          */
-        User userdb=serverUser.get();
-        userdb.setPassword(newPwd);
+        // written only if the password is still the one checked above
+        if (userRepo.replacePassword(email, serverUser.get().getPassword(), newPwd) != 1) {
+            log.warn("updatePassword : password of " + email + " changed by another request, from IP=" + request.getRemoteAddr());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Password changed in the meantime");
+        }
+        userCache.invalidate(email);
 
 
 
@@ -543,13 +622,13 @@ public class AuthController {
            return ResponseEntity.badRequest().body("Missing username header");
        }
 
-       Optional<User> user = userRepo.findUserByUsername(username);
+       Optional<UserCache.CachedUser> user = callerIdentity.byUsername(request, username);
        if (!user.isPresent()) {
            log.info("IP=" + request.getRemoteAddr() + "getAllUsers user not present ");
            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("User not found");
        }
-       if (user.get().getRole()==RoleEnum.WORKER) {
-           log.info("IP=" + request.getRemoteAddr() + "getAllUsers user ="+ user.get().getUsername()+" has wrong role");
+       if (user.get().role()==RoleEnum.WORKER) {
+           log.info("IP=" + request.getRemoteAddr() + "getAllUsers user ="+ user.get().username()+" has wrong role");
            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("role wrong");
        }
 
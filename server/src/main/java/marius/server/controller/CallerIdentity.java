@@ -0,0 +1,69 @@
+package marius.server.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import marius.server.repo.UserCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+
+/**
+ * Identifies the user who makes a request. With a session token the identity comes from the token
+ * checked by {@link SessionTokenFilter}, without reading the database; the username or email sent
+ * by the client must be the one of the token. Without a token the user is looked up by the username or email sent,
+ * as before the tokens.
+ */
+@Component
+public class CallerIdentity {
+
+    private static final Logger log = LoggerFactory.getLogger(CallerIdentity.class);
+
+    private final UserCache userCache;
+
+    public CallerIdentity(UserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * @param request the request, it has the session if the client sent a valid token
+     * @param username the username sent by the client
+     * @return the identity of the caller, empty if the user does not exist or is not the one of the token
+     */
+    public Optional<UserCache.CachedUser> byUsername(HttpServletRequest request, String username) {
+        SessionTokens.Session session = session(request);
+        if (session == null) {
+            return userCache.findByUsername(username);
+        }
+        return matching(request, session, session.user().username(), username);
+    }
+
+    /**
+     * @param request the request, it has the session if the client sent a valid token
+     * @param email the email sent by the client
+     * @return the identity of the caller, empty if the user does not exist or is not the one of the token
+     */
+    public Optional<UserCache.CachedUser> byEmail(HttpServletRequest request, String email) {
+        SessionTokens.Session session = session(request);
+        if (session == null) {
+            return userCache.findByEmail(email);
+        }
+        return matching(request, session, session.user().email(), email);
+    }
+
+    /**
+     * @return the session of the request, null if the client did not send a token
+     */
+    public static SessionTokens.Session session(HttpServletRequest request) {
+        return (SessionTokens.Session) request.getAttribute(SessionTokenFilter.SESSION_ATTRIBUTE);
+    }
+
+    private static Optional<UserCache.CachedUser> matching(HttpServletRequest request, SessionTokens.Session session,
+                                                           String expected, String claimed) {
+        if (claimed != null && !claimed.equals(expected)) {
+            log.warn("IP={} token di {} usato per {}", request.getRemoteAddr(), session.user().email(), claimed);
+            return Optional.empty();
+        }
+        return Optional.of(session.user());
+    }
+}
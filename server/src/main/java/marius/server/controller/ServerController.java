@@ -2,9 +2,17 @@ package marius.server.controller;
 
 import jakarta.servlet.http.HttpServletRequest;
 import marius.server.Tools;
+import marius.server.client.AgentCircuitBreakers;
 import marius.server.client.AgentClientPython;
+import marius.server.client.AgentStatusCache;
+import marius.server.client.FleetRegistry;
+import marius.server.client.StaleWhileRevalidateCache.Snapshot;
 import marius.server.client.LocalAgentRegistration;
 import marius.server.data.*;
+import marius.server.data.dto.AgentCircuitStateDTO;
+import marius.server.data.dto.AgentPollingStateDTO;
+import marius.server.data.dto.AgentRetryStateDTO;
+import marius.server.data.dto.LogPageDTO;
 import marius.server.repo.*;
 
 
@@ -15,13 +23,17 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
 import java.sql.Timestamp;
+import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletionException;
 
 /** This class contains all the REST routes for interract with the agents python
  * @Autorthor Marius Berinde
@@ -30,45 +42,50 @@ import java.util.*;
 @CrossOrigin
 public class ServerController {
 
-    private final UserRepo userRepo;
+    private final UserCache userCache;
+    private final CallerIdentity callerIdentity;
 	private final ServerRepo serverRepo;
     private final ServiceRepo serviceRepo;
     private final RulesRepo rulesRepo;
     private final LynisRepo lynisRepo;
     private final LogRepo logRepo;
+    private final LogKeysetQuery logQuery;
+    private final LogExporter logExporter;
+    private final LogIngestionQueue logIngestion;
+    private final LogCopyWriter logCopyWriter;
     private final LocalAgentRegistration agentRegistration;
     private static final Logger log = LoggerFactory.getLogger(ServerController.class);
-    private HashMap<String,Server> servers;
+    private final FleetRegistry fleet;
     private  final AgentClientPython client;
+    private final AgentCircuitBreakers circuitBreakers;
+    private final AgentStatusCache statusCache;
+    /** header with the time the live data of an agent was read */
+    public static final String DATA_AS_OF_HEADER = "X-Data-As-Of";
 
-    public ServerController(UserRepo userRepo, ServerRepo serverRepo, ServiceRepo serviceRepo,
+    public ServerController(UserCache userCache, ServerRepo serverRepo, ServiceRepo serviceRepo,
                             RulesRepo rulesRepo, LynisRepo lynisRepo, LogRepo logRepo,
-                            AgentClientPython client,  LocalAgentRegistration agentRegistration) {
-        this.userRepo = userRepo;
+                            AgentClientPython client,  LocalAgentRegistration agentRegistration,
+                            AgentCircuitBreakers circuitBreakers, AgentStatusCache statusCache,
+                            LogKeysetQuery logQuery, LogExporter logExporter, LogIngestionQueue logIngestion,
+                            LogCopyWriter logCopyWriter, FleetRegistry fleet, CallerIdentity callerIdentity) {
+        this.userCache = userCache;
         this.serverRepo = serverRepo;
         this.serviceRepo = serviceRepo;
         this.rulesRepo = rulesRepo;
         this.lynisRepo = lynisRepo;
         this.logRepo = logRepo;
+        this.logQuery = logQuery;
+        this.logExporter = logExporter;
+        this.logIngestion = logIngestion;
+        this.logCopyWriter = logCopyWriter;
         this.client = client;
         this.agentRegistration = agentRegistration;
-        this.servers = new HashMap<>();
+        this.circuitBreakers = circuitBreakers;
+        this.statusCache = statusCache;
+        this.fleet = fleet;
+        this.callerIdentity = callerIdentity;
     }
 
-    /**
-     *  Add  a server to the list of active nodes
-     * @param server the new active node
-     * @return if the server is added to the hashmap called server
-     */
-    public boolean addActiveNode(Server server) { return this.servers.putIfAbsent(server.getIp(), server) == null; }
-
-    /**
-     * remove the server wit IP from the hashmap of active nodes
-     * @param ip the IP address of the node that will be removed
-     * @return true i the node is removed from servers , false otherwise
-     */
-    public boolean removeActiveNode(String ip){ return this.servers.remove(ip) != null; }
-
     /**
      * Return the information about the server indicate by id
      * @param requestBody JSON object containing user credentials:
@@ -94,7 +111,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("ip field missing ");
         }
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getServerByIp : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -128,7 +145,7 @@ public class ServerController {
         }
         log.info(" getAllServers email="+email);
 
-        Optional<User> actualUser = userRepo.findUserByEmail(email);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, email);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getAllServers  : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -136,20 +153,126 @@ public class ServerController {
 
         log.info("username="+email+" getAllServers  ");
         List<Server> servers = serverRepo.findAll();
+        // a single snapshot, so all the states come from the same moment
+        Map<String, FleetRegistry.AgentEntry> agents = fleet.snapshot();
         for (Server server : servers){
-            server.setState(this.servers.containsKey(server.getIp()));
+            FleetRegistry.AgentEntry agent = agents.get(server.getIp());
+            server.setState(agent != null && agent.isReachable());
         }
 
         return ResponseEntity.ok(servers);
     }
 
+    /**
+     * Returns the onboarding retry state of the agents that are not connected yet
+     * @param email the email of the user who make the request
+     * @param request used for log the ip of the request
+     * @return a List<AgentRetryStateDTO> with the attempts done and the time of the next attempt for every agent
+     */
+    @GetMapping("/getAgentsRetryState")
+    public ResponseEntity getAgentsRetryState(@RequestHeader("email") String email, HttpServletRequest request){
+        if(email == null || email.isEmpty()){
+            log.info("IP="+request.getRemoteAddr()+" failed in getAgentsRetryState : missing email field");
+            return ResponseEntity.badRequest().body("email field missing ");
+        }
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, email);
+        if(!actualUser.isPresent()){
+            log.error("IP="+request.getRemoteAddr()+"failed in getAgentsRetryState  : unrecognized email ");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized email");
+        }
+        List<AgentRetryStateDTO> states = agentRegistration.getRetryStates();
+        return ResponseEntity.ok(states);
+    }
+
+    /**
+     * Returns the current polling interval of the agents, stable agents are polled less often
+     * @param email the email of the user who make the request
+     * @param request used for log the ip of the request
+     * @return a List<AgentPollingStateDTO> with the interval and the time of the next ping for every agent
+     */
+    @GetMapping("/getAgentsPollingState")
+    public ResponseEntity getAgentsPollingState(@RequestHeader("email") String email, HttpServletRequest request){
+        if(email == null || email.isEmpty()){
+            log.info("IP="+request.getRemoteAddr()+" failed in getAgentsPollingState : missing email field");
+            return ResponseEntity.badRequest().body("email field missing ");
+        }
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, email);
+        if(!actualUser.isPresent()){
+            log.error("IP="+request.getRemoteAddr()+"failed in getAgentsPollingState  : unrecognized email ");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized email");
+        }
+        List<AgentPollingStateDTO> states = agentRegistration.getPollingStates();
+        return ResponseEntity.ok(states);
+    }
+
+    /**
+     * Returns the state of the circuit breaker of the agents, the calls to an agent with the circuit open fail at once
+     * @param email the email of the user who make the request
+     * @param request used for log the ip of the request
+     * @return a List<AgentCircuitStateDTO> with the state, the failure and slow call rates of every agent
+     */
+    @GetMapping("/getAgentsCircuitState")
+    public ResponseEntity getAgentsCircuitState(@RequestHeader("email") String email, HttpServletRequest request){
+        if(email == null || email.isEmpty()){
+            log.info("IP="+request.getRemoteAddr()+" failed in getAgentsCircuitState : missing email field");
+            return ResponseEntity.badRequest().body("email field missing ");
+        }
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, email);
+        if(!actualUser.isPresent()){
+            log.error("IP="+request.getRemoteAddr()+"failed in getAgentsCircuitState  : unrecognized email ");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized email");
+        }
+        List<AgentCircuitStateDTO> states = circuitBreakers.getStates();
+        return ResponseEntity.ok(states);
+    }
+
+    /**
+     * Builds the answer for a request to an agent whose circuit is open
+     * @param ip the IP address of the agent
+     * @param port the port of the agent
+     * @param body the body of the answer
+     * @return 503 SERVICE UNAVAILABLE with the Retry-After header
+     */
+    private <T> ResponseEntity<T> agentUnavailable(String ip, int port, T body){
+        long retryAfter = circuitBreakers.retryAfterSeconds(ip, port);
+        log.warn("agent {}:{} con circuit aperto, rispondo 503 (retry after {}s)", ip, port, retryAfter);
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter))
+                .body(body);
+    }
+
+    /**
+     * Return the logs of the system one page at a time, newest first
+     * @param username the email of the user who make the request
+     * @param user optional filter on the email of the user who made the operation
+     * @param ip optional filter on the ip of the server
+     * @param service optional filter on the id of the service
+     * @param from optional ISO date-time, first instant included
+     * @param to optional ISO date-time, first instant excluded
+     * @param limit the page size, capped by log.page.max-limit
+     * @param cursor the nextCursor of the previous page, missing for the first page
+     * @param all true to get every log in a single list as before the pagination
+     * @return ResponseEntity with:
+     *         - 200 OK: a LogPageDTO, or the list of all the logs if all is true
+     *         - 400 BAD REQUEST: missing username or invalid filters or cursor
+     *         - 401 UNAUTHORIZED: unrecognized username
+     */
     @GetMapping("/getAllLogs")
-    public ResponseEntity getAllLogs(@RequestHeader("username") String username, HttpServletRequest request){
+    public ResponseEntity getAllLogs(@RequestHeader("username") String username,
+                                     @RequestParam(required = false) String user,
+                                     @RequestParam(required = false) String ip,
+                                     @RequestParam(required = false) Integer service,
+                                     @RequestParam(required = false) String from,
+                                     @RequestParam(required = false) String to,
+                                     @RequestParam(required = false) Integer limit,
+                                     @RequestParam(required = false) String cursor,
+                                     @RequestParam(defaultValue = "false") boolean all,
+                                     HttpServletRequest request){
         if(username == null || username.isEmpty()){
             log.error("IP="+request.getRemoteAddr()+" failed in getAllLogs : missing username field");
             return ResponseEntity.badRequest().body("username field missing ");
         }
-        Optional<User> actualUser = userRepo.findUserByEmail(username);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, username);
 
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getAllLogs  : unrecognized username ");
@@ -158,18 +281,39 @@ public class ServerController {
         }
         log.info("username="+username+" getAllLogs  ");
 
-        Log log = new Log(actualUser.get().getEmail(),request.getRemoteAddr().toString(),"get all logs ok");
-        return ResponseEntity.ok(logRepo.findAll());
+        Log log = new Log(actualUser.get().email(),request.getRemoteAddr().toString(),"get all logs ok");
+        if (all) {
+            return ResponseEntity.ok(logRepo.findAll());
+        }
+        return logPage(user, ip, service, from, to, limit, cursor, request);
     }
 
+    /**
+     * Return the logs of the user one page at a time, newest first
+     * @param email the email of the user who make the request, the logs are always filtered on it
+     * @param all true to get every log of the user in a single list as before the pagination
+     * @return ResponseEntity with:
+     *         - 200 OK: a LogPageDTO, or the list of all the logs of the user if all is true
+     *         - 400 BAD REQUEST: missing email or invalid filters or cursor
+     *         - 401 UNAUTHORIZED: unrecognized email
+     * @see #getAllLogs for the other parameters
+     */
     @GetMapping("/getUserLogs")
-    public ResponseEntity getUserLogs(@RequestHeader("email") String email, HttpServletRequest request){
+    public ResponseEntity getUserLogs(@RequestHeader("email") String email,
+                                      @RequestParam(required = false) String ip,
+                                      @RequestParam(required = false) Integer service,
+                                      @RequestParam(required = false) String from,
+                                      @RequestParam(required = false) String to,
+                                      @RequestParam(required = false) Integer limit,
+                                      @RequestParam(required = false) String cursor,
+                                      @RequestParam(defaultValue = "false") boolean all,
+                                      HttpServletRequest request){
         if(email == null || email.isEmpty()){
             log.error("IP="+request.getRemoteAddr()+" failed in getUserLogs : missing email field");
             return ResponseEntity.badRequest().body("email field missing ");
         }
 
-        Optional<User> actualUser = userRepo.findUserByEmail(email);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, email);
 
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getAllLogs  : unrecognized email ");
@@ -178,8 +322,98 @@ public class ServerController {
         }
         log.info("email="+email+" getAllLogs  ");
 
-        Log log = new Log(actualUser.get().getEmail(),request.getRemoteAddr().toString(),"get all logs ok");
-        return ResponseEntity.ok(logRepo.findByUserEmail(actualUser.get().getEmail()));
+        Log log = new Log(actualUser.get().email(),request.getRemoteAddr().toString(),"get all logs ok");
+        if (all) {
+            return ResponseEntity.ok(logRepo.findByUserEmail(actualUser.get().email()));
+        }
+        return logPage(actualUser.get().email(), ip, service, from, to, limit, cursor, request);
+    }
+
+    /**
+     * Reads a page of logs with the given filters, the invalid filters or cursor give 400
+     */
+    private ResponseEntity logPage(String user, String ip, Integer service, String from, String to,
+                                   Integer limit, String cursor, HttpServletRequest request) {
+        LogKeysetQuery.Filter filter;
+        LogKeysetQuery.Cursor after;
+        try {
+            filter = new LogKeysetQuery.Filter(emptyToNull(user), emptyToNull(ip), service,
+                    from == null || from.isEmpty() ? null : LocalDateTime.parse(from),
+                    to == null || to.isEmpty() ? null : LocalDateTime.parse(to));
+            after = cursor == null || cursor.isEmpty() ? null : LogKeysetQuery.Cursor.decode(cursor);
+        } catch (DateTimeParseException e) {
+            log.warn("IP="+request.getRemoteAddr()+" failed in logs : invalid time range");
+            return ResponseEntity.badRequest().body("invalid from or to, expected ISO date-time");
+        } catch (IllegalArgumentException e) {
+            log.warn("IP="+request.getRemoteAddr()+" failed in logs : invalid cursor");
+            return ResponseEntity.badRequest().body("invalid cursor");
+        }
+        int pageSize = logQuery.limit(limit);
+        LogKeysetQuery.Page page = logQuery.find(filter, after, pageSize);
+        return ResponseEntity.ok(new LogPageDTO(page.items(),
+                page.next() == null ? null : page.next().encode(), pageSize));
+    }
+
+    /**
+     * Export the logs for the compliance, the rows are streamed while they are read from the database
+     * @param username the email of the user who make the request
+     * @param format ndjson (default) or csv
+     * @param gzip true to get the file compressed with gzip
+     * @return ResponseEntity with:
+     *         - 200 OK: the file logs.ndjson or logs.csv, with .gz if compressed
+     *         - 400 BAD REQUEST: missing username or invalid format or filters
+     *         - 401 UNAUTHORIZED: unrecognized username
+     * @see #getAllLogs for the filters
+     */
+    @GetMapping("/exportLogs")
+    public ResponseEntity<?> exportLogs(@RequestHeader("username") String username,
+                                        @RequestParam(required = false) String user,
+                                        @RequestParam(required = false) String ip,
+                                        @RequestParam(required = false) Integer service,
+                                        @RequestParam(required = false) String from,
+                                        @RequestParam(required = false) String to,
+                                        @RequestParam(defaultValue = "ndjson") String format,
+                                        @RequestParam(defaultValue = "false") boolean gzip,
+                                        HttpServletRequest request){
+        if(username == null || username.isEmpty()){
+            log.error("IP="+request.getRemoteAddr()+" failed in exportLogs : missing username field");
+            return ResponseEntity.badRequest().body("username field missing ");
+        }
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byEmail(request, username);
+        if(!actualUser.isPresent()){
+            log.error("IP="+request.getRemoteAddr()+"failed in exportLogs  : unrecognized username ");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
+        }
+        LogExporter.Format exportFormat;
+        LogKeysetQuery.Filter filter;
+        try {
+            exportFormat = LogExporter.Format.valueOf(format.toUpperCase(Locale.ROOT));
+            filter = new LogKeysetQuery.Filter(emptyToNull(user), emptyToNull(ip), service,
+                    from == null || from.isEmpty() ? null : LocalDateTime.parse(from),
+                    to == null || to.isEmpty() ? null : LocalDateTime.parse(to));
+        } catch (DateTimeParseException e) {
+            log.warn("IP="+request.getRemoteAddr()+" failed in exportLogs : invalid time range");
+            return ResponseEntity.badRequest().body("invalid from or to, expected ISO date-time");
+        } catch (IllegalArgumentException e) {
+            log.warn("IP="+request.getRemoteAddr()+" failed in exportLogs : invalid format "+format);
+            return ResponseEntity.badRequest().body("invalid format, expected ndjson or csv");
+        }
+        log.info("username="+username+" exportLogs format="+exportFormat+" gzip="+gzip);
+
+        String filename = "logs." + exportFormat.getExtension() + (gzip ? ".gz" : "");
+        StreamingResponseBody body = out -> {
+            long start = System.currentTimeMillis();
+            long rows = logExporter.export(filter, exportFormat, gzip, out);
+            log.info("username="+username+" exportLogs: "+rows+" rows in "+(System.currentTimeMillis() - start)+" ms");
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .contentType(MediaType.parseMediaType(gzip ? "application/gzip" : exportFormat.getContentType()))
+                .body(body);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
     }
 
 
@@ -194,7 +428,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("log field missing ");
         }
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in addLog  : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -220,7 +454,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("user field missing in log field ");
         }
 
-        Optional<User> userLog = userRepo.findUserByEmail(requestBody.get("log").get("user").asText());
+        Optional<UserCache.CachedUser> userLog = userCache.findByEmail(requestBody.get("log").get("user").asText());
 	if (!userLog.isPresent()){
 
             log.error("IP="+request.getRemoteAddr()+"failed in addlog: log.user not found");
@@ -245,9 +479,8 @@ public class ServerController {
 				log.error("IP="+request.getRemoteAddr()+"failed in addLog  : server not found ");
 				return ResponseEntity.status(HttpStatus.NOT_FOUND).body("server not found");
 			}
-			Log localLog = new Log(userLog.get().getEmail(),server,descr,logTime);
-            logRepo.save(localLog);
-            return ResponseEntity.ok(localLog);
+			Log localLog = new Log(userLog.get().email(),server,descr,logTime);
+            return storeLogs(List.of(localLog), localLog, request);
 		}
     if(requestBody.get("log").hasNonNull("service")){
         Integer service = Integer.valueOf(requestBody.get("log").get("service").asInt());
@@ -266,15 +499,13 @@ public class ServerController {
             log.error("IP="+request.getRemoteAddr()+"error in addLog  : server of json not match with server of service ");
             return ResponseEntity.badRequest().body("server of json not match with server of service ");
         }
-        Log localLog = new Log(userLog.get().getEmail(),server,service,descr,logTime);
-        logRepo.save(localLog);
-        return ResponseEntity.ok(localLog);
+        Log localLog = new Log(userLog.get().email(),server,service,descr,logTime);
+        return storeLogs(List.of(localLog), localLog, request);
     }
 
 
-        Log locaLog = new Log(userLog.get().getEmail(),descr,logTime);
-        logRepo.save(locaLog);
-        return ResponseEntity.ok(locaLog);
+        Log locaLog = new Log(userLog.get().email(),descr,logTime);
+        return storeLogs(List.of(locaLog), locaLog, request);
 
 
     }
@@ -301,7 +532,7 @@ public class ServerController {
         }
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in addLogs  : unrecognized username for ",actualUsername);
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -334,7 +565,7 @@ public class ServerController {
                return ResponseEntity.badRequest().body("user field missing in log object of json Array");
            }
 
-           Optional<User> userLog = userRepo.findUserByEmail(logJson.get("userEmail").asText());
+           Optional<UserCache.CachedUser> userLog = userCache.findByEmail(logJson.get("userEmail").asText());
            log.info("IP="+request.getRemoteAddr()+" addLogs user email: "+logJson.get("userEmail").asText());
 
            if (!userLog.isPresent()){
@@ -354,16 +585,43 @@ public class ServerController {
                log.error("IP="+request.getRemoteAddr()+"failed in addLogs : missing ip field in log object ");
                return ResponseEntity.badRequest().body("server field missing in log object of json Array");
                 */
-               logs.add(new Log(userLog.get().getEmail(),descr,logTime));
+               logs.add(new Log(userLog.get().email(),descr,logTime));
            }else{
 
                String server = logJson.get("ip").asText();
 
-               logs.add(new Log(userLog.get().getEmail(),server,descr,logTime));
+               logs.add(new Log(userLog.get().email(),server,descr,logTime));
            }
        }
-       logRepo.saveAll(logs);
-       return ResponseEntity.ok("true");
+       return storeLogs(logs, "true", request);
+    }
+
+    /**
+     * Saves the logs on the request thread, with COPY when they are at least log.copy.threshold,
+     * or puts them in the ingestion queue with log.ingestion.mode=async
+     * @param logs the validated logs
+     * @param body the body of the response when the logs are saved synchronously
+     * @return ResponseEntity with:
+     *         - 200 OK: the logs are saved
+     *         - 202 ACCEPTED: the logs are queued and will be saved by the writer
+     *         - 429 TOO MANY REQUESTS: the queue is full, with Retry-After
+     */
+    private ResponseEntity storeLogs(List<Log> logs, Object body, HttpServletRequest request) {
+        if (!logIngestion.isEnabled()) {
+            if (logCopyWriter.isWorthCopy(logs.size())) {
+                logCopyWriter.copy(logs);
+            } else {
+                logRepo.saveAll(logs);
+            }
+            return ResponseEntity.ok(body);
+        }
+        if (!logIngestion.offerAll(logs)) {
+            log.warn("IP="+request.getRemoteAddr()+" logs refused : ingestion queue full ("+logIngestion.size()+")");
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .body("log queue full, retry later");
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body("true");
     }
 
 
@@ -405,7 +663,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("ip field missing ");
         }
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getServiceByIp   : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -454,7 +712,7 @@ public class ServerController {
         }
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
 
         return ResponseEntity.ok(serviceRepo.findAll());
     }
@@ -494,7 +752,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("name field missing ");
         }
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getServiceByIp   : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -522,7 +780,7 @@ public class ServerController {
         log.info("username="+request.getRemoteAddr()+" add service  ="+requestBody.get("name"));
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"problem in addr : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -593,7 +851,7 @@ public class ServerController {
         }
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getRulesByIp   : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -623,7 +881,7 @@ public class ServerController {
         }
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"problem in addServer : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -667,10 +925,12 @@ public class ServerController {
         if(requestBody.get("rule").hasNonNull("service")){
             Integer service = requestBody.get("rule").get("service").asInt();
             Rules local = new Rules("R",descr,status,ip,service);
+            local.setManual(true);
             rulesRepo.save(local);
             return ResponseEntity.ok(local);
         }
         Rules local = new Rules("R",descr,status,ip);
+        local.setManual(true);
         rulesRepo.save(local);
         return ResponseEntity.ok(local);
     }
@@ -695,7 +955,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("ip field missing ");
         }
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getLynisByIp   : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -758,7 +1018,7 @@ public class ServerController {
         }
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"problem in addServer : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -792,7 +1052,8 @@ public class ServerController {
         }
         String auditor = requestBody.get("lynis").get("auditor").textValue();
         // is used to check if we can load now the list of skippable tests or later
-        boolean activeServer = this.servers.containsKey(ip);
+        FleetRegistry.AgentEntry agent = fleet.getReachable(ip);
+        boolean activeServer = agent != null;
 
         if (requestBody.get("lynis").hasNonNull("listIdSkippedTest")){
             String listIdSkippedTestString = null;
@@ -805,7 +1066,7 @@ public class ServerController {
 
                 if (activeServer){
                     log.info("addLynisConfig add skipped listIdSkippedTest to local agent");
-                    int port = this.servers.get(ip).getPort();
+                    int port = agent.port();
                     log.info("listIdSkippedTest: {}=",list);
                     this.client.setActiveUser(ip,port,auditor);
                     this.client.addLynisRules(ip,port,list);
@@ -865,21 +1126,22 @@ public class ServerController {
             log.info("IP="+request.getRemoteAddr()+" failed in getLynisReportByIp : missing ip field"); // Corretto il messaggio
             return ResponseEntity.badRequest().body("ip field missing"); // Corretto il messaggio
         }
-        if(!userRepo.existsByUsername(username)){
+        if(!callerIdentity.byUsername(request, username).isPresent()){
             log.info("username=" + username + " not found");
             return ResponseEntity.badRequest().body("username not valid");
         }
-        if (!this.servers.containsKey(ip)) {
+        FleetRegistry.AgentEntry agent = fleet.getReachable(ip);
+        if (agent == null) {
             log.info("IP=" + request.getRemoteAddr() + " ip " + ip + " not running"); // Corretto il log
             return ResponseEntity.badRequest().body("ip format not valid"); // Cambiato da internalServerError
         }
         log.info(" getLynisReportByIp pamams = IP : ",ip ,"username:",username);
 
-        if(!servers.containsKey(ip)){
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("server not found");
+        if (circuitBreakers.isRejecting(ip, agent.port())) {
+            return agentUnavailable(ip, agent.port(), "agent unavailable");
         }
 
-        boolean userSet = client.setActiveUser(ip, this.servers.get(ip).getPort(), username);
+        boolean userSet = client.setActiveUser(ip, agent.port(), username);
         if (!userSet) {
             log.error("❌ Impossibile impostare l'utente {} sull'agent {}:5000", username, ip);
             return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
@@ -888,7 +1150,7 @@ public class ServerController {
 
         // Ottieni il report Lynis
         try {
-            String reportContent = client.getLynisReportText(ip, this.servers.get(ip).getPort());
+            String reportContent = client.getLynisReportText(ip, agent.port());
 
             log.info(" getLynisReportByIp pamams = IP : ",ip ,"username:",username);
 
@@ -926,17 +1188,18 @@ public class ServerController {
             log.info("IP="+request.getRemoteAddr()+" failed in StartLyniScan  : missing ip field"); // Corretto il messaggio
             return ResponseEntity.badRequest().body("ip field missing"); // Corretto il messaggio
              }
-        if(!this.servers.containsKey(ip)){
+        FleetRegistry.AgentEntry agent = fleet.getReachable(ip);
+        if(agent == null){
             log.info("IP=" + request.getRemoteAddr() + " ip " + ip + " not running");
             return ResponseEntity.badRequest().body("client not running");
         }
         log.info("startLynisScan: ho preso i parametri e tento di inoltro la scan all'agent python");
         try {
             // Imposta l'utente attivo sull'agent target
-            if(!servers.containsKey(ip)){
-                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("server not found");
+            if (circuitBreakers.isRejecting(ip, agent.port())) {
+                return agentUnavailable(ip, agent.port(), "agent unavailable");
             }
-            boolean userSet = this.client.setActiveUser(ip, this.servers.get(ip).getPort(), username);
+            boolean userSet = this.client.setActiveUser(ip, agent.port(), username);
             if (!userSet) {
                 log.error("IP={} failed in startLynisScan: unable to set active user {} on agent {}",
                         request.getRemoteAddr(), username, ip);
@@ -945,7 +1208,7 @@ public class ServerController {
             }
 
             // Avvia la scansione Lynis
-            boolean scanStarted = this.client.startLynisScan(ip, this.servers.get(ip).getPort());
+            boolean scanStarted = this.client.startLynisScan(ip, agent.port());
 
             if (scanStarted) {
                 log.info("IP={} successfully started Lynis scan for user {} on agent {}",
@@ -985,7 +1248,7 @@ public class ServerController {
         }
 
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"problem in updateDetailServer : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
@@ -1062,9 +1325,7 @@ public class ServerController {
         else
             desc = requestBody.get("descr").asText();
        Server local = new Server(ip,true,name,desc,port);
-       if ( !servers.containsKey(ip)){
-           this.servers.put(ip,local);
-       }
+        // the agent enters the fleet registry as REGISTERING, an agent already registered is left as it is
         boolean registrationStarted = agentRegistration.registerAgent(ip, port);
 
         if (registrationStarted) {
@@ -1079,7 +1340,18 @@ public class ServerController {
     }
 
 
+    /**
+     * Returns the status of the services of a server: the live data for an active agent, the saved data otherwise.
+     * The live data comes from a cache filled by the periodic sync, past its ttl it is served while refreshed in background.
+     * @param requestBody must contain the username of the user who make the request and the ip of the server
+     * @param request used for log the ip of the request
+     * @return ResponseEntity with:
+     *         - 200 OK: the list of services, for live data the header X-Data-As-Of has the time it was read
+     *         - 400 BAD REQUEST: missing or invalid fields
+     *         - 401 UNAUTHORIZED: unrecognized username
+     */
     @PostMapping("/getStatusServer")
+    @CrossOrigin(exposedHeaders = DATA_AS_OF_HEADER)
     ResponseEntity getStatusServices(@RequestBody JsonNode requestBody,HttpServletRequest request){
         log.info("getStatusServices(requestBody:{})", requestBody);
 
@@ -1093,7 +1365,7 @@ public class ServerController {
             return ResponseEntity.badRequest().body("ip field missing ");
         }
         String actualUsername = requestBody.get("username").asText();
-        Optional<User> actualUser = userRepo.findUserByUsername(actualUsername);
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, actualUsername);
         if(!actualUser.isPresent()){
             log.error("IP="+request.getRemoteAddr()+"failed in getServerByIp : unrecognized username ");
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
@@ -1104,19 +1376,70 @@ public class ServerController {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("invalid ip");
         }
 
-        if(this.servers.containsKey(actualIp)){
-            log.info(" getStatusServices , server running so get data diretly form datasource");
-            Server server = this.servers.get(actualIp);
-            List<AgentService> services = client.getServiceStatus(server.getIp(),server.getPort());
-            return ResponseEntity.ok(services);
+        FleetRegistry.AgentEntry server = fleet.getReachable(actualIp);
+        if(server != null && !circuitBreakers.isRejecting(server.ip(), server.port())){
+            log.info(" getStatusServices , server running so get data from the agent cache");
+            try {
+                Snapshot<List<AgentService>> services = statusCache.getServices(server.ip(), server.port()).join();
+                return liveData(services);
+            } catch (CompletionException e) {
+                log.warn(" getStatusServices , agent {} not readable ({}), data from db", actualIp, e.getMessage());
+            }
         }
-        else{
-            log.info(" getStatusServices , server down data from db");
-            List<AgentService> services = serviceRepo.findByIp(actualIp);
-            return ResponseEntity.ok(services);
+        // anche con il circuit aperto si risponde subito con gli ultimi dati salvati
+        log.info(" getStatusServices , server down or circuit open data from db");
+        List<AgentService> services = serviceRepo.findByIp(actualIp);
+        return ResponseEntity.ok(services);
+    }
+
+    /**
+     * Returns the status of the security rules of a server: the live data for an active agent, the saved data otherwise.
+     * Works as /getStatusServer
+     * @param requestBody must contain the username of the user who make the request and the ip of the server
+     * @param request used for log the ip of the request
+     * @return ResponseEntity with:
+     *         - 200 OK: the list of rules, for live data the header X-Data-As-Of has the time it was read
+     *         - 400 BAD REQUEST: missing or invalid fields
+     *         - 401 UNAUTHORIZED: unrecognized username
+     */
+    @PostMapping("/getStatusRules")
+    @CrossOrigin(exposedHeaders = DATA_AS_OF_HEADER)
+    ResponseEntity getStatusRules(@RequestBody JsonNode requestBody,HttpServletRequest request){
+        if(!requestBody.hasNonNull("username")){
+            log.warn("IP="+request.getRemoteAddr()+" failed in getStatusRules : missing username field");
+            return ResponseEntity.badRequest().body("username field missing ");
+        }
+        if(!requestBody.hasNonNull("ip")){
+            log.warn("IP="+request.getRemoteAddr()+" failed in getStatusRules : missing ip field ");
+            return ResponseEntity.badRequest().body("ip field missing ");
+        }
+        Optional<UserCache.CachedUser> actualUser = callerIdentity.byUsername(request, requestBody.get("username").asText());
+        if(!actualUser.isPresent()){
+            log.error("IP="+request.getRemoteAddr()+"failed in getStatusRules : unrecognized username ");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("unrecognized username");
+        }
+        String actualIp = requestBody.get("ip").asText();
+        if (!Tools.isValidIp(actualIp)){
+            log.error("IP="+request.getRemoteAddr()+"failed in getStatusRules : invalid ip ");
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("invalid ip");
         }
 
+        FleetRegistry.AgentEntry server = fleet.getReachable(actualIp);
+        if(server != null && !circuitBreakers.isRejecting(server.ip(), server.port())){
+            try {
+                Snapshot<List<Rules>> rules = statusCache.getRules(server.ip(), server.port()).join();
+                return liveData(rules);
+            } catch (CompletionException e) {
+                log.warn(" getStatusRules , agent {} not readable ({}), data from db", actualIp, e.getMessage());
+            }
+        }
+        return ResponseEntity.ok(rulesRepo.findByIp(actualIp).orElse(Collections.emptyList()));
+    }
 
+    private ResponseEntity<Object> liveData(Snapshot<?> snapshot){
+        return ResponseEntity.ok()
+                .header(DATA_AS_OF_HEADER, snapshot.asOf().toString())
+                .body(snapshot.value());
     }
 
 
@@ -0,0 +1,137 @@
+package marius.server.controller;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import marius.server.repo.UserCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Checks the token in the header Authorization: Bearer and puts the session in the request,
+ * the handlers read it through {@link CallerIdentity}. A token not valid or expired is refused with 401.
+ * A request without a token is refused with 401, only the routes in auth.token.public-paths are served without it.
+ * With auth.token.required=false (deprecated, only for the clients not yet sending the token) a request without a token
+ * goes on to the handlers, that identify the caller by the username or email it sends, and a warning is logged.
+ * When less than half of its validity is left, the user is read again and a new token with its current identity
+ * is sent back in the header X-Auth-Token, within the max age of the session; the token of a deleted user is refused.
+ */
+@Component
+public class SessionTokenFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionTokenFilter.class);
+
+    /** request attribute with the {@link SessionTokens.Session} of the caller */
+    public static final String SESSION_ATTRIBUTE = SessionTokenFilter.class.getName() + ".session";
+    /** header with a new token, sent by /authUser and when the token in use is close to expire */
+    public static final String TOKEN_HEADER = "X-Auth-Token";
+    /** header with the expiration of the token in X-Auth-Token */
+    public static final String TOKEN_EXPIRES_HEADER = "X-Auth-Token-Expires";
+    private static final String BEARER = "Bearer ";
+
+    private final SessionTokens tokens;
+    private final UserCache userCache;
+    private final boolean required;
+    private final List<String> publicPaths;
+    private final AntPathMatcher matcher = new AntPathMatcher();
+
+    public SessionTokenFilter(SessionTokens tokens, UserCache userCache,
+                              @Value("${auth.token.required:true}") boolean required,
+                              @Value("${auth.token.public-paths:/authUser,/addUser,/ping1,/isEmailApproved,/actuator/**}") String publicPaths) {
+        this.tokens = tokens;
+        this.userCache = userCache;
+        this.required = required;
+        this.publicPaths = Arrays.stream(publicPaths.split(","))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .toList();
+        if (!required) {
+            log.warn("auth.token.required=false è deprecato: le richieste senza token sono identificate dallo username inviato");
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            if (!isPublic(request)) {
+                if (required) {
+                    log.warn("IP={} richiesta senza token a {}", request.getRemoteAddr(), request.getRequestURI());
+                    unauthorized(response, null);
+                    return;
+                }
+                log.warn("IP={} richiesta senza token a {}, deprecato: inviare Authorization: Bearer",
+                        request.getRemoteAddr(), request.getRequestURI());
+            }
+            chain.doFilter(request, response);
+            return;
+        }
+
+        Instant now = Instant.now();
+        SessionTokens.Session session = tokens.verify(authorization.substring(BEARER.length()).trim(), now);
+        if (session == null) {
+            log.warn("IP={} token non valido o scaduto per {}", request.getRemoteAddr(), request.getRequestURI());
+            unauthorized(response, "invalid_token");
+            return;
+        }
+        // sliding session: the client replaces its token with the new one
+        if (Duration.between(now, session.expiresAt()).compareTo(tokens.getTtl().dividedBy(2)) < 0) {
+            // the token is not renewed from its own claims, a role changed or a user deleted since the login is seen here
+            Optional<UserCache.CachedUser> current = userCache.findByEmail(session.user().email());
+            if (current.isEmpty()) {
+                log.warn("IP={} token di {}, utente non più presente", request.getRemoteAddr(), session.user().email());
+                unauthorized(response, "invalid_token");
+                return;
+            }
+            session = new SessionTokens.Session(current.get(), session.expiresAt(), session.authenticatedAt());
+            SessionTokens.Token renewed = tokens.renew(session, current.get(), now);
+            if (renewed != null) {
+                setToken(response, renewed);
+            }
+        }
+        request.setAttribute(SESSION_ATTRIBUTE, session);
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * Adds the token to the headers of the response
+     */
+    static void setToken(HttpServletResponse response, SessionTokens.Token token) {
+        response.setHeader(TOKEN_HEADER, token.value());
+        response.setHeader(TOKEN_EXPIRES_HEADER, token.expiresAt().toString());
+    }
+
+    private boolean isPublic(HttpServletRequest request) {
+        // the CORS preflight never has the token
+        if (HttpMethod.OPTIONS.matches(request.getMethod())) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String publicPath : publicPaths) {
+            if (matcher.match(publicPath, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void unauthorized(HttpServletResponse response, String error) throws IOException {
+        response.setHeader(HttpHeaders.WWW_AUTHENTICATE, error == null ? "Bearer" : "Bearer error=\"" + error + "\"");
+        response.sendError(HttpServletResponse.SC_UNAUTHORIZED, error == null ? "token missing" : "token not valid");
+    }
+}
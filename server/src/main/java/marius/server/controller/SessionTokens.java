@@ -0,0 +1,209 @@
+package marius.server.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import marius.server.data.RoleEnum;
+import marius.server.repo.UserCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Signed session tokens issued by /authUser. A token is a JWT signed with HMAC-SHA256 (header.payload.signature)
+ * carrying the email, the username and the role of the user, the time of the login and its expiration: it is checked in memory,
+ * without reading the user from the database. A change of role or a deleted user is seen when the token is renewed
+ * or expires, so auth.token.ttl-seconds must stay short. The renewals keep the time of the login:
+ * a session never lasts more than auth.token.max-session-seconds, then the user must login again.
+ */
+@Component
+public class SessionTokens {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionTokens.class);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    // the only header accepted, a token with another algorithm (e.g. "none") is refused before reading it
+    private static final String HEADER = ENCODER.encodeToString(
+            "{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+    private static final int MIN_SECRET_BYTES = 32;
+
+    /**
+     * A verified session
+     * @param user the identity of the user
+     * @param expiresAt when the token expires
+     * @param authenticatedAt when the user logged in, the same for all the renewed tokens of the session
+     */
+    public record Session(UserCache.CachedUser user, Instant expiresAt, Instant authenticatedAt) {}
+
+    /**
+     * A new token
+     * @param value the signed token
+     * @param expiresAt when the token expires
+     */
+    public record Token(String value, Instant expiresAt) {}
+
+    private final ObjectMapper mapper;
+    private final Duration ttl;
+    private final Duration maxSession;
+    // Mac is not thread safe: every thread uses its own copy of the initialized one
+    private final ThreadLocal<Mac> macs;
+
+    public SessionTokens(ObjectMapper mapper,
+                         @Value("${auth.token.secret:}") String secret,
+                         @Value("${auth.token.ttl-seconds:900}") long ttlSeconds,
+                         @Value("${auth.token.max-session-seconds:28800}") long maxSessionSeconds) {
+        this.mapper = mapper;
+        this.ttl = Duration.ofSeconds(Math.max(1, ttlSeconds));
+        this.maxSession = Duration.ofSeconds(Math.max(this.ttl.getSeconds(), maxSessionSeconds));
+        byte[] key;
+        if (secret == null || secret.isBlank()) {
+            log.warn("auth.token.secret non impostato: chiave casuale, i token non sono validi dopo un riavvio o su altre istanze");
+            key = new byte[MIN_SECRET_BYTES];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = Base64.getDecoder().decode(secret.trim());
+            if (key.length < MIN_SECRET_BYTES) {
+                throw new IllegalArgumentException("auth.token.secret deve essere di almeno " + MIN_SECRET_BYTES + " byte in base64");
+            }
+        }
+        SecretKeySpec keySpec = new SecretKeySpec(key, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(keySpec);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " not available", e);
+            }
+        });
+    }
+
+    /**
+     * @return how long a token is valid
+     */
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @param user the authenticated user
+     * @return a token valid for auth.token.ttl-seconds
+     */
+    public Token issue(UserCache.CachedUser user) {
+        return issue(user, Instant.now());
+    }
+
+    /**
+     * @param user the authenticated user
+     * @param now the time of the issue, the start of the session
+     * @return a token valid for auth.token.ttl-seconds from now
+     */
+    public Token issue(UserCache.CachedUser user, Instant now) {
+        return sign(user, now, now, now.plus(ttl));
+    }
+
+    /**
+     * A new token for a session close to expire, in the same session: it never expires after
+     * auth.token.max-session-seconds from the login
+     * @param session the session of the token in use
+     * @param user the identity of the user read again, it replaces the one of the token
+     * @param now the time of the renewal
+     * @return the new token, null if the session can not be extended
+     */
+    public Token renew(Session session, UserCache.CachedUser user, Instant now) {
+        Instant expiresAt = min(now.plus(ttl), session.authenticatedAt().plus(maxSession));
+        if (!expiresAt.isAfter(session.expiresAt())) {
+            return null;
+        }
+        return sign(user, session.authenticatedAt(), now, expiresAt);
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private Token sign(UserCache.CachedUser user, Instant authenticatedAt, Instant now, Instant expiresAt) {
+        ObjectNode claims = mapper.createObjectNode();
+        claims.put("sub", user.email());
+        claims.put("name", user.username());
+        claims.put("role", user.role().name());
+        claims.put("auth_time", authenticatedAt.getEpochSecond());
+        claims.put("iat", now.getEpochSecond());
+        claims.put("exp", expiresAt.getEpochSecond());
+        String signed = HEADER + "." + ENCODER.encodeToString(claims.toString().getBytes(StandardCharsets.UTF_8));
+        return new Token(signed + "." + ENCODER.encodeToString(sign(signed)), Instant.ofEpochSecond(expiresAt.getEpochSecond()));
+    }
+
+    /**
+     * @param token the token sent by the client
+     * @return the session, null if the token is malformed, has a wrong signature or is expired
+     */
+    public Session verify(String token) {
+        return verify(token, Instant.now());
+    }
+
+    /**
+     * @param token the token sent by the client
+     * @param now the time of the check
+     * @return the session, null if the token is malformed, has a wrong signature, is expired at now
+     * or its session is older than auth.token.max-session-seconds
+     */
+    public Session verify(String token, Instant now) {
+        if (token == null) {
+            return null;
+        }
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        if (first < 0 || first == last || !token.substring(0, first).equals(HEADER)) {
+            log.debug("Token malformato");
+            return null;
+        }
+        try {
+            byte[] signature = DECODER.decode(token.substring(last + 1));
+            if (!MessageDigest.isEqual(signature, sign(token.substring(0, last)))) {
+                log.debug("Token con firma non valida");
+                return null;
+            }
+            JsonNode claims = mapper.readTree(DECODER.decode(token.substring(first + 1, last)));
+            Instant expiresAt = Instant.ofEpochSecond(claims.path("exp").asLong(0));
+            if (!now.isBefore(expiresAt)) {
+                log.debug("Token scaduto per {}", claims.path("sub").asText());
+                return null;
+            }
+            Instant authenticatedAt = Instant.ofEpochSecond(claims.path("auth_time").asLong(0));
+            if (!now.isBefore(authenticatedAt.plus(maxSession))) {
+                log.debug("Sessione oltre la durata massima per {}", claims.path("sub").asText());
+                return null;
+            }
+            String email = claims.path("sub").textValue();
+            String username = claims.path("name").textValue();
+            if (email == null || username == null) {
+                return null;
+            }
+            RoleEnum role = RoleEnum.valueOf(claims.path("role").asText());
+            return new Session(new UserCache.CachedUser(email, username, role), expiresAt, authenticatedAt);
+        } catch (IllegalArgumentException | IOException e) {
+            // bad base64, json or role
+            log.debug("Token non leggibile: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private byte[] sign(String content) {
+        return macs.get().doFinal(content.getBytes(StandardCharsets.US_ASCII));
+    }
+}
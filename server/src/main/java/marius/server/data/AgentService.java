@@ -9,7 +9,8 @@ import lombok.Data;
 @Table(name = "service")
 public class AgentService {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "service_id_gen")
+    @SequenceGenerator(name = "service_id_gen", sequenceName = "service_id_seq", allocationSize = 50)
     @Column()
     private int id;
 
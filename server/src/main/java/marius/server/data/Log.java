@@ -11,7 +11,8 @@ import java.sql.Timestamp;
 public class Log {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "log_id_gen")
+    @SequenceGenerator(name = "log_id_gen", sequenceName = "log_id_seq", allocationSize = 50)
     @Column()
     private int id;
 
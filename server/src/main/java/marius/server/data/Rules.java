@@ -8,7 +8,8 @@ import lombok.Data;
 @Table(name = "rules")
 public class Rules {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "rules_id_gen")
+    @SequenceGenerator(name = "rules_id_gen", sequenceName = "rules_id_seq", allocationSize = 50)
     @Column()
     private int id;
 
@@ -27,6 +28,10 @@ public class Rules {
     @Column()
     private Integer  service ;
 
+    // added by /addRule, not reported by the agent: the sync of the agent never touches it
+    @Column(nullable = false)
+    private boolean manual ;
+
     public Rules(){}
 
 
@@ -77,4 +82,12 @@ public class Rules {
     public void setService(Integer service) {
         this.service = service;
     }
+
+    public boolean isManual() {
+        return manual;
+    }
+
+    public void setManual(boolean manual) {
+        this.manual = manual;
+    }
 }
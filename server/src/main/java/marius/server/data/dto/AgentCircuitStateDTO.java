@@ -0,0 +1,34 @@
+package marius.server.data.dto;
+
+/**
+ * Snapshot of the circuit breaker of an agent, returned by /getAgentsCircuitState
+ */
+public class AgentCircuitStateDTO {
+    private final String ip;
+    private final int port;
+    private final String state;
+    private final float failureRate;
+    private final float slowCallRate;
+    private final int bufferedCalls;
+    private final long retryAfterMillis;
+
+    public AgentCircuitStateDTO(String ip, int port, String state, float failureRate, float slowCallRate,
+                                int bufferedCalls, long retryAfterMillis) {
+        this.ip = ip; this.port = port; this.state = state; this.failureRate = failureRate;
+        this.slowCallRate = slowCallRate; this.bufferedCalls = bufferedCalls; this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public String getIp() { return ip; }
+    public int getPort() { return port; }
+    public String getState() { return state; }
+    public float getFailureRate() { return failureRate; }
+    public float getSlowCallRate() { return slowCallRate; }
+    public int getBufferedCalls() { return bufferedCalls; }
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+
+    @Override
+    public String toString() {
+        return "AgentCircuitStateDTO{ip='" + ip + "', port=" + port + ", state=" + state +
+                ", failureRate=" + failureRate + ", slowCallRate=" + slowCallRate + "}";
+    }
+}
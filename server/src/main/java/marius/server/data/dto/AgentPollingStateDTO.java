@@ -0,0 +1,28 @@
+package marius.server.data.dto;
+
+import java.time.Instant;
+
+/**
+ * Current polling interval of an agent, returned by /getAgentsPollingState
+ */
+public class AgentPollingStateDTO {
+    private final String ip;
+    private final long intervalMillis;
+    private final Instant nextPollAt;
+    private final String lastResult;
+
+    public AgentPollingStateDTO(String ip, long intervalMillis, Instant nextPollAt, String lastResult) {
+        this.ip = ip; this.intervalMillis = intervalMillis; this.nextPollAt = nextPollAt; this.lastResult = lastResult;
+    }
+
+    public String getIp() { return ip; }
+    public long getIntervalMillis() { return intervalMillis; }
+    public Instant getNextPollAt() { return nextPollAt; }
+    public String getLastResult() { return lastResult; }
+
+    @Override
+    public String toString() {
+        return "AgentPollingStateDTO{ip='" + ip + "', intervalMillis=" + intervalMillis +
+                ", nextPollAt=" + nextPollAt + ", lastResult='" + lastResult + "'}";
+    }
+}
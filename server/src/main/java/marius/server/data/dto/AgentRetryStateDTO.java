@@ -0,0 +1,36 @@
+package marius.server.data.dto;
+
+import java.time.Instant;
+
+/**
+ * Snapshot of the onboarding retries of an agent, returned by /getAgentsRetryState
+ */
+public class AgentRetryStateDTO {
+    private final String ip;
+    private final int port;
+    private final int attempts;
+    private final int maxAttempts;
+    private final long nextDelayMillis;
+    private final Instant nextAttemptAt;
+    private final String lastError;
+
+    public AgentRetryStateDTO(String ip, int port, int attempts, int maxAttempts,
+                              long nextDelayMillis, Instant nextAttemptAt, String lastError) {
+        this.ip = ip; this.port = port; this.attempts = attempts; this.maxAttempts = maxAttempts;
+        this.nextDelayMillis = nextDelayMillis; this.nextAttemptAt = nextAttemptAt; this.lastError = lastError;
+    }
+
+    public String getIp() { return ip; }
+    public int getPort() { return port; }
+    public int getAttempts() { return attempts; }
+    public int getMaxAttempts() { return maxAttempts; }
+    public long getNextDelayMillis() { return nextDelayMillis; }
+    public Instant getNextAttemptAt() { return nextAttemptAt; }
+    public String getLastError() { return lastError; }
+
+    @Override
+    public String toString() {
+        return "AgentRetryStateDTO{ip='" + ip + "', port=" + port + ", attempts=" + attempts + "/" + maxAttempts +
+                ", nextAttemptAt=" + nextAttemptAt + ", lastError='" + lastError + "'}";
+    }
+}
@@ -0,0 +1,27 @@
+package marius.server.data.dto;
+
+import marius.server.data.Log;
+
+import java.util.List;
+
+/**
+ * Page of logs returned by /getAllLogs and /getUserLogs, nextCursor is null on the last page
+ */
+public class LogPageDTO {
+    private final List<Log> items;
+    private final String nextCursor;
+    private final int limit;
+
+    public LogPageDTO(List<Log> items, String nextCursor, int limit) {
+        this.items = items; this.nextCursor = nextCursor; this.limit = limit;
+    }
+
+    public List<Log> getItems() { return items; }
+    public String getNextCursor() { return nextCursor; }
+    public int getLimit() { return limit; }
+
+    @Override
+    public String toString() {
+        return "LogPageDTO{items=" + items.size() + ", nextCursor='" + nextCursor + "', limit=" + limit + "}";
+    }
+}
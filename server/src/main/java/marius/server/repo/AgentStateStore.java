@@ -0,0 +1,215 @@
+package marius.server.repo;
+
+import jakarta.transaction.Transactional;
+import marius.server.data.AgentService;
+import marius.server.data.Rules;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the state read from the agents with set-based statements, one per agent,
+ * instead of loading and saving the entities one by one
+ */
+@Service
+public class AgentStateStore {
+
+    /**
+     * Result of a reconciliation
+     * @param upserted the rows inserted or changed
+     * @param deleted the rows removed because the agent does not report them anymore
+     */
+    public record Reconciliation(int upserted, int deleted) {}
+
+    // the unchanged rows are not touched, so they keep their id and do not create dead tuples.
+    // only the names not yet stored go to the INSERT, so the sequence is not consumed by the existing services
+    private static final String RECONCILE_SERVICES = """
+            WITH incoming AS (
+                SELECT * FROM unnest(?::text[], ?::text[], ?::int[], ?::boolean[], ?::boolean[])
+                    AS t(name, description, porta, automatic_start, state)
+            ), updated AS (
+                UPDATE service s
+                SET description = i.description, porta = i.porta, automatic_start = i.automatic_start, state = i.state
+                FROM incoming i
+                WHERE s.ip = ? AND s.name = i.name
+                  AND (s.description, s.porta, s.automatic_start, s.state)
+                      IS DISTINCT FROM (i.description, i.porta, i.automatic_start, i.state)
+                RETURNING 1
+            ), inserted AS (
+                INSERT INTO service (ip, name, description, porta, automatic_start, state)
+                SELECT ?, i.name, i.description, i.porta, i.automatic_start, i.state FROM incoming i
+                WHERE NOT EXISTS (SELECT 1 FROM service s WHERE s.ip = ? AND s.name = i.name)
+                ON CONFLICT (ip, name) DO NOTHING
+                RETURNING 1
+            ), deleted AS (
+                DELETE FROM service s
+                WHERE s.ip = ? AND NOT EXISTS (SELECT 1 FROM incoming i WHERE i.name = s.name)
+                RETURNING 1
+            )
+            SELECT (SELECT count(*) FROM updated) + (SELECT count(*) FROM inserted) AS upserted,
+                   (SELECT count(*) FROM deleted) AS deleted
+            """;
+
+    /**
+     * Result of marking hosts down
+     * @param servers the servers switched from up to down
+     * @param services the services switched off
+     * @param rules the rules switched off
+     */
+    public record HostsDown(int servers, int services, int rules) {}
+
+    // same shape of RECONCILE_SERVICES, the service column is not reported by the agent and is left as it is.
+    // Only the rules of the agent are reconciled, the manual ones added by /addRule are never updated or deleted
+    private static final String RECONCILE_RULES = """
+            WITH incoming AS (
+                SELECT * FROM unnest(?::text[], ?::text[], ?::boolean[]) AS t(name, descr, status)
+            ), updated AS (
+                UPDATE rules r
+                SET descr = i.descr, status = i.status
+                FROM incoming i
+                WHERE r.ip = ? AND NOT r.manual AND r.name = i.name
+                  AND (r.descr, r.status) IS DISTINCT FROM (i.descr, i.status)
+                RETURNING 1
+            ), inserted AS (
+                INSERT INTO rules (ip, name, descr, status, manual)
+                SELECT ?, i.name, i.descr, i.status, false FROM incoming i
+                WHERE NOT EXISTS (SELECT 1 FROM rules r WHERE r.ip = ? AND NOT r.manual AND r.name = i.name)
+                ON CONFLICT (ip, name) WHERE NOT manual DO NOTHING
+                RETURNING 1
+            ), deleted AS (
+                DELETE FROM rules r
+                WHERE r.ip = ? AND NOT r.manual AND NOT EXISTS (SELECT 1 FROM incoming i WHERE i.name = r.name)
+                RETURNING 1
+            )
+            SELECT (SELECT count(*) FROM updated) + (SELECT count(*) FROM inserted) AS upserted,
+                   (SELECT count(*) FROM deleted) AS deleted
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AgentStateStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Makes the services of the agent on the database equal to the ones it reported:
+     * the new services are inserted, the changed ones updated and the missing ones deleted,
+     * in a single statement so the readers never see the agent without services
+     * @param ip the ip of the agent
+     * @param services the services reported by the agent, with the same name the last one wins
+     * @return the number of rows written
+     */
+    @Transactional
+    public Reconciliation reconcileServices(String ip, List<AgentService> services) {
+        Map<String, AgentService> byName = new LinkedHashMap<>();
+        for (AgentService service : services) {
+            byName.put(service.getName(), service);
+        }
+        int size = byName.size();
+        String[] names = new String[size];
+        String[] descriptions = new String[size];
+        Integer[] ports = new Integer[size];
+        Boolean[] automaticStarts = new Boolean[size];
+        Boolean[] states = new Boolean[size];
+        int i = 0;
+        for (AgentService service : byName.values()) {
+            names[i] = service.getName();
+            descriptions[i] = service.getDescription();
+            ports[i] = service.getPorta();
+            automaticStarts[i] = service.isAutomaticStart();
+            states[i] = service.isState();
+            i++;
+        }
+
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(RECONCILE_SERVICES);
+            statement.setArray(1, connection.createArrayOf("text", names));
+            statement.setArray(2, connection.createArrayOf("text", descriptions));
+            statement.setArray(3, connection.createArrayOf("int4", ports));
+            statement.setArray(4, connection.createArrayOf("bool", automaticStarts));
+            statement.setArray(5, connection.createArrayOf("bool", states));
+            for (int parameter = 6; parameter <= 9; parameter++) {
+                statement.setString(parameter, ip);
+            }
+            return statement;
+        }, (ResultSet rs) -> {
+            rs.next();
+            return new Reconciliation(rs.getInt("upserted"), rs.getInt("deleted"));
+        });
+    }
+
+    /**
+     * Makes the rules of the agent on the database equal to the ones it reported, as {@link #reconcileServices}:
+     * only the new and changed rules are written and the rules the agent does not report anymore are deleted.
+     * @param ip the ip of the agent, every row is upserted and deleted with it whatever the ip set on the rules
+     * @param ip the ip of the agent
+     * @param rules the rules reported by the agent, with the same name the last one wins, the rules without name are ignored
+     * @return the number of rows written
+     */
+    @Transactional
+    public Reconciliation reconcileRules(String ip, List<Rules> rules) {
+        Map<String, Rules> byName = new LinkedHashMap<>();
+        for (Rules rule : rules) {
+            if (rule.getName() != null) {
+                byName.put(rule.getName(), rule);
+            }
+        }
+        int size = byName.size();
+        String[] names = new String[size];
+        String[] descriptions = new String[size];
+        Boolean[] statuses = new Boolean[size];
+        int i = 0;
+        for (Rules rule : byName.values()) {
+            names[i] = rule.getName();
+            descriptions[i] = rule.getDescr();
+            statuses[i] = rule.isStatus();
+            i++;
+        }
+
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(RECONCILE_RULES);
+            statement.setArray(1, connection.createArrayOf("text", names));
+            statement.setArray(2, connection.createArrayOf("text", descriptions));
+            statement.setArray(3, connection.createArrayOf("bool", statuses));
+            for (int parameter = 4; parameter <= 7; parameter++) {
+                statement.setString(parameter, ip);
+            }
+            return statement;
+        }, (ResultSet rs) -> {
+            rs.next();
+            return new Reconciliation(rs.getInt("upserted"), rs.getInt("deleted"));
+        });
+    }
+
+    /**
+     * Sets down the servers and all their services and rules with one UPDATE per table, in a single transaction.
+     * The rows already down are not written again
+     * @param ips the IP v4 addresses of the hosts
+     * @return the number of rows changed in each table
+     */
+    @Transactional
+    public HostsDown markHostsDown(Collection<String> ips) {
+        if (ips.isEmpty()) {
+            return new HostsDown(0, 0, 0);
+        }
+        String[] array = ips.toArray(new String[0]);
+        int servers = updateByIps("UPDATE server SET state = false WHERE ip = ANY(?) AND state", array);
+        int services = updateByIps("UPDATE service SET state = false WHERE ip = ANY(?) AND state", array);
+        int rules = updateByIps("UPDATE rules SET status = false WHERE ip = ANY(?) AND status", array);
+        return new HostsDown(servers, services, rules);
+    }
+
+    private int updateByIps(String sql, String[] ips) {
+        return jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setArray(1, connection.createArrayOf("text", ips));
+            return statement;
+        });
+    }
+}
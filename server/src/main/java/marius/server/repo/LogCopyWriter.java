@@ -0,0 +1,163 @@
+package marius.server.repo;
+
+import jakarta.transaction.Transactional;
+import marius.server.data.Log;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Bulk insert of logs with COPY ... FROM STDIN: the rows are streamed to postgres in a single command
+ * instead of one INSERT per row. The ids are taken from log_id_seq in blocks of its increment,
+ * as the pooled-lo optimizer of hibernate does, so the two paths never give the same id.
+ */
+@Repository
+public class LogCopyWriter {
+
+    private static final String COPY = "COPY log (id, data, user_email, ip, service, descr) FROM STDIN WITH (FORMAT csv)";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final int threshold;
+    private volatile int increment;
+
+    public LogCopyWriter(DataSource dataSource, JdbcTemplate jdbcTemplate,
+                         @Value("${log.copy.threshold:1000}") int threshold) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = jdbcTemplate;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param size the number of logs to write
+     * @return true if they are enough to be worth a COPY, log.copy.threshold &lt;= 0 disables it
+     */
+    public boolean isWorthCopy(int size) {
+        return threshold > 0 && size >= threshold;
+    }
+
+    /**
+     * Writes the logs and sets their ids. A log without data gets the current time, as the default of the column
+     * @param logs the validated logs
+     * @return the number of rows written
+     */
+    @Transactional
+    public long copy(List<Log> logs) {
+        if (logs.isEmpty()) {
+            return 0;
+        }
+        assignIds(logs);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (Log log : logs) {
+            if (log.getData() == null) {
+                log.setData(now);
+            }
+        }
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        CopyIn copyIn = null;
+        try {
+            copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY);
+            StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 1024);
+            for (Log log : logs) {
+                appendRow(buffer, log);
+                if (buffer.length() >= BUFFER_SIZE) {
+                    write(copyIn, buffer);
+                }
+            }
+            write(copyIn, buffer);
+            long rows = copyIn.endCopy();
+            copyIn = null;
+            return rows;
+        } catch (SQLException e) {
+            throw new UncategorizedSQLException("copy of " + logs.size() + " logs", COPY, e);
+        } finally {
+            if (copyIn != null && copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException ignored) {
+                    // the transaction is rolled back anyway
+                }
+            }
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * Takes ceil(n / increment) values of the sequence, each one reserves increment ids
+     */
+    private void assignIds(List<Log> logs) {
+        int step = increment();
+        int blocks = (logs.size() + step - 1) / step;
+        List<Integer> starts = jdbcTemplate.queryForList(
+                "SELECT nextval('log_id_seq')::int FROM generate_series(1, ?)", Integer.class, blocks);
+        for (int i = 0; i < logs.size(); i++) {
+            logs.get(i).setId(starts.get(i / step) + i % step);
+        }
+    }
+
+    private int increment() {
+        int value = increment;
+        if (value == 0) {
+            Integer read = jdbcTemplate.queryForObject(
+                    "SELECT increment_by::int FROM pg_sequences WHERE sequencename = 'log_id_seq' AND schemaname = current_schema()",
+                    Integer.class);
+            if (read == null || read < 1) {
+                throw new IllegalStateException("log_id_seq without a positive increment");
+            }
+            increment = value = read;
+        }
+        return value;
+    }
+
+    private static void write(CopyIn copyIn, StringBuilder buffer) throws SQLException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+    // csv: an unquoted empty field is NULL, the strings are always quoted so an empty string stays empty
+    private static void appendRow(StringBuilder buffer, Log log) {
+        buffer.append(log.getId()).append(',');
+        buffer.append(log.getData()).append(',');
+        appendString(buffer, log.getUserEmail());
+        buffer.append(',');
+        appendString(buffer, log.getIp());
+        buffer.append(',');
+        if (log.getService() != null) {
+            buffer.append(log.getService().intValue());
+        }
+        buffer.append(',');
+        appendString(buffer, log.getDescr());
+        buffer.append('\n');
+    }
+
+    private static void appendString(StringBuilder buffer, String value) {
+        if (value == null) {
+            return;
+        }
+        buffer.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                buffer.append('"');
+            }
+            buffer.append(c);
+        }
+        buffer.append('"');
+    }
+}
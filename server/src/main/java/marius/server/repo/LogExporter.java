@@ -0,0 +1,222 @@
+package marius.server.repo;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the logs to a stream while they are read: the rows come from a server side cursor
+ * fetchSize at a time and are written one by one, so the memory used does not depend on the size of the table
+ */
+@Repository
+public class LogExporter {
+
+    public enum Format {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv");
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() { return contentType; }
+        public String getExtension() { return extension; }
+    }
+
+    private static final String CSV_HEADER = "id,data,user_email,ip,service,descr";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper mapper;
+
+    public LogExporter(DataSource dataSource, PlatformTransactionManager transactionManager, ObjectMapper mapper,
+                       @Value("${log.export.fetch-size:5000}") int fetchSize) {
+        // postgres uses a cursor only with a fetch size inside a transaction, otherwise it reads the whole result
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(Math.max(1, fetchSize));
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.mapper = mapper;
+    }
+
+    /**
+     * Writes the logs matching the filter ordered by data and id
+     * @param filter the filters, the same of the paginated reads
+     * @param format the format of the rows
+     * @param gzip true to compress the output
+     * @param out the stream, it is flushed but not closed
+     * @return the number of rows written
+     */
+    public long export(LogKeysetQuery.Filter filter, Format format, boolean gzip, OutputStream out) throws IOException {
+        GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? compressed : out, StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        RowWriter rows = format == Format.CSV ? new CsvRowWriter(writer) : new NdjsonRowWriter(writer);
+        List<Object> params = new ArrayList<>();
+        String sql = query(filter, params);
+        Long count;
+        try {
+            count = transactionTemplate.execute(status -> {
+                long[] written = {0};
+                jdbcTemplate.query(sql, rs -> {
+                    try {
+                        rows.write(rs);
+                    } catch (IOException e) {
+                        // the client went away, the cursor is closed with the transaction
+                        throw new UncheckedIOException(e);
+                    }
+                    written[0]++;
+                }, params.toArray());
+                return written[0];
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        rows.finish();
+        writer.flush();
+        if (compressed != null) {
+            compressed.finish();
+        }
+        out.flush();
+        return count == null ? 0 : count;
+    }
+
+    private static String query(LogKeysetQuery.Filter filter, List<Object> params) {
+        StringBuilder sql = new StringBuilder("SELECT id, data, user_email, ip, service, descr FROM log WHERE true");
+        if (filter.userEmail() != null) {
+            sql.append(" AND user_email = ?");
+            params.add(filter.userEmail());
+        }
+        if (filter.ip() != null) {
+            sql.append(" AND ip = ?");
+            params.add(filter.ip());
+        }
+        if (filter.service() != null) {
+            sql.append(" AND service = ?");
+            params.add(filter.service());
+        }
+        if (filter.from() != null) {
+            sql.append(" AND data >= ?");
+            params.add(Timestamp.valueOf(filter.from()));
+        }
+        if (filter.to() != null) {
+            sql.append(" AND data < ?");
+            params.add(Timestamp.valueOf(filter.to()));
+        }
+        return sql.append(" ORDER BY data, id").toString();
+    }
+
+    private interface RowWriter {
+        void write(ResultSet rs) throws SQLException, IOException;
+
+        default void finish() throws IOException {}
+    }
+
+    private final class NdjsonRowWriter implements RowWriter {
+        private final Writer writer;
+        private final JsonGenerator generator;
+
+        private NdjsonRowWriter(Writer writer) throws IOException {
+            this.writer = writer;
+            this.generator = mapper.getFactory().createGenerator(writer);
+            // the generator must not close or flush the writer, the buffering is done by the writer
+            this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("id", rs.getInt(1));
+            Timestamp data = rs.getTimestamp(2);
+            generator.writeStringField("data", data == null ? null : data.toLocalDateTime().toString());
+            generator.writeStringField("userEmail", rs.getString(3));
+            generator.writeStringField("ip", rs.getString(4));
+            int service = rs.getInt(5);
+            if (rs.wasNull()) {
+                generator.writeNullField("service");
+            } else {
+                generator.writeNumberField("service", service);
+            }
+            generator.writeStringField("descr", rs.getString(6));
+            generator.writeEndObject();
+            generator.flush();
+            writer.write('\n');
+        }
+    }
+
+    private static final class CsvRowWriter implements RowWriter {
+        private final Writer writer;
+
+        private CsvRowWriter(Writer writer) throws IOException {
+            this.writer = writer;
+            writer.write(CSV_HEADER);
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            writer.write(Integer.toString(rs.getInt(1)));
+            writer.write(',');
+            Timestamp data = rs.getTimestamp(2);
+            if (data != null) {
+                writer.write(data.toLocalDateTime().toString());
+            }
+            writer.write(',');
+            field(rs.getString(3));
+            writer.write(',');
+            field(rs.getString(4));
+            writer.write(',');
+            int service = rs.getInt(5);
+            if (!rs.wasNull()) {
+                writer.write(Integer.toString(service));
+            }
+            writer.write(',');
+            field(rs.getString(6));
+            writer.write("\r\n");
+        }
+
+        // RFC 4180: the fields with separators, quotes or new lines are quoted and the quotes doubled
+        private void field(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+}
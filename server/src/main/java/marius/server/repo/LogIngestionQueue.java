@@ -0,0 +1,289 @@
+package marius.server.repo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import marius.server.data.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for the logs sent by the clients. With log.ingestion.mode=async the requests
+ * only put the validated logs in a bounded queue, a single writer saves them in group commits
+ * of up to batch-size logs or every flush-interval-ms, whichever comes first.
+ * When the queue is full the logs are refused, the caller answers 429.
+ * With log.ingestion.mode=sync (default) the queue is not used and the logs are saved on the request thread.
+ */
+@Component
+public class LogIngestionQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(LogIngestionQueue.class);
+
+    private final LogRepo logRepo;
+    private final boolean enabled;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final int maxRetries;
+    private final long shutdownTimeoutMillis;
+    private final BlockingQueue<Log> queue = new LinkedBlockingQueue<>();
+    // one permit per free slot, taken all together so a batch of logs is accepted or refused as a whole
+    private final Semaphore slots;
+    private final Thread writer;
+    private volatile boolean accepting;
+
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizes;
+    private final Counter rejected;
+    private final Counter failed;
+
+    public LogIngestionQueue(LogRepo logRepo, MeterRegistry meterRegistry,
+                             @Value("${log.ingestion.mode:sync}") String mode,
+                             @Value("${log.ingestion.queue-capacity:10000}") int capacity,
+                             @Value("${log.ingestion.batch-size:500}") int batchSize,
+                             @Value("${log.ingestion.flush-interval-ms:200}") long flushIntervalMillis,
+                             @Value("${log.ingestion.max-retries:3}") int maxRetries,
+                             @Value("${log.ingestion.shutdown-timeout-ms:30000}") long shutdownTimeoutMillis) {
+        if (!"sync".equalsIgnoreCase(mode) && !"async".equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("log.ingestion.mode deve essere sync o async: " + mode);
+        }
+        this.logRepo = logRepo;
+        this.enabled = "async".equalsIgnoreCase(mode);
+        this.capacity = Math.max(1, capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+        this.maxRetries = Math.max(0, maxRetries);
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.slots = new Semaphore(this.capacity);
+
+        Gauge.builder("corvo.log.ingestion.queue.depth", queue, BlockingQueue::size)
+                .description("Logs accepted and not yet written")
+                .register(meterRegistry);
+        Gauge.builder("corvo.log.ingestion.queue.capacity", this, q -> q.capacity)
+                .description("Maximum number of logs waiting to be written")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("corvo.log.ingestion.flush")
+                .description("Time to write a batch of logs, retries included")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("corvo.log.ingestion.batch.size")
+                .description("Logs written by a single flush")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("corvo.log.ingestion.rejected")
+                .description("Logs refused because the queue was full")
+                .register(meterRegistry);
+        this.failed = Counter.builder("corvo.log.ingestion.failed")
+                .description("Logs lost because the database refused them after all the retries or refused the single row")
+                .register(meterRegistry);
+
+        if (enabled) {
+            this.accepting = true;
+            this.writer = new Thread(this::run, "LogIngestionWriter");
+            this.writer.setDaemon(true);
+            this.writer.start();
+            log.info("Ingestione dei log asincrona: capacity={}, batchSize={}, flushInterval={} ms",
+                    this.capacity, this.batchSize, flushIntervalMillis);
+        } else {
+            this.writer = null;
+        }
+    }
+
+    /**
+     * @return true if the logs must go through the queue
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Accepts all the logs or none of them
+     * @param logs the validated logs
+     * @return false if the queue has not room for all of them or the server is shutting down
+     */
+    public boolean offerAll(List<Log> logs) {
+        if (!accepting || logs.size() > capacity || !slots.tryAcquire(logs.size())) {
+            rejected.increment(logs.size());
+            return false;
+        }
+        queue.addAll(logs);
+        return true;
+    }
+
+    /**
+     * @return the logs accepted and not yet written
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<Log> batch = new ArrayList<>(batchSize);
+        try {
+            while (accepting || !queue.isEmpty()) {
+                try {
+                    if (!fill(batch)) {
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    // whatever is left is written by the loop before exiting
+                    accepting = false;
+                }
+                try {
+                    if (!batch.isEmpty()) {
+                        flush(batch);
+                    }
+                } catch (RuntimeException e) {
+                    // the writer is the only one: it must survive whatever a flush throws
+                    log.error("Errore inatteso nella scrittura di {} log: ", batch.size(), e);
+                } finally {
+                    batch.clear();
+                }
+            }
+            log.info("Writer dei log terminato");
+        } catch (Throwable e) {
+            // without the writer the accepted logs are never written: the queue refuses the new ones instead of filling up
+            accepting = false;
+            log.error("Writer dei log terminato per errore, {} log in coda non scritti: ", queue.size(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the first log, then collects until the batch is full or the flush interval is over
+     * @return false if no log arrived within the flush interval
+     */
+    private boolean fill(List<Log> batch) throws InterruptedException {
+        Log first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+        if (first == null) {
+            return false;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long wait = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || wait <= 0) {
+                break;
+            }
+            Log next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return true;
+    }
+
+    private void flush(List<Log> batch) {
+        long start = System.nanoTime();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    // a single transaction with the inserts in JDBC batches
+                    logRepo.saveAll(batch);
+                    batchSizes.record(batch.size());
+                    return;
+                } catch (DataIntegrityViolationException e) {
+                    // a bad row (unknown ip, user or service, value too long) fails the whole batch at every retry:
+                    // the rows are written one by one and only the bad ones are dropped
+                    log.warn("Scrittura di {} log rifiutata, scrittura riga per riga: {}", batch.size(),
+                            NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+                    resetIds(batch);
+                    flushOneByOne(batch);
+                    return;
+                } catch (RuntimeException e) {
+                    // not only DataAccessException: with the database down the transaction can not even start
+                    // (CannotCreateTransactionException, TransactionSystemException)
+                    if (attempt >= maxRetries) {
+                        failed.increment(batch.size());
+                        log.error("Scrittura di {} log fallita dopo {} tentativi, log persi: ", batch.size(), attempt + 1, e);
+                        return;
+                    }
+                    log.warn("Scrittura di {} log fallita, nuovo tentativo: {}", batch.size(),
+                            NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+                    resetIds(batch);
+                    sleepBeforeRetry(attempt);
+                }
+            }
+        } finally {
+            flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            slots.release(batch.size());
+        }
+    }
+
+    /**
+     * The failed attempt already took the ids from the sequence and the rollback does not give them back:
+     * with an id set the logs would be merged as existing rows instead of inserted
+     */
+    private static void resetIds(List<Log> batch) {
+        for (Log l : batch) {
+            l.setId(0);
+        }
+    }
+
+    private void flushOneByOne(List<Log> batch) {
+        int written = 0;
+        for (Log l : batch) {
+            try {
+                logRepo.save(l);
+                written++;
+            } catch (RuntimeException e) {
+                l.setId(0);
+                failed.increment();
+                log.error("Log di {} scartato: {}", l.getUserEmail(), NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+            }
+        }
+        batchSizes.record(written);
+    }
+
+    private void sleepBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(200L * (attempt + 1));
+        } catch (InterruptedException e) {
+            accepting = false;
+        }
+    }
+
+    /**
+     * Stops accepting logs and waits until the queued ones are written
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        accepting = false;
+        int pending = queue.size();
+        log.info("Shutdown ingestione log: {} log da scrivere", pending);
+        // no interrupt: the writer sees the flag within a flush interval, and a write in progress is not broken
+        try {
+            writer.join(shutdownTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            log.error("Shutdown ingestione log: {} log non scritti entro {} ms", queue.size(), shutdownTimeoutMillis);
+            return;
+        }
+        // logs accepted while the writer was exiting
+        List<Log> late = new ArrayList<>();
+        queue.drainTo(late);
+        if (!late.isEmpty()) {
+            flush(late);
+        }
+    }
+}
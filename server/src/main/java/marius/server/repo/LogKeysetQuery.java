@@ -0,0 +1,154 @@
+package marius.server.repo;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import marius.server.data.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the logs one page at a time, newest first, with keyset pagination on (data, id):
+ * every page starts right after the last row of the previous one, so the cost of a page
+ * does not grow with its position and rows inserted meanwhile do not shift the pages
+ */
+@Repository
+public class LogKeysetQuery {
+
+    /**
+     * Optional filters of the query, a null field is not applied
+     * @param userEmail the email of the user who made the operation
+     * @param ip the ip of the server
+     * @param service the id of the service
+     * @param from the first instant included
+     * @param to the first instant excluded
+     */
+    public record Filter(String userEmail, String ip, Integer service, LocalDateTime from, LocalDateTime to) {
+        public Filter withUserEmail(String email) {
+            return new Filter(email, ip, service, from, to);
+        }
+    }
+
+    /**
+     * Position after the last row of a page, sent to the clients as an opaque string
+     * @param data the data of the last row
+     * @param id the id of the last row
+     */
+    public record Cursor(LocalDateTime data, int id) {
+
+        public String encode() {
+            String raw = data + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param value the string returned by encode
+         * @return the cursor
+         * @throws IllegalArgumentException if the string is not a cursor
+         */
+        public static Cursor decode(String value) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+                int sep = raw.lastIndexOf('|');
+                if (sep < 0) {
+                    throw new IllegalArgumentException("invalid cursor");
+                }
+                return new Cursor(LocalDateTime.parse(raw.substring(0, sep)), Integer.parseInt(raw.substring(sep + 1)));
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException("invalid cursor", e);
+            }
+        }
+    }
+
+    /**
+     * @param items the rows of the page
+     * @param next the cursor of the next page, null if this is the last one
+     */
+    public record Page(List<Log> items, Cursor next) {}
+
+    private final EntityManager entityManager;
+    private final int defaultLimit;
+    private final int maxLimit;
+
+    public LogKeysetQuery(EntityManager entityManager,
+                          @Value("${log.page.default-limit:100}") int defaultLimit,
+                          @Value("${log.page.max-limit:1000}") int maxLimit) {
+        this.entityManager = entityManager;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.defaultLimit = Math.min(Math.max(1, defaultLimit), this.maxLimit);
+    }
+
+    /**
+     * @param requested the page size asked by the client, null for the default
+     * @return the page size actually used, between 1 and log.page.max-limit
+     */
+    public int limit(Integer requested) {
+        if (requested == null) {
+            return defaultLimit;
+        }
+        return Math.min(Math.max(1, requested), maxLimit);
+    }
+
+    /**
+     * @param filter the filters of the query
+     * @param after the cursor returned with the previous page, null for the first page
+     * @param limit the page size, see {@link #limit(Integer)}
+     * @return the page, one more row is read to know if there is a next one
+     */
+    public Page find(Filter filter, Cursor after, int limit) {
+        StringBuilder jpql = new StringBuilder("SELECT l FROM Log l");
+        List<String> where = new ArrayList<>();
+        Map<String, Object> params = new LinkedHashMap<>();
+        if (filter.userEmail() != null) {
+            where.add("l.userEmail = :userEmail");
+            params.put("userEmail", filter.userEmail());
+        }
+        if (filter.ip() != null) {
+            where.add("l.ip = :ip");
+            params.put("ip", filter.ip());
+        }
+        if (filter.service() != null) {
+            where.add("l.service = :service");
+            params.put("service", filter.service());
+        }
+        // the bounds on data also let postgres skip the partitions outside the range
+        if (filter.from() != null) {
+            where.add("l.data >= :from");
+            params.put("from", Timestamp.valueOf(filter.from()));
+        }
+        if (filter.to() != null) {
+            where.add("l.data < :to");
+            params.put("to", Timestamp.valueOf(filter.to()));
+        }
+        if (after != null) {
+            // a row value comparison is a range bound on the (data, id) index, an OR of the two columns would be filtered
+            where.add("(l.data, l.id) < (:afterData, :afterId)");
+            params.put("afterData", Timestamp.valueOf(after.data()));
+            params.put("afterId", after.id());
+        }
+        if (!where.isEmpty()) {
+            jpql.append(" WHERE ").append(String.join(" AND ", where));
+        }
+        jpql.append(" ORDER BY l.data DESC, l.id DESC");
+
+        TypedQuery<Log> query = entityManager.createQuery(jpql.toString(), Log.class);
+        params.forEach(query::setParameter);
+        query.setMaxResults(limit + 1);
+        List<Log> rows = query.getResultList();
+        if (rows.size() <= limit) {
+            return new Page(rows, null);
+        }
+        List<Log> items = new ArrayList<>(rows.subList(0, limit));
+        Log last = items.get(limit - 1);
+        return new Page(items, new Cursor(last.getData().toLocalDateTime(), last.getId()));
+    }
+}
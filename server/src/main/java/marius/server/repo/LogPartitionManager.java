@@ -0,0 +1,422 @@
+package marius.server.repo;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the log table range-partitioned on the data column.
+ * At startup a plain log table is converted to a partitioned one (if not empty only with log.partition.migrate), then the partitions
+ * for the next periods are created ahead of time and the ones older than the retention
+ * are detached or dropped, so the reads bounded in time only scan the relevant partitions
+ * and the old logs go away without a DELETE.
+ */
+@Component
+public class LogPartitionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(LogPartitionManager.class);
+
+    /**
+     * Width of a partition
+     */
+    public enum Interval {
+        MONTH(DateTimeFormatter.ofPattern("yyyy_MM")) {
+            @Override
+            public LocalDate floor(LocalDate date) {
+                return date.withDayOfMonth(1);
+            }
+
+            @Override
+            public LocalDate next(LocalDate start) {
+                return start.plusMonths(1);
+            }
+        },
+        WEEK(DateTimeFormatter.ofPattern("yyyy_MM_dd")) {
+            @Override
+            public LocalDate floor(LocalDate date) {
+                return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            }
+
+            @Override
+            public LocalDate next(LocalDate start) {
+                return start.plusWeeks(1);
+            }
+        };
+
+        private final DateTimeFormatter suffix;
+
+        Interval(DateTimeFormatter suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return the first day of the partition containing the date
+         */
+        public abstract LocalDate floor(LocalDate date);
+
+        /**
+         * @return the first day of the partition after the one starting at start
+         */
+        public abstract LocalDate next(LocalDate start);
+
+        /**
+         * @return the name of the partition starting at start
+         */
+        public String partitionName(LocalDate start) {
+            return "log_p" + suffix.format(start);
+        }
+    }
+
+    static final String DEFAULT_PARTITION = "log_default";
+    // rows of the default partition older than the retention, kept here with retention-action=detach
+    static final String DEFAULT_EXPIRED = "log_default_expired";
+
+    // es. FOR VALUES FROM ('2025-01-01 00:00:00') TO ('2025-02-01 00:00:00')
+    private static final Pattern BOUNDS = Pattern.compile("FROM \\('([^']+)'\\) TO \\('([^']+)'\\)");
+    private static final DateTimeFormatter BOUND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // the same for every instance, so two servers starting together do not migrate twice
+    private static final long LOCK_KEY = 0x436f72766f4c6f67L;
+
+    private static final String PARTITIONS = """
+            SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) AS bound
+            FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+            WHERE i.inhparent = to_regclass('log')
+            ORDER BY c.relname
+            """;
+
+    // the primary key of a partitioned table must contain the partition key
+    private static final String CREATE_PARTITIONED = """
+            CREATE TABLE log (
+              id INTEGER NOT NULL DEFAULT nextval('log_id_seq'),
+              data TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+              user_email VARCHAR(255),
+              ip VARCHAR(20),
+              service INTEGER,
+              descr TEXT NOT NULL,
+              CONSTRAINT log_pkey PRIMARY KEY (id, data),
+              CONSTRAINT fk_ip FOREIGN KEY(ip) REFERENCES public.server(ip) on delete set null,
+              CONSTRAINT fk_service FOREIGN KEY(service) REFERENCES public.service(id) on delete set null,
+              CONSTRAINT fk_email FOREIGN KEY(user_email) REFERENCES public.users(email) on delete set null
+            ) PARTITION BY RANGE (data)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final DataSource dataSource;
+    private final Clock clock;
+    private final boolean enabled;
+    private final boolean migrate;
+    private final Interval interval;
+    private final int premake;
+    private final int retentionDays;
+    private final boolean dropExpired;
+    private final long maintenanceIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private volatile int partitionCount;
+
+    public LogPartitionManager(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                               DataSource dataSource, MeterRegistry meterRegistry,
+                               @Value("${log.partition.enabled:true}") boolean enabled,
+                               @Value("${log.partition.migrate:false}") boolean migrate,
+                               @Value("${log.partition.interval:month}") String interval,
+                               @Value("${log.partition.premake:3}") int premake,
+                               @Value("${log.partition.retention-days:0}") int retentionDays,
+                               @Value("${log.partition.retention-action:drop}") String retentionAction,
+                               @Value("${log.partition.maintenance-interval-ms:21600000}") long maintenanceIntervalMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.dataSource = dataSource;
+        this.clock = Clock.systemDefaultZone();
+        this.enabled = enabled;
+        this.migrate = migrate;
+        this.interval = Interval.valueOf(interval.trim().toUpperCase(Locale.ROOT));
+        this.premake = Math.max(1, premake);
+        this.retentionDays = Math.max(0, retentionDays);
+        if (!"drop".equalsIgnoreCase(retentionAction) && !"detach".equalsIgnoreCase(retentionAction)) {
+            throw new IllegalArgumentException("log.partition.retention-action deve essere drop o detach: " + retentionAction);
+        }
+        this.dropExpired = "drop".equalsIgnoreCase(retentionAction);
+        this.maintenanceIntervalMillis = maintenanceIntervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LogPartitionMaintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        Gauge.builder("corvo.log.partitions", this, m -> m.partitionCount)
+                .description("Partitions attached to the log table")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs before the web server accepts requests, so the logs written at startup already find their partition
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("Partizionamento dei log disabilitato");
+            return;
+        }
+        migrateIfNeeded();
+        maintain();
+        scheduler.scheduleWithFixedDelay(this::maintain, maintenanceIntervalMillis, maintenanceIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Creates the partitions from the current period to premake periods ahead and applies the retention.
+     * Errors are logged, the next run tries again
+     */
+    public void maintain() {
+        try {
+            createPartitionsAhead();
+            applyRetention();
+            partitionCount = listPartitions().size();
+        } catch (DataAccessException e) {
+            log.error("Manutenzione delle partizioni dei log fallita: ", e);
+        }
+    }
+
+    /**
+     * Converts the plain log table created by schema1.sql to a partitioned one, if it is empty or log.partition.migrate is set:
+     * the rows are copied in the same transaction that holds the log table locked, so startup and every writer
+     * wait for the whole copy. With retention-action=drop the rows older than the retention are not copied,
+     * with detach they are all copied and the expired partitions are detached right after by the maintenance
+     */
+    void migrateIfNeeded() {
+        if (!"r".equals(relkind())) {
+            return;
+        }
+        // the empty table of a new installation is converted anyway, there is nothing to copy
+        if (!migrate && Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM log)", Boolean.class))) {
+            log.warn("La tabella log non è partizionata: per convertirla avviare con LOG_PARTITION_MIGRATE=true, "
+                    + "la tabella resta bloccata per tutta la copia");
+            return;
+        }
+        Long rows = jdbcTemplate.queryForObject("SELECT count(*) FROM log", Long.class);
+        log.warn("Conversione della tabella log in tabella partizionata: {} righe da copiare, "
+                + "la tabella log resta bloccata fino alla fine", rows);
+        long start = System.currentTimeMillis();
+        Long copied = transactionTemplate.execute(status -> {
+            jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(?)", LOCK_KEY);
+            if (!"r".equals(relkind())) {
+                return null;
+            }
+            jdbcTemplate.execute("LOCK TABLE log IN ACCESS EXCLUSIVE MODE");
+            // the expired rows are kept only if the expired partitions are detached instead of dropped
+            LocalDate oldest = dropExpired ? keptSince() : null;
+            Timestamp first = oldest == null
+                    ? jdbcTemplate.queryForObject("SELECT min(data) FROM log", Timestamp.class)
+                    : jdbcTemplate.queryForObject("SELECT min(data) FROM log WHERE data >= ?", Timestamp.class,
+                            Timestamp.valueOf(oldest.atStartOfDay()));
+
+            // the sequence would be dropped with the old table
+            jdbcTemplate.execute("ALTER SEQUENCE log_id_seq OWNED BY NONE");
+            jdbcTemplate.execute("ALTER TABLE log RENAME TO log_legacy");
+            jdbcTemplate.execute("ALTER INDEX IF EXISTS log_pkey RENAME TO log_legacy_pkey");
+            jdbcTemplate.execute(CREATE_PARTITIONED);
+            jdbcTemplate.execute("ALTER SEQUENCE log_id_seq OWNED BY log.id");
+            jdbcTemplate.execute("CREATE TABLE " + DEFAULT_PARTITION + " PARTITION OF log DEFAULT");
+
+            LocalDate today = LocalDate.now(clock);
+            LocalDate from = interval.floor(first == null ? today : first.toLocalDateTime().toLocalDate());
+            LocalDate end = aheadLimit(today);
+            for (LocalDate p = from; p.isBefore(end); p = interval.next(p)) {
+                createPartition(p);
+            }
+
+            String copy = "INSERT INTO log (id, data, user_email, ip, service, descr) "
+                    + "SELECT id, data, user_email, ip, service, descr FROM log_legacy";
+            long rows = oldest == null
+                    ? jdbcTemplate.update(copy)
+                    : jdbcTemplate.update(copy + " WHERE data >= ?", Timestamp.valueOf(oldest.atStartOfDay()));
+            jdbcTemplate.execute("DROP TABLE log_legacy");
+            return rows;
+        });
+        if (copied == null) {
+            return;
+        }
+        // the indexes of the old table are gone with it, the versioned scripts create them again on the partitioned one
+        new ResourceDatabasePopulator(versionedScripts()).execute(dataSource);
+        log.info("Tabella log convertita in tabella partizionata per {}: {} righe copiate in {} ms",
+                interval.name().toLowerCase(), copied, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the scripts in db/, in the order of their version
+     */
+    private Resource[] versionedScripts() {
+        try {
+            Resource[] scripts = new PathMatchingResourcePatternResolver().getResources("classpath:db/V*__*.sql");
+            Arrays.sort(scripts, Comparator.comparingInt(r -> version(r.getFilename())));
+            return scripts;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int version(String filename) {
+        return Integer.parseInt(filename.substring(1, filename.indexOf("__")));
+    }
+
+    private void createPartitionsAhead() {
+        if (!"p".equals(relkind())) {
+            log.warn("La tabella log non è partizionata, nessuna partizione creata");
+            return;
+        }
+        LocalDate today = LocalDate.now(clock);
+        LocalDate end = aheadLimit(today);
+        for (LocalDate p = interval.floor(today); p.isBefore(end); p = interval.next(p)) {
+            try {
+                createPartition(p);
+            } catch (DataAccessException e) {
+                // es. la granularità è cambiata e una partizione esistente copre già parte del periodo
+                log.warn("Partizione {} non creata: {}", interval.partitionName(p), e.getMostSpecificCause().getMessage());
+            }
+        }
+    }
+
+    private void createPartition(LocalDate from) {
+        LocalDate to = interval.next(from);
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + interval.partitionName(from)
+                + " PARTITION OF log FOR VALUES FROM ('" + from + "') TO ('" + to + "')");
+    }
+
+    /**
+     * Detaches, and drops if configured, the partitions whose upper bound is before the retention.
+     * The expired rows of the default partition are deleted, or moved out of log to log_default_expired
+     */
+    private void applyRetention() {
+        LocalDate keptSince = keptSince();
+        if (keptSince == null) {
+            return;
+        }
+        LocalDateTime cutoff = keptSince.atStartOfDay();
+        for (Partition partition : listPartitions()) {
+            if (partition.upper() == null) {
+                if (DEFAULT_PARTITION.equals(partition.name())) {
+                    expireDefaultRows(cutoff);
+                }
+                continue;
+            }
+            if (partition.upper().isAfter(cutoff)) {
+                continue;
+            }
+            jdbcTemplate.execute("ALTER TABLE log DETACH PARTITION " + partition.name());
+            if (dropExpired) {
+                jdbcTemplate.execute("DROP TABLE " + partition.name());
+            }
+            log.info("Partizione {} scaduta ({} fino a {}): {}", partition.name(), partition.lower(),
+                    partition.upper(), dropExpired ? "eliminata" : "staccata");
+        }
+    }
+
+    /**
+     * The default partition holds the rows outside every range, it can not be detached in part
+     */
+    private void expireDefaultRows(LocalDateTime cutoff) {
+        Timestamp before = Timestamp.valueOf(cutoff);
+        int rows;
+        if (dropExpired) {
+            rows = jdbcTemplate.update("DELETE FROM " + DEFAULT_PARTITION + " WHERE data < ?", before);
+        } else {
+            rows = transactionTemplate.execute(status -> {
+                jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + DEFAULT_EXPIRED + " (LIKE log)");
+                return jdbcTemplate.update("WITH moved AS (DELETE FROM " + DEFAULT_PARTITION + " WHERE data < ? RETURNING *) "
+                        + "INSERT INTO " + DEFAULT_EXPIRED + " SELECT * FROM moved", before);
+            });
+        }
+        if (rows > 0) {
+            log.info("Partizione {}: {} righe scadute prima di {} {}", DEFAULT_PARTITION, rows, cutoff,
+                    dropExpired ? "eliminate" : "spostate in " + DEFAULT_EXPIRED);
+        }
+    }
+
+    /**
+     * @return the attached partitions with their bounds, the default partition has no bounds
+     */
+    List<Partition> listPartitions() {
+        return jdbcTemplate.query(PARTITIONS, (rs, i) -> parse(rs.getString("relname"), rs.getString("bound")));
+    }
+
+    /**
+     * @param name the name of the partition
+     * @param bound the bound as printed by pg_get_expr
+     * @return the partition with its bounds
+     */
+    public static Partition parse(String name, String bound) {
+        Matcher m = bound == null ? null : BOUNDS.matcher(bound);
+        if (m == null || !m.find()) {
+            return new Partition(name, null, null);
+        }
+        return new Partition(name, LocalDateTime.parse(m.group(1), BOUND_FORMAT),
+                LocalDateTime.parse(m.group(2), BOUND_FORMAT));
+    }
+
+    /**
+     * @param name the name of the partition
+     * @param lower the first instant included, null for the default partition
+     * @param upper the first instant excluded, null for the default partition
+     */
+    public record Partition(String name, LocalDateTime lower, LocalDateTime upper) {}
+
+    /**
+     * @return the first day still kept, null if the logs are kept forever
+     */
+    private LocalDate keptSince() {
+        return retentionDays == 0 ? null : LocalDate.now(clock).minusDays(retentionDays);
+    }
+
+    private LocalDate aheadLimit(LocalDate today) {
+        LocalDate end = interval.floor(today);
+        for (int i = 0; i <= premake; i++) {
+            end = interval.next(end);
+        }
+        return end;
+    }
+
+    /**
+     * @return r for a plain table, p for a partitioned one, null if log does not exist
+     */
+    private String relkind() {
+        List<String> kinds = jdbcTemplate.queryForList(
+                "SELECT relkind::text FROM pg_class WHERE oid = to_regclass('log')", String.class);
+        return kinds.isEmpty() ? null : kinds.get(0);
+    }
+}
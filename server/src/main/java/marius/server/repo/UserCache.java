@@ -0,0 +1,193 @@
+package marius.server.repo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import marius.server.data.RoleEnum;
+import marius.server.data.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Cache of the identity of the users (email, username and role), used by the handlers to check the caller
+ * without a query on every request. An entry lives user.cache.ttl-ms, at most user.cache.max-size users
+ * are kept and the least recently used is evicted first. The password is never cached:
+ * the login and the change of password still read the user from the database.
+ * Every write on a user must call {@link #invalidate(String)} after the write, user.cache.ttl-ms=0 disables the cache.
+ */
+@Component
+public class UserCache {
+
+    /**
+     * Immutable identity of a user
+     * @param email the email, the key of the user
+     * @param username the username
+     * @param role the role
+     */
+    public record CachedUser(String email, String username, RoleEnum role) {
+        public static CachedUser of(User user) {
+            return new CachedUser(user.getEmail(), user.getUsername(), user.getRole());
+        }
+    }
+
+    private record Entry(CachedUser user, long expiresAt) {}
+
+    private final UserRepo userRepo;
+    private final long ttlNanos;
+    private final int maxSize;
+    // access order: the first entry is the least recently used
+    private final Map<String, Entry> byUsername;
+    private final Map<String, Entry> byEmail;
+    // changed by every invalidation, a load started before it is not cached
+    private long generation;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public UserCache(UserRepo userRepo, MeterRegistry meterRegistry,
+                     @Value("${user.cache.ttl-ms:60000}") long ttlMillis,
+                     @Value("${user.cache.max-size:10000}") int maxSize) {
+        this.userRepo = userRepo;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+        this.maxSize = Math.max(1, maxSize);
+        this.byUsername = lru(false);
+        this.byEmail = lru(true);
+
+        this.hits = Counter.builder("corvo.user.cache.requests")
+                .description("Lookups of a user by username or email")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("corvo.user.cache.requests")
+                .description("Lookups of a user by username or email")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("corvo.user.cache.evictions")
+                .description("Users evicted because the cache was full")
+                .register(meterRegistry);
+        Gauge.builder("corvo.user.cache.size", this, UserCache::size)
+                .description("Users in the cache, by email")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return true if the lookups go through the cache
+     */
+    public boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    /**
+     * @param username the username of the user
+     * @return the identity of the user, empty if there is no user with the username
+     */
+    public Optional<CachedUser> findByUsername(String username) {
+        return find(byUsername, username, userRepo::findUserByUsername);
+    }
+
+    /**
+     * @param email the email of the user
+     * @return the identity of the user, empty if there is no user with the email
+     */
+    public Optional<CachedUser> findByEmail(String email) {
+        return find(byEmail, email, userRepo::findUserByEmail);
+    }
+
+    /**
+     * @param username the username of the user
+     * @return true if exist a user with the username , false otherwise
+     */
+    public boolean existsByUsername(String username) {
+        if (!isEnabled()) {
+            return Boolean.TRUE.equals(userRepo.existsByUsername(username));
+        }
+        // a single query that also fills the cache
+        return findByUsername(username).isPresent();
+    }
+
+    /**
+     * Removes the user from the cache, to call after the user is added, changed or deleted
+     * @param email the email of the user
+     */
+    public void invalidate(String email) {
+        synchronized (this) {
+            generation++;
+            byEmail.remove(email);
+            // the username could be changed too, so the entries are found by email
+            byUsername.values().removeIf(entry -> entry.user().email().equals(email));
+        }
+    }
+
+    /**
+     * Removes all the users from the cache
+     */
+    public void clear() {
+        synchronized (this) {
+            generation++;
+            byEmail.clear();
+            byUsername.clear();
+        }
+    }
+
+    /**
+     * @return the number of users in the cache
+     */
+    public synchronized int size() {
+        return byEmail.size();
+    }
+
+    private Optional<CachedUser> find(Map<String, Entry> index, String key, Function<String, Optional<User>> loader) {
+        if (key == null) {
+            return Optional.empty();
+        }
+        if (!isEnabled()) {
+            return loader.apply(key).map(CachedUser::of);
+        }
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = index.get(key);
+            if (entry != null) {
+                if (entry.expiresAt() - System.nanoTime() > 0) {
+                    hits.increment();
+                    return Optional.of(entry.user());
+                }
+                index.remove(key);
+            }
+            loadGeneration = generation;
+        }
+        misses.increment();
+        // the query runs outside the lock, the other lookups are not blocked by the database
+        Optional<CachedUser> user = loader.apply(key).map(CachedUser::of);
+        user.ifPresent(found -> {
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    Entry entry = new Entry(found, System.nanoTime() + ttlNanos);
+                    byEmail.put(found.email(), entry);
+                    byUsername.put(found.username(), entry);
+                }
+            }
+        });
+        return user;
+    }
+
+    private Map<String, Entry> lru(boolean counted) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                if (counted) {
+                    evictions.increment();
+                }
+                return true;
+            }
+        };
+    }
+}
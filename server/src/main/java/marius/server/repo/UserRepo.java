@@ -2,6 +2,10 @@ package marius.server.repo;
 
 import marius.server.data.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Optional;
 
@@ -16,4 +20,17 @@ public interface UserRepo extends JpaRepository<User, String>{
 
 	Optional<User> findUserByEmail(String username);
 
+	/**
+	 * Replaces the hash of the password only if it is still the expected one,
+	 * so a password changed in the meantime is not overwritten
+	 * @param email the email of the user
+	 * @param expected the hash read before
+	 * @param password the new hash
+	 * @return the number of users updated, 0 or 1
+	 */
+	@Transactional
+	@Modifying
+	@Query("UPDATE User u SET u.password = :password WHERE u.email = :email AND u.password = :expected")
+	int replacePassword(@Param("email") String email, @Param("expected") String expected, @Param("password") String password);
+
 }
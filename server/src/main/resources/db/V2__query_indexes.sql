@@ -0,0 +1,11 @@
+-- V2: indici per le letture frequenti, idempotenti come schema1.sql
+-- log: letture per utente e per server ordinate nel tempo
+CREATE INDEX IF NOT EXISTS log_user_email_data_idx ON log (user_email, data);
+CREATE INDEX IF NOT EXISTS log_ip_data_idx ON log (ip, data);
+-- log.service e rules.service: la cancellazione di un servizio controlla le righe che lo referenziano
+CREATE INDEX IF NOT EXISTS log_service_idx ON log (service) WHERE service IS NOT NULL;
+CREATE INDEX IF NOT EXISTS rules_service_idx ON rules (service) WHERE service IS NOT NULL;
+-- service: le letture per ip usano l'indice unico (ip, name), manca la ricerca per nome
+CREATE INDEX IF NOT EXISTS service_name_idx ON service (name);
+CREATE INDEX IF NOT EXISTS rules_ip_idx ON rules (ip);
+CREATE INDEX IF NOT EXISTS lynis_ip_idx ON lynis (ip);
@@ -0,0 +1,2 @@
+-- V3: paginazione keyset dei log su (data, id), dal più recente
+CREATE INDEX IF NOT EXISTS log_data_id_idx ON log (data, id);
@@ -61,3 +61,29 @@ CREATE TABLE IF NOT EXISTS log (
   CONSTRAINT fk_service FOREIGN KEY(service) REFERENCES public.service(id) on delete  set null ,
   CONSTRAINT fk_email FOREIGN KEY(user_email) REFERENCES public.users(email) on delete set null
 );
+
+-- un solo servizio per nome su ogni agente: i duplicati lasciati dal vecchio sync vengono rimossi prima di creare l'indice
+UPDATE rules r SET service = d.keep_id
+  FROM (SELECT id, max(id) OVER (PARTITION BY ip, name) AS keep_id FROM service) d
+  WHERE r.service = d.id AND d.id <> d.keep_id;
+DELETE FROM service a USING service b WHERE a.ip = b.ip AND a.name = b.name AND a.id < b.id;
+CREATE UNIQUE INDEX IF NOT EXISTS service_ip_name_key ON service (ip, name);
+
+-- le regole aggiunte a mano da /addRule (tutte con nome 'R') non vengono dall'agente: manual le separa da quelle sincronizzate
+-- le righe già presenti prima della colonna vengono classificate una volta sola, quelle nuove hanno sempre il valore
+ALTER TABLE rules ADD COLUMN IF NOT EXISTS manual BOOLEAN;
+UPDATE rules SET manual = coalesce(name = 'R', false) WHERE manual IS NULL;
+ALTER TABLE rules ALTER COLUMN manual SET DEFAULT false;
+ALTER TABLE rules ALTER COLUMN manual SET NOT NULL;
+
+-- una sola regola per nome su ogni agente, solo per quelle riportate dall'agente: le regole manuali non vengono mai toccate.
+-- dei duplicati lasciati dal vecchio sync si tiene il più recente, l'agente li riporta comunque al prossimo sync
+DROP INDEX IF EXISTS rules_ip_name_key;
+DELETE FROM rules a USING rules b
+  WHERE NOT a.manual AND NOT b.manual AND a.ip = b.ip AND a.name = b.name AND a.id < b.id;
+CREATE UNIQUE INDEX IF NOT EXISTS rules_ip_name_agent_key ON rules (ip, name) WHERE NOT manual;
+
+-- id assegnati a blocchi di 50 da hibernate (pooled-lo), così gli insert di log, regole e servizi vanno in batch
+ALTER SEQUENCE log_id_seq INCREMENT BY 50;
+ALTER SEQUENCE rules_id_seq INCREMENT BY 50;
+ALTER SEQUENCE service_id_seq INCREMENT BY 50;
@@ -0,0 +1,49 @@
+package marius.server;
+
+import marius.server.client.AdaptivePollingPolicy;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptivePollingPolicyTests {
+
+    @Test
+    void testIntervalGrowsWhileUnchanged(){
+        AdaptivePollingPolicy policy = new AdaptivePollingPolicy(1000, 5000, 60000, 2.0);
+        assertEquals(10000, policy.nextInterval(5000, true));
+        assertEquals(20000, policy.nextInterval(10000, true));
+        assertEquals(1500, new AdaptivePollingPolicy(1000, 1000, 60000, 1.5).nextInterval(1000, true));
+    }
+
+    @Test
+    void testChangeOrFailureResetsToMin(){
+        AdaptivePollingPolicy policy = new AdaptivePollingPolicy(1000, 5000, 60000, 2.0);
+        assertEquals(1000, policy.nextInterval(40000, false));
+        assertEquals(1000, policy.nextInterval(5000, false));
+        assertEquals(1000, policy.nextInterval(1000, false));
+    }
+
+    @Test
+    void testIntervalIsClamped(){
+        AdaptivePollingPolicy policy = new AdaptivePollingPolicy(1000, 5000, 60000, 2.0);
+        assertEquals(60000, policy.nextInterval(40000, true), "the interval must stop at the max");
+        assertEquals(60000, policy.nextInterval(60000, true));
+        assertEquals(60000, policy.nextInterval(Long.MAX_VALUE / 4, true), "big intervals must stay at the max");
+        assertEquals(2000, policy.nextInterval(0, true), "an interval below the min grows from the min");
+
+        long interval = policy.getBaseIntervalMillis();
+        for (int i = 0; i < 100; i++) {
+            interval = policy.nextInterval(interval, true);
+            assertTrue(interval >= policy.getMinIntervalMillis() && interval <= policy.getMaxIntervalMillis(),
+                    "interval out of range: " + interval);
+        }
+    }
+
+    @Test
+    void testInvalidPolicy(){
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollingPolicy(0, 5000, 60000, 2.0));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollingPolicy(1000, 500, 60000, 2.0));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollingPolicy(1000, 5000, 4000, 2.0));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollingPolicy(1000, 5000, 60000, 0.5));
+    }
+}
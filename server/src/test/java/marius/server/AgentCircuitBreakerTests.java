@@ -0,0 +1,117 @@
+package marius.server;
+
+import marius.server.client.AgentCircuitBreaker;
+import marius.server.client.AgentCircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentCircuitBreakerTests {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<State> transitions = new ArrayList<>();
+
+    private AgentCircuitBreaker breaker() {
+        return new AgentCircuitBreaker(new AgentCircuitBreaker.Settings(10, 4, 50, 80, 1000),
+                clock::get, transitions::add);
+    }
+
+    /**
+     * Makes a permitted call with the outcome
+     */
+    private static void call(AgentCircuitBreaker breaker, boolean failure, boolean slowCall) {
+        long permit = breaker.tryAcquirePermission();
+        assertNotEquals(AgentCircuitBreaker.REJECTED, permit);
+        breaker.onResult(permit, failure, slowCall);
+    }
+
+    @Test
+    void testOpensWhenFailureRateIsReached(){
+        AgentCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 3; i++) {
+            call(breaker, true, false);
+        }
+        assertEquals(State.CLOSED, breaker.getState(), "below the minimum calls the rate is not evaluated");
+        call(breaker, false, false);
+        assertEquals(State.OPEN, breaker.getState(), "3 failures out of 4 calls must open the circuit");
+        assertEquals(AgentCircuitBreaker.REJECTED, breaker.tryAcquirePermission());
+        assertTrue(breaker.isRejecting());
+        assertEquals(List.of(State.OPEN), transitions);
+    }
+
+    @Test
+    void testSlowCallsOpenTheCircuit(){
+        AgentCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 4; i++) {
+            call(breaker, false, true);
+        }
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void testHalfOpenLetsASingleProbeThrough(){
+        AgentCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 4; i++) {
+            call(breaker, true, false);
+        }
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertFalse(breaker.isRejecting());
+        long probe = breaker.tryAcquirePermission();
+        assertNotEquals(AgentCircuitBreaker.REJECTED, probe, "the first call after the open duration is the probe");
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertEquals(AgentCircuitBreaker.REJECTED, breaker.tryAcquirePermission(), "only one probe at a time");
+
+        breaker.onResult(probe, true, false);
+        assertEquals(State.OPEN, breaker.getState(), "a failed probe opens the circuit again");
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        call(breaker, false, false);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getBufferedCalls(), "the window starts empty after closing");
+        assertEquals(List.of(State.OPEN, State.HALF_OPEN, State.OPEN, State.HALF_OPEN, State.CLOSED), transitions);
+    }
+
+    @Test
+    void testOldOutcomesLeaveTheWindow(){
+        AgentCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 10; i++) {
+            call(breaker, i == 4 || i == 8, false);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(20f, breaker.getFailureRate(), 0.01);
+        for (int i = 0; i < 5; i++) {
+            call(breaker, false, false);
+        }
+        assertEquals(10f, breaker.getFailureRate(), 0.01, "the failure of the 5th call is out of the window");
+        assertEquals(10, breaker.getBufferedCalls());
+    }
+
+    @Test
+    void testStaleResultIsNotTheProbe(){
+        AgentCircuitBreaker breaker = breaker();
+        // started while closed, still running when the circuit opens
+        long slowCall = breaker.tryAcquirePermission();
+        for (int i = 0; i < 4; i++) {
+            call(breaker, true, false);
+        }
+        assertEquals(State.OPEN, breaker.getState());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        long probe = breaker.tryAcquirePermission();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+
+        breaker.onResult(slowCall, false, false);
+        assertEquals(State.HALF_OPEN, breaker.getState(), "a call started before the circuit opened does not close it");
+        assertEquals(AgentCircuitBreaker.REJECTED, breaker.tryAcquirePermission(), "the probe is still in flight");
+
+        breaker.onResult(probe, true, false);
+        assertEquals(State.OPEN, breaker.getState());
+        // the probe result does not count twice
+        breaker.onResult(probe, false, false);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,148 @@
+package marius.server;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import marius.server.client.AgentCircuitBreakers;
+import marius.server.client.AgentClientPython;
+import marius.server.client.AgentTransport;
+import marius.server.data.AgentService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentClientPythonTests {
+
+    private HttpServer agent;
+    private AgentClientPython client;
+    private int port;
+    private SimpleMeterRegistry registry;
+    private final AtomicInteger serviceStatusCalls = new AtomicInteger();
+    private final CountDownLatch releaseServiceStatus = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        agent = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        agent.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        agent.createContext("/ping", exchange -> reply(exchange, 200, "{\"status\":\"success\",\"message\":\"Agent is running\"}"));
+        agent.createContext("/start_lynis_scan", exchange -> reply(exchange, 500, "boom"));
+        agent.createContext("/get_lynis_report", exchange -> reply(exchange, 200, "report"));
+        agent.createContext("/get_status", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reply(exchange, 200, "{}");
+        });
+        agent.createContext("/get_service_status", exchange -> {
+            serviceStatusCalls.incrementAndGet();
+            try {
+                releaseServiceStatus.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reply(exchange, 200, "{\"status\":\"success\",\"status_services\":[]}");
+        });
+        agent.start();
+        port = agent.getAddress().getPort();
+        ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("agent.transport.operations.get-status.deadline-ms", "300");
+        registry = new SimpleMeterRegistry();
+        AgentTransport transport = new AgentTransport(HttpClient.newHttpClient(), environment,
+                registry, 16, 2, 1000, 5000);
+        AgentCircuitBreakers breakers = new AgentCircuitBreakers(registry, 20, 5, 50, 80, 30000);
+        client = new AgentClientPython(transport, breakers, mapper, registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        agent.stop(0);
+    }
+
+    @Test
+    void testSyncWrapperReturnsTheAsyncResult() {
+        assertTrue(client.pingAgent("127.0.0.1", port));
+        assertEquals("report", client.getLynisReportText("127.0.0.1", port));
+    }
+
+    @Test
+    void testErrorStatusIsMappedToTheDefaultValue() {
+        assertFalse(client.startLynisScan("127.0.0.1", port));
+        assertFalse(client.startLynisScanAsync("127.0.0.1", port).join());
+    }
+
+    @Test
+    void testUnreachableAgentDoesNotThrow() throws IOException {
+        int closedPort;
+        try (var socket = new java.net.ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        assertFalse(client.pingAgent("127.0.0.1", closedPort));
+        assertNull(client.getStatusServer("127.0.0.1", closedPort));
+        assertTrue(client.getServiceStatus("127.0.0.1", closedPort).isEmpty());
+    }
+
+    @Test
+    void testSlowAgentIsCutByTheOperationDeadline() {
+        long start = System.nanoTime();
+        assertNull(client.getStatusServer("127.0.0.1", port));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis < 1500, "the call must end at the deadline, took " + elapsedMillis + "ms");
+    }
+
+    @Test
+    void testConcurrentIdenticalReadsShareOneRequest() throws InterruptedException {
+        List<CompletableFuture<List<AgentService>>> calls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            calls.add(client.getServiceStatusAsync("127.0.0.1", port));
+        }
+        // all the callers are waiting before the agent answers
+        Thread.sleep(200);
+        releaseServiceStatus.countDown();
+        CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).join();
+
+        assertEquals(1, serviceStatusCalls.get(), "the agent must receive a single request");
+        assertEquals(9, registry.get("corvo.agent.requests.coalesced").tag("operation", "get-service-status").counter().count());
+        assertNotSame(calls.get(0).join(), calls.get(1).join(), "every caller parses its own copy");
+
+        client.getServiceStatus("127.0.0.1", port);
+        assertEquals(2, serviceStatusCalls.get(), "a call after the answer starts a new request");
+    }
+
+    @Test
+    void testFanOutCompletesAllRequests() {
+        List<CompletableFuture<Boolean>> pings = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            pings.add(client.pingAgentAsync("127.0.0.1", port));
+        }
+        CompletableFuture.allOf(pings.toArray(CompletableFuture[]::new)).join();
+        assertTrue(pings.stream().allMatch(CompletableFuture::join));
+    }
+
+    private static void reply(com.sun.net.httpserver.HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
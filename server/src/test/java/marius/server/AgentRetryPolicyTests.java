@@ -0,0 +1,40 @@
+package marius.server;
+
+import marius.server.client.AgentRetryPolicy;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentRetryPolicyTests {
+
+    @Test
+    void testBackoffGrowsUntilCap(){
+        AgentRetryPolicy policy = new AgentRetryPolicy(1000, 60000, 10);
+        assertEquals(1000, policy.backoffCeiling(0));
+        assertEquals(2000, policy.backoffCeiling(1));
+        assertEquals(32000, policy.backoffCeiling(5));
+        assertEquals(60000, policy.backoffCeiling(6), "the ceiling must stop at the cap");
+        assertEquals(60000, policy.backoffCeiling(200), "big attempt numbers must not overflow");
+    }
+
+    @Test
+    void testJitterStaysInsideCeiling(){
+        AgentRetryPolicy policy = new AgentRetryPolicy(1000, 60000, 10);
+        for (int attempt = 0; attempt < 12; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.nextDelayMillis(attempt);
+                assertTrue(delay >= 0 && delay <= policy.backoffCeiling(attempt),
+                        "delay out of range for attempt " + attempt + ": " + delay);
+            }
+        }
+    }
+
+    @Test
+    void testAttemptBudget(){
+        AgentRetryPolicy policy = new AgentRetryPolicy(1000, 60000, 3);
+        assertTrue(policy.canRetry(0));
+        assertTrue(policy.canRetry(2));
+        assertFalse(policy.canRetry(3));
+        assertThrows(IllegalArgumentException.class, () -> new AgentRetryPolicy(0, 1000, 3));
+    }
+}
@@ -0,0 +1,43 @@
+package marius.server;
+
+import marius.server.client.AgentSyncFingerprint;
+import marius.server.data.AgentService;
+import marius.server.data.Rules;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class AgentSyncFingerprintTests {
+
+    @Test
+    void testServicesOrderDoesNotMatter(){
+        AgentService ssh = new AgentService("10.0.0.1", "ssh", "todo", 5000, true, true);
+        AgentService cron = new AgentService("10.0.0.1", "cron ", "todo", 5000, true, false);
+        AgentService cronTrimmed = new AgentService("10.0.0.1", "cron", "todo", 5000, true, false);
+
+        assertEquals(AgentSyncFingerprint.ofServices(List.of(ssh, cron)),
+                AgentSyncFingerprint.ofServices(List.of(cronTrimmed, ssh)),
+                "same services in different order must have the same fingerprint");
+    }
+
+    @Test
+    void testServiceStateChangesFingerprint(){
+        AgentService up = new AgentService("10.0.0.1", "ssh", "todo", 5000, true, true);
+        AgentService down = new AgentService("10.0.0.1", "ssh", "todo", 5000, true, false);
+
+        assertNotEquals(AgentSyncFingerprint.ofServices(List.of(up)), AgentSyncFingerprint.ofServices(List.of(down)));
+    }
+
+    @Test
+    void testRulesFingerprint(){
+        Rules a = new Rules("R1", "descr", true, "10.0.0.1");
+        Rules b = new Rules("R2", "descr", false, "10.0.0.1");
+        Rules bChanged = new Rules("R2", "descr", true, "10.0.0.1");
+
+        assertEquals(AgentSyncFingerprint.ofRules(List.of(a, b)), AgentSyncFingerprint.ofRules(List.of(b, a)));
+        assertNotEquals(AgentSyncFingerprint.ofRules(List.of(a, b)), AgentSyncFingerprint.ofRules(List.of(a, bChanged)));
+    }
+}
@@ -3,15 +3,22 @@ package marius.server;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import marius.server.controller.AuthController;
+import marius.server.controller.CallerIdentity;
+import marius.server.controller.SessionTokens;
 import marius.server.data.RoleEnum;
 import marius.server.data.User;
+import marius.server.repo.UserCache;
 import marius.server.repo.UserRepo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
 import org.springframework.test.web.servlet.MockMvc;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -35,12 +42,17 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 @WebMvcTest(AuthController.class)
+@Import({CallerIdentity.class, SessionTokens.class})
 public class AuthControllerTest {
 
     private static final Logger log = LoggerFactory.getLogger(AuthControllerTest.class);
@@ -51,12 +63,37 @@ public class AuthControllerTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private SessionTokens sessionTokens;
+
     @MockBean
     private ApprovedUsersRepo approvedUsersRepo;
 
     @MockBean
     private UserRepo userRepo;
 
+    @TestConfiguration
+    static class AuthTestConfig {
+        // ttl 0: the cache reads the mocked repo on every call, so the stubs of a test do not leak into the others
+        @Bean
+        UserCache userCache(UserRepo userRepo) {
+            return new UserCache(userRepo, new SimpleMeterRegistry(), 0, 1);
+        }
+
+        @Bean
+        PasswordHasher passwordHasher() {
+            return new PasswordHasher(new SimpleMeterRegistry(), new PasswordHashCalibrator(false, 250, 65536, 19456, 8, 4),
+                    1, 0.25, 4, 2000);
+        }
+    }
+
+    /**
+     * @return the Authorization header of a logged user, the routes other than the login need it
+     */
+    private String bearer(String username, String email, RoleEnum role) {
+        return "Bearer " + sessionTokens.issue(new UserCache.CachedUser(email, username, role)).value();
+    }
+
     @Test
     void testValidUserOfEnableUserRegistration() throws Exception {
         String email = "utente@example.com";
@@ -69,6 +106,7 @@ public class AuthControllerTest {
 
         when(userRepo.existsByUsername(username)).thenReturn(true);
         mockMvc.perform(post("/enableUserRegistration")
+                        .header("Authorization", bearer("admin", "admin@gmail.com", RoleEnum.SUPERVISOR))
                         .contentType("application/json")
                         .content(json.toString()))
                 .andExpect(status().isOk());
@@ -86,6 +124,7 @@ public class AuthControllerTest {
         json.put("username", username);
         //json.put("email", email);
         MvcResult ris = mockMvc.perform(post("/enableUserRegistration")
+                        .header("Authorization", bearer("admin", "admin@gmail.com", RoleEnum.SUPERVISOR))
                         .contentType("application/json")
                         .content(json.toString()))
                 .andExpect(status().isBadRequest())
@@ -113,6 +152,7 @@ public class AuthControllerTest {
         missUsername.put("user", userJson);
 
         mockMvc.perform(post("/updateRoleUser")
+                        .header("Authorization", bearer("admin", "admin@gmail.com", RoleEnum.SUPERVISOR))
                         .contentType("application/json")
                         .content(missUsername.toString()))
                 .andExpect(status().isBadRequest() )
@@ -137,10 +177,68 @@ public class AuthControllerTest {
         //when(userRepo.findUserByUsername("")).thenReturn(tmp);
 
         mockMvc.perform(post("/updateRoleUser")
+                        .header("Authorization", bearer("admin", "admin@gmail.com", RoleEnum.SUPERVISOR))
                         .contentType("application/json")
                         .content(mainJson.toString()))
                 .andExpect(status().isOk()  );
 
     }
 
+    @Test
+    void testLoginRehashesAnOldHash() throws Exception {
+        // saved with weaker parameters than the current ones
+        String oldHash = new Tools.HashParams(16, 32, 1, 1024, 2).encoder().encode("P4ssword!");
+        User user = new User("lol", "lol@gmail.com", oldHash, RoleEnum.WORKER);
+        when(userRepo.findUserByEmail("lol@gmail.com")).thenReturn(Optional.of(user));
+        when(userRepo.replacePassword(eq("lol@gmail.com"), eq(oldHash), anyString())).thenReturn(1);
+
+        ObjectNode login = objectMapper.createObjectNode();
+        login.put("email", "lol@gmail.com");
+        login.put("password", "P4ssword!");
+        mockMvc.perform(post("/authUser")
+                        .contentType("application/json")
+                        .content(login.toString()))
+                .andExpect(status().isOk());
+        verify(userRepo).replacePassword(eq("lol@gmail.com"), eq(oldHash),
+                argThat(hash -> !Tools.needsRehash(hash) && Tools.isPasswordHashedWith("P4ssword!", hash)));
+
+        // a hash with the current parameters is left as it is
+        String currentHash = Tools.hashPassword("P4ssword!");
+        when(userRepo.findUserByEmail("lol@gmail.com"))
+                .thenReturn(Optional.of(new User("lol", "lol@gmail.com", currentHash, RoleEnum.WORKER)));
+        mockMvc.perform(post("/authUser")
+                        .contentType("application/json")
+                        .content(login.toString()))
+                .andExpect(status().isOk());
+        verify(userRepo, never()).replacePassword(anyString(), eq(currentHash), anyString());
+    }
+
+    @Test
+    void testUpdatePasswordWritesOnlyIfUnchanged() throws Exception {
+        String oldHash = new Tools.HashParams(16, 32, 1, 1024, 2).encoder().encode("0ld-P4ssword!");
+        when(userRepo.findUserByEmail("lol@gmail.com"))
+                .thenReturn(Optional.of(new User("lol", "lol@gmail.com", oldHash, RoleEnum.WORKER)));
+        ObjectNode change = objectMapper.createObjectNode();
+        change.put("email", "lol@gmail.com");
+        change.put("oldPassword", "0ld-P4ssword!");
+        change.put("newPassword", "N3w-P4ssword!");
+
+        when(userRepo.replacePassword(eq("lol@gmail.com"), eq(oldHash), anyString())).thenReturn(1);
+        mockMvc.perform(post("/updatePassword")
+                        .header("Authorization", bearer("lol", "lol@gmail.com", RoleEnum.WORKER))
+                        .contentType("application/json")
+                        .content(change.toString()))
+                .andExpect(status().isOk());
+        verify(userRepo).replacePassword(eq("lol@gmail.com"), eq(oldHash),
+                argThat(hash -> Tools.isPasswordHashedWith("N3w-P4ssword!", hash)));
+
+        // another request changed the password after it was checked
+        when(userRepo.replacePassword(eq("lol@gmail.com"), eq(oldHash), anyString())).thenReturn(0);
+        mockMvc.perform(post("/updatePassword")
+                        .header("Authorization", bearer("lol", "lol@gmail.com", RoleEnum.WORKER))
+                        .contentType("application/json")
+                        .content(change.toString()))
+                .andExpect(status().isConflict());
+    }
+
 }
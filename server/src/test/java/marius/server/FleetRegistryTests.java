@@ -0,0 +1,161 @@
+package marius.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import marius.server.client.FleetRegistry;
+import marius.server.client.FleetRegistry.AgentState;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FleetRegistryTests {
+
+    @Test
+    void testLifecycleOfAnAgent() {
+        FleetRegistry fleet = new FleetRegistry(new SimpleMeterRegistry());
+        assertTrue(fleet.register("10.0.0.1", 5000));
+        assertEquals(AgentState.REGISTERING, fleet.get("10.0.0.1").state());
+        assertNotNull(fleet.getReachable("10.0.0.1"));
+
+        assertTrue(fleet.transition("10.0.0.1", AgentState.ACTIVE));
+        assertFalse(fleet.register("10.0.0.1", 5000), "an active agent is not registered again");
+
+        assertTrue(fleet.transition("10.0.0.1", AgentState.DEGRADED));
+        assertNull(fleet.getReachable("10.0.0.1"));
+        assertEquals(5000, fleet.get("10.0.0.1").port());
+
+        assertTrue(fleet.transition("10.0.0.1", AgentState.DOWN));
+        assertFalse(fleet.transition("10.0.0.1", AgentState.ACTIVE), "a down agent must register again");
+        assertTrue(fleet.register("10.0.0.1", 5001));
+        assertEquals(5001, fleet.get("10.0.0.1").port());
+
+        assertTrue(fleet.remove("10.0.0.1"));
+        assertFalse(fleet.remove("10.0.0.1"));
+        assertFalse(fleet.transition("10.0.0.1", AgentState.ACTIVE), "an unknown agent has no state");
+    }
+
+    @Test
+    void testSnapshotIsImmutable() {
+        FleetRegistry fleet = new FleetRegistry(new SimpleMeterRegistry());
+        fleet.register("10.0.0.1", 5000);
+        Map<String, FleetRegistry.AgentEntry> snapshot = fleet.snapshot();
+        fleet.register("10.0.0.2", 5000);
+        fleet.remove("10.0.0.1");
+
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.containsKey("10.0.0.1"));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.remove("10.0.0.1"));
+        assertEquals(Map.of("10.0.0.2", fleet.get("10.0.0.2")), fleet.snapshot());
+    }
+
+    /**
+     * Readers go through the registry while few writers flap the agents between ACTIVE and DEGRADED,
+     * as the request threads and the ping of the agents do. No update must be lost
+     * and the readers never see an agent without its port.
+     */
+    @Test
+    void testConcurrentReadersAndWriters() throws Exception {
+        int agents = 200;
+        int readers = 8;
+        int writers = 2;
+        FleetRegistry fleet = new FleetRegistry(new SimpleMeterRegistry());
+        for (int i = 0; i < agents; i++) {
+            fleet.register("10.0." + (i / 250) + "." + (i % 250), 5000);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(readers + writers);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?>[] tasks = new Future<?>[readers + writers];
+            for (int r = 0; r < readers; r++) {
+                tasks[r] = pool.submit(() -> {
+                    start.await();
+                    long local = 0;
+                    while (running.get()) {
+                        for (int i = 0; i < agents; i++) {
+                            FleetRegistry.AgentEntry entry = fleet.get("10.0." + (i / 250) + "." + (i % 250));
+                            assertNotNull(entry);
+                            assertEquals(5000, entry.port());
+                            local++;
+                        }
+                        assertEquals(agents, fleet.snapshot().size());
+                    }
+                    reads.addAndGet(local);
+                    return null;
+                });
+            }
+            for (int w = 0; w < writers; w++) {
+                int offset = w;
+                tasks[readers + w] = pool.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < 200; round++) {
+                        for (int i = offset; i < agents; i += writers) {
+                            String ip = "10.0." + (i / 250) + "." + (i % 250);
+                            assertTrue(fleet.transition(ip, round % 2 == 0 ? AgentState.ACTIVE : AgentState.DEGRADED));
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            for (int w = 0; w < writers; w++) {
+                tasks[readers + w].get(60, TimeUnit.SECONDS);
+            }
+            running.set(false);
+            for (int r = 0; r < readers; r++) {
+                tasks[r].get(10, TimeUnit.SECONDS);
+            }
+            assertTrue(reads.get() > 0, "the readers ran alongside the writers");
+        } finally {
+            running.set(false);
+            pool.shutdownNow();
+        }
+        // 200 rounds end on DEGRADED for every agent
+        for (FleetRegistry.AgentEntry entry : fleet.snapshot().values()) {
+            assertEquals(AgentState.DEGRADED, entry.state());
+        }
+    }
+
+    /**
+     * A network partition marks many agents down together: the counts by state follow every transition
+     */
+    @Test
+    void testCountsFollowAMassTransition() throws Exception {
+        int agents = 5000;
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FleetRegistry fleet = new FleetRegistry(registry);
+        for (int i = 0; i < agents; i++) {
+            String ip = "10.1." + (i / 250) + "." + (i % 250);
+            fleet.register(ip, 5000);
+            fleet.transition(ip, AgentState.ACTIVE);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < agents; i++) {
+                String ip = "10.1." + (i / 250) + "." + (i % 250);
+                pool.submit(() -> {
+                    fleet.transition(ip, AgentState.DEGRADED);
+                    fleet.transition(ip, AgentState.DOWN);
+                });
+            }
+        } finally {
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        }
+        assertEquals(agents, registry.get("corvo.agent.fleet.agents").tag("state", "down").gauge().value());
+        assertEquals(0, registry.get("corvo.agent.fleet.agents").tag("state", "active").gauge().value());
+        assertEquals(agents, fleet.snapshot().size());
+
+        fleet.remove("10.1.0.0");
+        assertEquals(agents - 1, registry.get("corvo.agent.fleet.agents").tag("state", "down").gauge().value());
+    }
+}
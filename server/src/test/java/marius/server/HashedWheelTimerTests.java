@@ -0,0 +1,74 @@
+package marius.server;
+
+import marius.server.client.HashedWheelTimer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashedWheelTimerTests {
+
+    @Test
+    void testTimeoutsFireAfterTheirDelay() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 10, TimeUnit.MILLISECONDS, 8,
+                batch -> batch.forEach(Runnable::run));
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            long start = System.nanoTime();
+            long[] elapsed = new long[1];
+            // the delay is longer than a full turn of the wheel, so the timeout needs more rounds
+            timer.newTimeout(() -> {
+                elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                latch.countDown();
+            }, 250, TimeUnit.MILLISECONDS);
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS), "the timeout must fire");
+            assertTrue(elapsed[0] >= 250, "the timeout fired too early: " + elapsed[0] + " ms");
+            assertEquals(0, timer.size());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    void testCancelledTimeoutDoesNotFire() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger();
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 10, TimeUnit.MILLISECONDS, 8,
+                batch -> batch.forEach(Runnable::run));
+        try {
+            HashedWheelTimer.Timeout timeout = timer.newTimeout(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+            assertTrue(timeout.cancel());
+            assertFalse(timeout.cancel(), "a timeout can be cancelled only once");
+            Thread.sleep(200);
+            assertEquals(0, fired.get());
+            assertEquals(0, timer.size());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    void testTimeoutsOfATickAreDispatchedTogether() throws InterruptedException {
+        int agents = 10_000;
+        CountDownLatch latch = new CountDownLatch(agents);
+        AtomicInteger batches = new AtomicInteger();
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 20, TimeUnit.MILLISECONDS, 64,
+                (List<Runnable> batch) -> {
+                    batches.incrementAndGet();
+                    batch.forEach(Runnable::run);
+                });
+        try {
+            for (int i = 0; i < agents; i++) {
+                timer.newTimeout(latch::countDown, i % 200, TimeUnit.MILLISECONDS);
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS), "all the timeouts must fire");
+            assertTrue(batches.get() < agents / 10, "expected few batches, got " + batches.get());
+        } finally {
+            timer.stop();
+        }
+    }
+}
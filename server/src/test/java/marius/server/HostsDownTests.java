@@ -0,0 +1,89 @@
+package marius.server;
+
+import marius.server.repo.AgentStateStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Marks a group of hosts down with the set-based UPDATE ... WHERE ip = ANY(?): only the rows still up are written,
+ * the other hosts are not touched. Needs the database, run with mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class HostsDownTests {
+
+    private static final String PREFIX = "10.251.0.";
+    private static final int HOSTS = 4;
+    // half of the services and rules of every host are already down
+    private static final int PER_HOST = 6;
+
+    @Autowired
+    private AgentStateStore stateStore;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp(){
+        tearDown();
+        // the server of the third host is already down
+        jdbcTemplate.update("INSERT INTO server (ip, state, name, descr) " +
+                "SELECT ? || g, g <> 3, 'down-' || g, 'hosts down test' FROM generate_series(1, ?) g", PREFIX, HOSTS);
+        jdbcTemplate.update("INSERT INTO service (ip, name, description, porta, automatic_start, state) " +
+                "SELECT ? || h, 'svc-' || s, 'todo', 5000, false, s % 2 = 1 " +
+                "FROM generate_series(1, ?) h, generate_series(1, ?) s", PREFIX, HOSTS, PER_HOST);
+        jdbcTemplate.update("INSERT INTO rules (name, descr, status, ip) " +
+                "SELECT 'rule-' || r, 'todo', r % 2 = 1, ? || h FROM generate_series(1, ?) h, generate_series(1, ?) r",
+                PREFIX, HOSTS, PER_HOST);
+    }
+
+    @AfterEach
+    void tearDown(){
+        jdbcTemplate.update("DELETE FROM rules WHERE ip LIKE ?", PREFIX + "%");
+        jdbcTemplate.update("DELETE FROM service WHERE ip LIKE ?", PREFIX + "%");
+        jdbcTemplate.update("DELETE FROM server WHERE ip LIKE ?", PREFIX + "%");
+    }
+
+    private long countUp(String ip){
+        return jdbcTemplate.queryForObject("SELECT " +
+                "(SELECT count(*) FROM server WHERE ip = ? AND state) + " +
+                "(SELECT count(*) FROM service WHERE ip = ? AND state) + " +
+                "(SELECT count(*) FROM rules WHERE ip = ? AND status)", Long.class, ip, ip, ip);
+    }
+
+    /**
+     * @return the row version (xmin) of the services and rules already down, it changes only if the row is written
+     */
+    private List<Map<String, Object>> downVersions(){
+        return jdbcTemplate.queryForList("SELECT 'service' AS t, id, xmin::text AS version FROM service WHERE ip LIKE ? AND NOT state " +
+                "UNION ALL SELECT 'rules', id, xmin::text FROM rules WHERE ip LIKE ? AND NOT status ORDER BY 1, 2",
+                PREFIX + "%", PREFIX + "%");
+    }
+
+    @Test
+    void testMarkHostsDownFlipsOnlyTheRowsUp(){
+        List<String> ips = List.of(PREFIX + 1, PREFIX + 2, PREFIX + 3);
+        List<Map<String, Object>> alreadyDown = downVersions();
+
+        AgentStateStore.HostsDown down = stateStore.markHostsDown(ips);
+        // two servers up, and half of the services and rules of the three hosts
+        assertEquals(new AgentStateStore.HostsDown(2, 3 * PER_HOST / 2, 3 * PER_HOST / 2), down);
+        ips.forEach(ip -> assertEquals(0, countUp(ip), ip + " must be down"));
+        assertEquals(1 + PER_HOST, countUp(PREFIX + HOSTS), "a host not in the list is not touched");
+
+        List<Map<String, Object>> after = downVersions();
+        assertTrue(after.containsAll(alreadyDown), "the rows already down must not be written again");
+
+        assertEquals(new AgentStateStore.HostsDown(0, 0, 0), stateStore.markHostsDown(ips));
+        assertEquals(new AgentStateStore.HostsDown(0, 0, 0), stateStore.markHostsDown(List.of()));
+    }
+}
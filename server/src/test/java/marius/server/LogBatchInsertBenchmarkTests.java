@@ -0,0 +1,84 @@
+package marius.server;
+
+import marius.server.data.Log;
+import marius.server.data.RoleEnum;
+import marius.server.data.User;
+import marius.server.repo.LogRepo;
+import marius.server.repo.UserRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Throughput of the bulk insert of logs: one round trip per row, as with the IDENTITY ids,
+ * against saveAll with pooled ids and JDBC batching. Needs the database, run with mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class LogBatchInsertBenchmarkTests {
+
+    private static final String EMAIL = "benchmark.batch@corvo.local";
+    private static final int ROWS = 10_000;
+
+    @Autowired
+    private LogRepo logRepo;
+    @Autowired
+    private UserRepo userRepo;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp(){
+        if (userRepo.findUserByEmail(EMAIL).isEmpty()) {
+            userRepo.save(new User("benchmark-batch", EMAIL, "not-a-hash", RoleEnum.WORKER));
+        }
+        jdbcTemplate.update("DELETE FROM log WHERE user_email = ?", EMAIL);
+    }
+
+    @AfterEach
+    void tearDown(){
+        jdbcTemplate.update("DELETE FROM log WHERE user_email = ?", EMAIL);
+        userRepo.findUserByEmail(EMAIL).ifPresent(userRepo::delete);
+    }
+
+    private static List<Log> logs(){
+        List<Log> logs = new ArrayList<>(ROWS);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < ROWS; i++) {
+            logs.add(new Log(EMAIL, "benchmark log " + i, now));
+        }
+        return logs;
+    }
+
+    @Test
+    void testBatchedInsertThroughput(){
+        List<Log> single = logs();
+        long start = System.nanoTime();
+        for (Log log : single) {
+            jdbcTemplate.queryForObject("INSERT INTO log (data, user_email, descr) VALUES (?, ?, ?) RETURNING id",
+                    Integer.class, log.getData(), log.getUserEmail(), log.getDescr());
+        }
+        long rowByRow = System.nanoTime() - start;
+        jdbcTemplate.update("DELETE FROM log WHERE user_email = ?", EMAIL);
+
+        List<Log> batched = logs();
+        start = System.nanoTime();
+        logRepo.saveAll(batched);
+        long batch = System.nanoTime() - start;
+
+        System.out.printf("insert %d logs: row by row %.0f rows/s, batched saveAll %.0f rows/s%n",
+                ROWS, ROWS / (rowByRow / 1e9), ROWS / (batch / 1e9));
+        assertEquals(ROWS, logRepo.findByUserEmail(EMAIL).size());
+        assertTrue(batched.stream().allMatch(log -> log.getId() > 0), "the ids come from the sequence");
+    }
+}
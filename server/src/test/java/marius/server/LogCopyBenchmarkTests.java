@@ -0,0 +1,102 @@
+package marius.server;
+
+import marius.server.data.Log;
+import marius.server.data.RoleEnum;
+import marius.server.data.User;
+import marius.server.repo.LogCopyWriter;
+import marius.server.repo.LogRepo;
+import marius.server.repo.UserRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Throughput of the bulk insert of logs: saveAll with JDBC batching against COPY ... FROM STDIN.
+ * Needs the database, run with mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class LogCopyBenchmarkTests {
+
+    private static final String EMAIL = "benchmark.copy@corvo.local";
+    private static final int ROWS = 50_000;
+
+    @Autowired
+    private LogRepo logRepo;
+    @Autowired
+    private LogCopyWriter logCopyWriter;
+    @Autowired
+    private UserRepo userRepo;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp(){
+        if (userRepo.findUserByEmail(EMAIL).isEmpty()) {
+            userRepo.save(new User("benchmark-copy", EMAIL, "not-a-hash", RoleEnum.WORKER));
+        }
+        jdbcTemplate.update("DELETE FROM log WHERE user_email = ?", EMAIL);
+    }
+
+    @AfterEach
+    void tearDown(){
+        jdbcTemplate.update("DELETE FROM log WHERE user_email = ?", EMAIL);
+        userRepo.findUserByEmail(EMAIL).ifPresent(userRepo::delete);
+    }
+
+    private static List<Log> logs(){
+        List<Log> logs = new ArrayList<>(ROWS);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < ROWS; i++) {
+            logs.add(new Log(EMAIL, "benchmark log " + i, now));
+        }
+        return logs;
+    }
+
+    @Test
+    void testCopyThroughput(){
+        List<Log> batched = logs();
+        long start = System.nanoTime();
+        logRepo.saveAll(batched);
+        long batch = System.nanoTime() - start;
+
+        List<Log> copied = logs();
+        start = System.nanoTime();
+        assertEquals(ROWS, logCopyWriter.copy(copied));
+        long copy = System.nanoTime() - start;
+
+        System.out.printf("insert %d logs: saveAll %.0f rows/s, COPY %.0f rows/s%n",
+                ROWS, ROWS / (batch / 1e9), ROWS / (copy / 1e9));
+        assertEquals(2L * ROWS, jdbcTemplate.queryForObject("SELECT count(*) FROM log WHERE user_email = ?", Long.class, EMAIL));
+        Set<Integer> ids = new HashSet<>();
+        batched.forEach(log -> ids.add(log.getId()));
+        copied.forEach(log -> ids.add(log.getId()));
+        assertEquals(2 * ROWS, ids.size(), "the two paths must not give the same id");
+    }
+
+    @Test
+    void testCopyKeepsTheValues(){
+        Log withoutData = new Log(EMAIL, "no data, \"quoted\"\nmultiline", (Timestamp) null);
+        Log empty = new Log(EMAIL, "", new Timestamp(0));
+        assertEquals(2, logCopyWriter.copy(List.of(withoutData, empty)));
+
+        Log read = logRepo.findById(withoutData.getId()).orElseThrow();
+        assertEquals("no data, \"quoted\"\nmultiline", read.getDescr());
+        assertNull(read.getIp());
+        assertNotNull(read.getData(), "a log without data gets the current time");
+        Log readEmpty = logRepo.findById(empty.getId()).orElseThrow();
+        assertEquals("", readEmpty.getDescr(), "an empty string must not become NULL");
+    }
+}
@@ -0,0 +1,146 @@
+package marius.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import marius.server.repo.LogExporter;
+import marius.server.repo.LogKeysetQuery;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Exports benchmark.export.rows logs (5M by default) with a heap smaller than the export, so it must be streamed.
+ * The rows are seeded in the export_check schema, so the real data is not touched.
+ * Needs the database, run with mvn test -Pbenchmark (the profile runs the tests with -Xmx256m)
+ */
+@Tag("benchmark")
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class LogExportBenchmarkTests {
+
+    private static final String SCHEMA = "export_check";
+    private static final LogKeysetQuery.Filter ALL = new LogKeysetQuery.Filter(null, null, null, null, null);
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${spring.datasource.url}")
+    private String url;
+    @Value("${spring.datasource.username}")
+    private String username;
+    @Value("${spring.datasource.password}")
+    private String password;
+    @Value("${benchmark.export.rows:5000000}")
+    private long rows;
+
+    private LogExporter exporter;
+    private LocalDateTime base;
+
+    @BeforeAll
+    void seed(){
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        jdbcTemplate.execute("CREATE SCHEMA " + SCHEMA);
+        jdbcTemplate.execute("CREATE TABLE " + SCHEMA + ".log (LIKE public.log INCLUDING DEFAULTS INCLUDING INDEXES)");
+        base = LocalDateTime.of(2024, 1, 1, 0, 0);
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".log (id, data, user_email, ip, service, descr) " +
+                "SELECT g, ?::timestamp + g * interval '1 second', 'user' || (g % 1000) || '@corvo.local', " +
+                "'10.0.' || (g % 250) || '.1', NULL, 'benchmark, \"log\" ' || g FROM generate_series(1, ?) g",
+                base, rows);
+        jdbcTemplate.execute("ANALYZE " + SCHEMA + ".log");
+
+        // the exporter reads log from the benchmark schema
+        String schemaUrl = url + (url.contains("?") ? "&" : "?") + "currentSchema=" + SCHEMA;
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(schemaUrl, username, password);
+        exporter = new LogExporter(dataSource, new DataSourceTransactionManager(dataSource), new ObjectMapper(), 5000);
+    }
+
+    @AfterAll
+    void drop(){
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+    }
+
+    @Test
+    void testExportRunsInConstantMemory() throws Exception {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        LineCountingStream out = new LineCountingStream();
+        long start = System.nanoTime();
+        long exported = exporter.export(ALL, LogExporter.Format.NDJSON, false, out);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("export of %d rows: %d MB in %d ms with a heap of %d MB%n",
+                exported, out.bytes / (1024 * 1024), millis, maxHeap / (1024 * 1024));
+
+        assertEquals(rows, exported);
+        assertEquals(rows, out.lines);
+        // the export could not be held in memory, so it was streamed
+        assertTrue(out.bytes > maxHeap, "the export (" + out.bytes / (1024 * 1024) + " MB) must be bigger than the heap ("
+                + maxHeap / (1024 * 1024) + " MB), run with -Pbenchmark or a smaller -Xmx");
+    }
+
+    @Test
+    void testCsvWithFilter() throws Exception {
+        // 10 seconds after base: rows 1..9
+        LogKeysetQuery.Filter filter = new LogKeysetQuery.Filter(null, null, null, base, base.plusSeconds(10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(9, exporter.export(filter, LogExporter.Format.CSV, false, out));
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\r\n");
+        assertEquals(10, lines.length);
+        assertEquals("id,data,user_email,ip,service,descr", lines[0]);
+        assertEquals("1,2024-01-01T00:00:01,user1@corvo.local,10.0.1.1,,\"benchmark, \"\"log\"\" 1\"", lines[1]);
+    }
+
+    @Test
+    void testNdjsonRowsAreValidJson() throws Exception {
+        LogKeysetQuery.Filter filter = new LogKeysetQuery.Filter("user7@corvo.local", null, null, null, base.plusHours(1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long exported = exporter.export(filter, LogExporter.Format.NDJSON, false, out);
+        ObjectMapper mapper = new ObjectMapper();
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(exported, lines.length);
+        for (String line : lines) {
+            JsonNode row = mapper.readTree(line);
+            assertEquals("user7@corvo.local", row.get("userEmail").asText());
+            assertTrue(row.get("service").isNull());
+        }
+    }
+
+    /**
+     * Discards the output, keeping only its size and the number of lines
+     */
+    private static final class LineCountingStream extends OutputStream {
+        private long bytes;
+        private long lines;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            if (b == '\n') {
+                lines++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    lines++;
+                }
+            }
+        }
+    }
+}
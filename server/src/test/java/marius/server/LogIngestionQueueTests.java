@@ -0,0 +1,174 @@
+package marius.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import marius.server.data.Log;
+import marius.server.repo.LogIngestionQueue;
+import marius.server.repo.LogRepo;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LogIngestionQueueTests {
+
+    private static List<Log> logs(int n){
+        List<Log> logs = new ArrayList<>();
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < n; i++) {
+            logs.add(new Log("queue@corvo.local", "log " + i, now));
+        }
+        return logs;
+    }
+
+    /**
+     * LogRepo whose saveAll records the batches, and waits for the gate before returning
+     */
+    private static LogRepo recordingRepo(List<Integer> batches, CountDownLatch gate){
+        LogRepo repo = mock(LogRepo.class);
+        when(repo.saveAll(anyList())).thenAnswer(invocation -> {
+            List<Log> batch = invocation.getArgument(0);
+            if (gate.getCount() > 0) {
+                gate.await(5, TimeUnit.SECONDS);
+            }
+            batches.add(batch.size());
+            return batch;
+        });
+        return repo;
+    }
+
+    @Test
+    void testSyncModeDoesNotQueue(){
+        LogIngestionQueue queue = new LogIngestionQueue(mock(LogRepo.class), new SimpleMeterRegistry(),
+                "sync", 10, 5, 50, 0, 1000);
+        assertFalse(queue.isEnabled());
+        assertThrows(IllegalArgumentException.class, () -> new LogIngestionQueue(mock(LogRepo.class),
+                new SimpleMeterRegistry(), "later", 10, 5, 50, 0, 1000));
+    }
+
+    @Test
+    void testGroupCommitBySize() throws Exception {
+        List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        LogIngestionQueue queue = new LogIngestionQueue(recordingRepo(batches, new CountDownLatch(0)),
+                new SimpleMeterRegistry(), "async", 1000, 100, 1000, 0, 5000);
+        assertTrue(queue.offerAll(logs(250)));
+        queue.shutdown();
+        assertEquals(250, batches.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batches.stream().allMatch(size -> size <= 100), "batches bigger than batch-size: " + batches);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void testBackpressureWhenFull() throws Exception {
+        List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        LogIngestionQueue queue = new LogIngestionQueue(recordingRepo(batches, gate),
+                new SimpleMeterRegistry(), "async", 10, 10, 10, 0, 5000);
+        assertTrue(queue.offerAll(logs(10)));
+        // the writer is stuck on the first batch, its slots are released only after the write
+        assertFalse(queue.offerAll(logs(1)), "a full queue must refuse the logs");
+        assertFalse(queue.offerAll(logs(11)), "a batch bigger than the queue is never accepted");
+        gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!queue.offerAll(logs(5)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        queue.shutdown();
+        assertEquals(15, batches.stream().mapToInt(Integer::intValue).sum());
+        assertFalse(queue.offerAll(logs(1)), "no logs are accepted after the shutdown");
+    }
+
+    @Test
+    void testWriterSurvivesTheDatabaseDown() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger calls = new AtomicInteger();
+        LogRepo repo = mock(LogRepo.class);
+        // the database is down for the first two batches, all the retries fail: not a DataAccessException
+        when(repo.saveAll(anyList())).thenAnswer(invocation -> {
+            if (calls.getAndIncrement() < 2) {
+                throw new CannotCreateTransactionException("Could not open JPA EntityManager for transaction");
+            }
+            List<Log> batch = invocation.getArgument(0);
+            batches.add(batch.size());
+            return batch;
+        });
+        LogIngestionQueue queue = new LogIngestionQueue(repo, registry, "async", 100, 100, 10, 1, 5000);
+
+        assertTrue(queue.offerAll(logs(5)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (registry.get("corvo.log.ingestion.failed").counter().count() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, registry.get("corvo.log.ingestion.failed").counter().count(), "the batch is dropped after the retries");
+
+        // the writer is still alive and the slots of the lost batch are free again
+        assertTrue(queue.offerAll(logs(100)));
+        queue.shutdown();
+        assertEquals(100, batches.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void testRetryInsertsTheRowsAgain() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger sequence = new AtomicInteger(1);
+        LogRepo repo = mock(LogRepo.class);
+        when(repo.saveAll(anyList())).thenAnswer(invocation -> {
+            List<Log> batch = invocation.getArgument(0);
+            // like Spring Data: a log with an id is merged, and a row never inserted fails as stale
+            if (batch.stream().anyMatch(l -> l.getId() != 0)) {
+                throw new IllegalStateException("Row was updated or deleted by another transaction");
+            }
+            // the generator gives the ids before the flush, the rollback does not take them back
+            batch.forEach(l -> l.setId(sequence.getAndIncrement()));
+            if (calls.getAndIncrement() == 0) {
+                throw new CannotCreateTransactionException("Could not open JPA EntityManager for transaction");
+            }
+            batches.add(batch.size());
+            return batch;
+        });
+        LogIngestionQueue queue = new LogIngestionQueue(repo, registry, "async", 100, 100, 10, 1, 5000);
+
+        assertTrue(queue.offerAll(logs(5)));
+        queue.shutdown();
+        assertEquals(List.of(5), batches, "the rows are written by the retry");
+        assertEquals(0, registry.get("corvo.log.ingestion.failed").counter().count());
+    }
+
+    @Test
+    void testBadRowIsDroppedAlone() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        List<String> saved = Collections.synchronizedList(new ArrayList<>());
+        LogRepo repo = mock(LogRepo.class);
+        when(repo.saveAll(anyList())).thenThrow(new DataIntegrityViolationException("violates foreign key constraint"));
+        when(repo.save(any(Log.class))).thenAnswer(invocation -> {
+            Log l = invocation.getArgument(0);
+            if (l.getDescr().equals("log 2")) {
+                throw new DataIntegrityViolationException("violates foreign key constraint");
+            }
+            saved.add(l.getDescr());
+            return l;
+        });
+        LogIngestionQueue queue = new LogIngestionQueue(repo, registry, "async", 100, 100, 10, 3, 5000);
+
+        assertTrue(queue.offerAll(logs(5)));
+        queue.shutdown();
+        assertEquals(List.of("log 0", "log 1", "log 3", "log 4"), saved);
+        assertEquals(1, registry.get("corvo.log.ingestion.failed").counter().count());
+    }
+}
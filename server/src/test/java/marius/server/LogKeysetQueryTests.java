@@ -0,0 +1,37 @@
+package marius.server;
+
+import marius.server.repo.LogKeysetQuery;
+import marius.server.repo.LogKeysetQuery.Cursor;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogKeysetQueryTests {
+
+    @Test
+    void testCursorRoundTrip(){
+        Cursor cursor = new Cursor(LocalDateTime.of(2025, 3, 14, 9, 26, 53, 589_793_000), 42);
+        String encoded = cursor.encode();
+        assertFalse(encoded.contains("|"), "the cursor must be opaque");
+        assertFalse(encoded.contains("="), "the cursor must be safe in a query string");
+        assertEquals(cursor, Cursor.decode(encoded));
+    }
+
+    @Test
+    void testInvalidCursor(){
+        assertThrows(IllegalArgumentException.class, () -> Cursor.decode("not a cursor!"));
+        assertThrows(IllegalArgumentException.class, () -> Cursor.decode("Zm9v"));
+        assertThrows(IllegalArgumentException.class, () -> Cursor.decode("MjAyNS0wMS0wMXx4"));
+    }
+
+    @Test
+    void testLimitIsClamped(){
+        LogKeysetQuery query = new LogKeysetQuery(null, 100, 1000);
+        assertEquals(100, query.limit(null));
+        assertEquals(1, query.limit(0));
+        assertEquals(250, query.limit(250));
+        assertEquals(1000, query.limit(50_000));
+    }
+}
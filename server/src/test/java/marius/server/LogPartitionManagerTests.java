@@ -0,0 +1,44 @@
+package marius.server;
+
+import marius.server.repo.LogPartitionManager;
+import marius.server.repo.LogPartitionManager.Interval;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogPartitionManagerTests {
+
+    @Test
+    void testMonthlyPartitions(){
+        LocalDate start = Interval.MONTH.floor(LocalDate.of(2024, 2, 29));
+        assertEquals(LocalDate.of(2024, 2, 1), start);
+        assertEquals(LocalDate.of(2024, 3, 1), Interval.MONTH.next(start));
+        assertEquals(LocalDate.of(2025, 1, 1), Interval.MONTH.next(LocalDate.of(2024, 12, 1)));
+        assertEquals("log_p2024_02", Interval.MONTH.partitionName(start));
+    }
+
+    @Test
+    void testWeeklyPartitionsStartOnMonday(){
+        // 2025-01-01 is a wednesday, its week starts in the previous year
+        LocalDate start = Interval.WEEK.floor(LocalDate.of(2025, 1, 1));
+        assertEquals(LocalDate.of(2024, 12, 30), start);
+        assertEquals(start, Interval.WEEK.floor(start));
+        assertEquals(LocalDate.of(2025, 1, 6), Interval.WEEK.next(start));
+        assertEquals("log_p2024_12_30", Interval.WEEK.partitionName(start));
+    }
+
+    @Test
+    void testParseBounds(){
+        LogPartitionManager.Partition p = LogPartitionManager.parse("log_p2025_01",
+                "FOR VALUES FROM ('2025-01-01 00:00:00') TO ('2025-02-01 00:00:00')");
+        assertEquals(LocalDateTime.of(2025, 1, 1, 0, 0), p.lower());
+        assertEquals(LocalDateTime.of(2025, 2, 1, 0, 0), p.upper());
+
+        LogPartitionManager.Partition def = LogPartitionManager.parse("log_default", "DEFAULT");
+        assertNull(def.lower());
+        assertNull(def.upper());
+    }
+}
@@ -0,0 +1,145 @@
+package marius.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the lookups on the log table use the indexes of db/V2__query_indexes.sql and db/V3__log_keyset_index.sql.
+ * The table is copied with its indexes in the plan_check schema and seeded with benchmark.log.rows rows
+ * (10M by default), so the real data is not touched. Needs the database, run with mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+@SpringBootTest
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class LogQueryPlanTests {
+
+    private static final String SCHEMA = "plan_check";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${benchmark.log.rows:10000000}")
+    private long rows;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @BeforeAll
+    void seed(){
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        jdbcTemplate.execute("CREATE SCHEMA " + SCHEMA);
+        jdbcTemplate.execute("CREATE TABLE " + SCHEMA + ".log (LIKE public.log INCLUDING DEFAULTS INCLUDING INDEXES)");
+        // 1000 users and 250 servers, one log per second going back in time
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".log (data, user_email, ip, descr) " +
+                "SELECT now() - g * interval '1 second', 'user' || (g % 1000) || '@corvo.local', " +
+                "'10.0.' || (g % 250) || '.1', 'benchmark log ' || g FROM generate_series(1, ?) g", rows);
+        jdbcTemplate.execute("ANALYZE " + SCHEMA + ".log");
+    }
+
+    @AfterAll
+    void drop(){
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+    }
+
+    /**
+     * @return the nodes of the plan as "node type:index name"
+     */
+    private List<String> plan(String query){
+        String json = jdbcTemplate.queryForObject("EXPLAIN (FORMAT JSON) " + query, String.class);
+        List<String> nodes = new ArrayList<>();
+        try {
+            collect(mapper.readTree(json).get(0).get("Plan"), nodes);
+        } catch (Exception e) {
+            fail("unreadable plan: " + json);
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the nodes of the plan that read the index
+     */
+    private List<JsonNode> indexNodes(String query, String index){
+        String json = jdbcTemplate.queryForObject("EXPLAIN (FORMAT JSON) " + query, String.class);
+        List<JsonNode> found = new ArrayList<>();
+        try {
+            findIndex(mapper.readTree(json).get(0).get("Plan"), index, found);
+        } catch (Exception e) {
+            fail("unreadable plan: " + json);
+        }
+        return found;
+    }
+
+    private static void findIndex(JsonNode node, String index, List<JsonNode> found){
+        if (index.equals(node.path("Index Name").asText())) {
+            found.add(node);
+        }
+        for (JsonNode child : node.path("Plans")) {
+            findIndex(child, index, found);
+        }
+    }
+
+    private static void collect(JsonNode node, List<String> nodes){
+        nodes.add(node.path("Node Type").asText() + ":" + node.path("Index Name").asText());
+        for (JsonNode child : node.path("Plans")) {
+            collect(child, nodes);
+        }
+    }
+
+    private static void assertUsesIndex(List<String> nodes, String index){
+        assertTrue(nodes.stream().anyMatch(n -> n.contains("Index") && n.endsWith(":" + index)),
+                "expected " + index + " in " + nodes);
+        assertTrue(nodes.stream().noneMatch(n -> n.startsWith("Seq Scan")), "sequential scan in " + nodes);
+    }
+
+    @Test
+    void testUserLogsUseTheUserIndex(){
+        // LogRepo.findByUserEmail
+        assertUsesIndex(plan("SELECT * FROM " + SCHEMA + ".log WHERE user_email = 'user42@corvo.local'"),
+                "log_user_email_data_idx");
+    }
+
+    @Test
+    void testLatestUserLogsNeedNoSort(){
+        List<String> nodes = plan("SELECT * FROM " + SCHEMA + ".log WHERE user_email = 'user42@corvo.local' " +
+                "ORDER BY data DESC LIMIT 50");
+        assertUsesIndex(nodes, "log_user_email_data_idx");
+        assertTrue(nodes.stream().noneMatch(n -> n.startsWith("Sort")), "the index must give the order: " + nodes);
+    }
+
+    @Test
+    void testLatestServerLogsNeedNoSort(){
+        List<String> nodes = plan("SELECT * FROM " + SCHEMA + ".log WHERE ip = '10.0.7.1' " +
+                "AND data > now() - interval '1 day' ORDER BY data DESC LIMIT 50");
+        assertUsesIndex(nodes, "log_ip_data_idx");
+        assertTrue(nodes.stream().noneMatch(n -> n.startsWith("Sort")), "the index must give the order: " + nodes);
+    }
+
+    @Test
+    void testDeepLogPageIsAnIndexRange(){
+        // LogKeysetQuery.find with a cursor far from the newest row
+        String query = "SELECT * FROM " + SCHEMA + ".log WHERE (data, id) < (now() - interval '30 days', 0) " +
+                "ORDER BY data DESC, id DESC LIMIT 101";
+        List<String> nodes = plan(query);
+        assertTrue(nodes.stream().noneMatch(n -> n.startsWith("Sort")), "the index must give the order: " + nodes);
+        List<JsonNode> scans = indexNodes(query, "log_data_id_idx");
+        assertEquals(1, scans.size(), "expected log_data_id_idx in " + nodes);
+        JsonNode scan = scans.get(0);
+        assertEquals("Index Scan", scan.path("Node Type").asText(), "plan: " + nodes);
+        // the cursor bounds the scan, it does not filter the rows read from the newest one
+        assertTrue(scan.path("Index Cond").asText().contains("data"), "no index bound on data: " + scan);
+        assertTrue(scan.path("Filter").isMissingNode(), "the cursor must not be a filter: " + scan);
+    }
+}
@@ -0,0 +1,81 @@
+package marius.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHashCalibratorTests {
+
+    @AfterEach
+    void restoreParams(){
+        Tools.setHashParams(Tools.HashParams.DEFAULT);
+    }
+
+    @Test
+    void testParamsAreReadFromTheHash(){
+        Tools.HashParams params = new Tools.HashParams(16, 32, 1, 1024, 3);
+        assertEquals(params, Tools.HashParams.of(params.encoder().encode("P4ssword!")));
+
+        assertNull(Tools.HashParams.of(null));
+        assertNull(Tools.HashParams.of("plaintext"));
+        assertNull(Tools.HashParams.of("$argon2i$v=19$m=1024,t=3,p=1$c2FsdA$aGFzaA"));
+        assertNull(Tools.HashParams.of("$argon2id$v=19$m=abc,t=3,p=1$c2FsdA$aGFzaA"));
+    }
+
+    @Test
+    void testOnlyWeakerHashesNeedRehash(){
+        Tools.HashParams params = new Tools.HashParams(16, 32, 1, 1024, 2);
+        Tools.setHashParams(params);
+        String current = Tools.hashPassword("P4ssword!");
+        assertFalse(Tools.needsRehash(current));
+        assertTrue(Tools.isPasswordHashedWith("P4ssword!", current));
+
+        String weaker = new Tools.HashParams(16, 32, 1, 512, 2).encoder().encode("P4ssword!");
+        assertTrue(Tools.needsRehash(weaker));
+        // the old hashes are still checked with their own parameters
+        assertTrue(Tools.isPasswordHashedWith("P4ssword!", weaker));
+        assertTrue(Tools.needsRehash("not a hash"));
+
+        // a restart that calibrated lower parameters never downgrades the saved hashes
+        assertFalse(Tools.needsRehash(new Tools.HashParams(16, 32, 1, 2048, 2).encoder().encode("P4ssword!")));
+        assertFalse(Tools.needsRehash(new Tools.HashParams(16, 32, 1, 1024, 4).encoder().encode("P4ssword!")));
+        // more memory and fewer iterations: not weaker, kept as it is
+        assertFalse(Tools.needsRehash(new Tools.HashParams(16, 32, 1, 2048, 1).encoder().encode("P4ssword!")));
+        // the parallelism is not a strength
+        assertFalse(Tools.needsRehash(new Tools.HashParams(16, 32, 2, 1024, 2).encoder().encode("P4ssword!")));
+    }
+
+    @Test
+    void testIterationsAreQuantized(){
+        assertEquals(2, PasswordHashCalibrator.quantize(0));
+        assertEquals(2, PasswordHashCalibrator.quantize(3));
+        assertEquals(8, PasswordHashCalibrator.quantize(8));
+        assertEquals(8, PasswordHashCalibrator.quantize(11));
+        assertEquals(16, PasswordHashCalibrator.quantize(31));
+        assertEquals(32, PasswordHashCalibrator.quantize(32));
+    }
+
+    @Test
+    void testFixedParamsAreTheConfiguredOnes(){
+        PasswordHashCalibrator calibrator = new PasswordHashCalibrator(false, 250, 2048, 1024, 3, 2);
+        assertEquals(new Tools.HashParams(16, 32, 2, 2048, 3), calibrator.getParams());
+        assertEquals(calibrator.getParams(), Tools.getHashParams());
+    }
+
+    @Test
+    void testCalibrationStaysInTheBounds(){
+        // small memory, the test runs in a few hundred milliseconds
+        PasswordHashCalibrator calibrator = new PasswordHashCalibrator(true, 50, 4096, 1024, 8, 1);
+        Tools.HashParams params = calibrator.getParams();
+        assertTrue(params.memoryKib() <= 4096 && params.memoryKib() >= 1024, "memory " + params.memoryKib());
+        assertTrue(params.iterations() >= 2 && params.iterations() <= 32, "iterations " + params.iterations());
+        assertEquals(Integer.highestOneBit(params.iterations()), params.iterations(), "iterations are a power of two");
+        assertEquals(1, params.parallelism());
+        assertEquals(params, Tools.getHashParams());
+
+        String hash = Tools.hashPassword("P4ssword!");
+        assertEquals(params, Tools.HashParams.of(hash));
+        assertTrue(Tools.isPasswordHashedWith("P4ssword!", hash));
+    }
+}
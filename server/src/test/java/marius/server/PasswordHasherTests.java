@@ -0,0 +1,121 @@
+package marius.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHasherTests {
+
+    private static final long MB = 1024 * 1024;
+
+    private static PasswordHashCalibrator fixedParams(){
+        return new PasswordHashCalibrator(false, 250, 65536, 19456, 8, 4);
+    }
+
+    @Test
+    void testConcurrencyFollowsTheHeap(){
+        // the container: 512 MB of heap, a quarter for hashes of 64 MB
+        assertEquals(2, PasswordHasher.concurrencyFor(512 * MB, 0.25, 65536, 8));
+        // never less than one
+        assertEquals(1, PasswordHasher.concurrencyFor(64 * MB, 0.25, 65536, 8));
+        // never more than the processors
+        assertEquals(4, PasswordHasher.concurrencyFor(8192 * MB, 0.5, 65536, 4));
+    }
+
+    @Test
+    void testPoolIsSizedForTheSavedHashes(){
+        // calibrated to 1 MB, the logins still verify the hashes of 64 MB saved before
+        PasswordHashCalibrator small = new PasswordHashCalibrator(false, 250, 1024, 1024, 2, 1);
+        PasswordHasher hasher = new PasswordHasher(new SimpleMeterRegistry(), small, 0, 0.25, 4, 2000);
+        try {
+            assertEquals(PasswordHasher.concurrencyFor(Runtime.getRuntime().maxMemory(), 0.25,
+                    Tools.HashParams.DEFAULT.memoryKib(), Runtime.getRuntime().availableProcessors()), hasher.getConcurrency());
+        } finally {
+            hasher.shutdown();
+            Tools.setHashParams(Tools.HashParams.DEFAULT);
+        }
+    }
+
+    @Test
+    void testHashesRunOnThePool(){
+        PasswordHasher hasher = new PasswordHasher(new SimpleMeterRegistry(), fixedParams(), 1, 0.25, 4, 5000);
+        try {
+            String hash = hasher.encode("P4ssword!");
+            assertTrue(hasher.matches("P4ssword!", hash));
+            assertFalse(hasher.matches("wrong", hash));
+            // the hash is the one of Tools, the hashes saved before the pool are still valid
+            assertTrue(Tools.isPasswordHashedWith("P4ssword!", hash));
+        } finally {
+            hasher.shutdown();
+        }
+    }
+
+    @Test
+    void testSaturatedPoolRefusesAtOnce() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        // one hash at a time, one waiting: a burst of logins is mostly refused
+        PasswordHasher hasher = new PasswordHasher(registry, fixedParams(), 1, 0.25, 1, 5000);
+        String hash = Tools.hashPassword("P4ssword!");
+        int callers = 6;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger verified = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                tasks.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        assertTrue(hasher.matches("P4ssword!", hash));
+                        verified.incrementAndGet();
+                    } catch (HashSaturatedException e) {
+                        assertTrue(e.getRetryAfterSeconds() >= 1);
+                        refused.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : tasks) {
+                task.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+            hasher.shutdown();
+        }
+        assertEquals(callers, verified.get() + refused.get());
+        assertTrue(verified.get() >= 1, "the first hash runs");
+        assertTrue(refused.get() >= 1, "the queue holds only one hash");
+        assertEquals(refused.get(), registry.get("corvo.auth.hash.rejected").counter().count());
+    }
+
+    @Test
+    void testHashThatCanNotStartInTimeIsDropped() throws Exception {
+        // the queue has room, but a hash waits longer than max-wait-ms behind the running one
+        PasswordHasher hasher = new PasswordHasher(new SimpleMeterRegistry(), fixedParams(), 1, 0.25, 8, 50);
+        String hash = Tools.hashPassword("P4ssword!");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> first = pool.submit(() -> hasher.matches("P4ssword!", hash));
+            Thread.sleep(20);
+            Future<Boolean> second = pool.submit(() -> hasher.matches("P4ssword!", hash));
+            assertTrue(first.get(30, TimeUnit.SECONDS));
+            Exception e = assertThrows(Exception.class, () -> second.get(30, TimeUnit.SECONDS));
+            assertInstanceOf(HashSaturatedException.class, e.getCause());
+        } finally {
+            pool.shutdownNow();
+            hasher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package marius.server;
+
+import marius.server.data.Rules;
+import marius.server.data.Server;
+import marius.server.repo.AgentStateStore;
+import marius.server.repo.RulesRepo;
+import marius.server.repo.ServerRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reconciliation of the rules of an agent: unique (ip, name), only the changed rows written,
+ * the vanished rules deleted. Needs the database, run with mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class RulesReconcileBenchmarkTests {
+
+    private static final String IP = "10.250.0.2";
+    private static final int RULES = 1000;
+    private static final int ROUNDS = 50;
+
+    @Autowired
+    private AgentStateStore stateStore;
+    @Autowired
+    private RulesRepo rulesRepo;
+    @Autowired
+    private ServerRepo serverRepo;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp(){
+        if (serverRepo.findByIp(IP).isEmpty()) {
+            serverRepo.save(new Server(IP, false, "benchmark", "rules benchmark", 5000));
+        }
+        jdbcTemplate.update("DELETE FROM rules WHERE ip = ?", IP);
+    }
+
+    @AfterEach
+    void tearDown(){
+        jdbcTemplate.update("DELETE FROM rules WHERE ip = ?", IP);
+        serverRepo.findByIp(IP).ifPresent(serverRepo::delete);
+    }
+
+    /**
+     * The rules reported by the agent in a round, every round one in twenty changes status
+     */
+    private static List<Rules> snapshot(int round){
+        List<Rules> rules = new ArrayList<>(RULES);
+        for (int i = 0; i < RULES; i++) {
+            rules.add(new Rules(String.format("rule-%04d", i), "audit rule " + i, i % 20 == round % 20, IP));
+        }
+        return rules;
+    }
+
+    private Map<String, Integer> storedIds(){
+        return rulesRepo.findByIp(IP).orElseThrow().stream().filter(rule -> !rule.isManual())
+                .collect(Collectors.toMap(Rules::getName, Rules::getId));
+    }
+
+    private static Rules manual(String descr){
+        Rules rule = new Rules("R", descr, true, IP);
+        rule.setManual(true);
+        return rule;
+    }
+
+    @Test
+    void testReconcileKeepsTheManualRules(){
+        // /addRule names every manual rule R: more of them on the same host must be accepted
+        Rules first = rulesRepo.save(manual("manual rule 1"));
+        Rules second = rulesRepo.save(manual("manual rule 2"));
+
+        stateStore.reconcileRules(IP, snapshot(0));
+        // an agent rule with the same name of the manual ones
+        List<Rules> next = snapshot(1);
+        next.add(new Rules("R", "agent rule R", true, IP));
+        stateStore.reconcileRules(IP, next);
+        AgentStateStore.Reconciliation removed = stateStore.reconcileRules(IP, List.of());
+        assertEquals(RULES + 1, removed.deleted(), "only the rules of the agent are deleted");
+
+        List<Rules> left = rulesRepo.findByIp(IP).orElseThrow();
+        assertEquals(2, left.size());
+        assertTrue(left.stream().allMatch(Rules::isManual));
+        assertEquals(List.of(first.getId(), second.getId()), left.stream().map(Rules::getId).sorted().toList());
+    }
+
+    @Test
+    void testReconcileWritesOnlyChanges(){
+        assertEquals(new AgentStateStore.Reconciliation(RULES, 0), stateStore.reconcileRules(IP, snapshot(0)));
+        Map<String, Integer> ids = storedIds();
+
+        assertEquals(new AgentStateStore.Reconciliation(0, 0), stateStore.reconcileRules(IP, snapshot(0)),
+                "an unchanged snapshot must not write");
+
+        List<Rules> next = snapshot(1);
+        next.remove(0);
+        next.add(new Rules("rule-new", "new audit rule", true, IP));
+        // duplicated names from the agent must not break the sync
+        next.add(new Rules("rule-new", "new audit rule", true, IP));
+        AgentStateStore.Reconciliation changed = stateStore.reconcileRules(IP, next);
+        assertEquals(1, changed.deleted());
+        // rule-0000 is gone, rule-0001 and the ones with the same residue switch on, the old ones switch off
+        assertTrue(changed.upserted() > 1 && changed.upserted() < RULES / 5, "only the changed rows are written: " + changed);
+
+        Map<String, Integer> after = storedIds();
+        assertEquals(RULES, after.size());
+        assertFalse(after.containsKey("rule-0000"));
+        ids.forEach((name, id) -> {
+            if (after.containsKey(name)) {
+                assertEquals(id, after.get(name), "the existing rules keep their id");
+            }
+        });
+    }
+
+    @Test
+    void testReconcileCost(){
+        stateStore.reconcileRules(IP, snapshot(0));
+        long start = System.nanoTime();
+        int written = 0;
+        for (int round = 1; round <= ROUNDS; round++) {
+            written += stateStore.reconcileRules(IP, snapshot(round)).upserted();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("rules sync, %d rules x %d rounds: %.1f ms/round, %d rows written/round%n",
+                RULES, ROUNDS, elapsed / 1e6 / ROUNDS, written / ROUNDS);
+        assertTrue(written / ROUNDS <= RULES / 10, "the rows written must follow the changes, not the rule count");
+    }
+}
@@ -0,0 +1,115 @@
+package marius.server;
+
+import marius.server.data.AgentService;
+import marius.server.data.Server;
+import marius.server.repo.AgentStateStore;
+import marius.server.repo.ServerRepo;
+import marius.server.repo.ServiceRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the old delete-and-reinsert sync of the services with the set-based reconciliation.
+ * Needs the database, run with mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+@SpringBootTest
+public class ServiceReconcileBenchmarkTests {
+
+    private static final String IP = "10.250.0.1";
+    private static final int SERVICES = 500;
+    private static final int ROUNDS = 50;
+
+    @Autowired
+    private AgentStateStore stateStore;
+    @Autowired
+    private ServiceRepo serviceRepo;
+    @Autowired
+    private ServerRepo serverRepo;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp(){
+        if (serverRepo.findByIp(IP).isEmpty()) {
+            serverRepo.save(new Server(IP, false, "benchmark", "reconcile benchmark", 5000));
+        }
+        transactionTemplate.executeWithoutResult(status -> serviceRepo.deleteByIp(IP));
+    }
+
+    @AfterEach
+    void tearDown(){
+        transactionTemplate.executeWithoutResult(status -> serviceRepo.deleteByIp(IP));
+        serverRepo.findByIp(IP).ifPresent(serverRepo::delete);
+    }
+
+    /**
+     * The services reported by the agent in a round, every round a few of them change state
+     */
+    private static List<AgentService> snapshot(int round){
+        List<AgentService> services = new ArrayList<>(SERVICES);
+        for (int i = 0; i < SERVICES; i++) {
+            boolean state = (i % 20 == round % 20) != (i % 2 == 0);
+            services.add(new AgentService(IP, String.format("svc-%03d", i), "todo", 5000, i % 3 == 0, state));
+        }
+        return services;
+    }
+
+    @Test
+    void testReconcileKeepsIdsAndWritesOnlyChanges(){
+        AgentStateStore.Reconciliation first = stateStore.reconcileServices(IP, snapshot(0));
+        assertEquals(SERVICES, first.upserted());
+        Set<Integer> ids = serviceRepo.findAllByIp(IP).stream().map(AgentService::getId).collect(Collectors.toSet());
+
+        AgentStateStore.Reconciliation same = stateStore.reconcileServices(IP, snapshot(0));
+        assertEquals(0, same.upserted(), "an unchanged snapshot must not write");
+
+        List<AgentService> next = snapshot(1);
+        next.remove(next.size() - 1);
+        next.add(new AgentService(IP, "svc-new", "todo", 5000, false, true));
+        AgentStateStore.Reconciliation changed = stateStore.reconcileServices(IP, next);
+        assertEquals(1, changed.deleted());
+        assertTrue(changed.upserted() > 1 && changed.upserted() < SERVICES, "only the changed rows are written: " + changed);
+
+        List<AgentService> stored = serviceRepo.findAllByIp(IP);
+        assertEquals(SERVICES, stored.size());
+        long kept = stored.stream().filter(s -> ids.contains(s.getId())).count();
+        assertEquals(SERVICES - 1, kept, "the existing services keep their id");
+    }
+
+    @Test
+    void testCompareWithDeleteAndReinsert(){
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            List<AgentService> services = snapshot(round);
+            transactionTemplate.executeWithoutResult(status -> {
+                serviceRepo.deleteByIp(IP);
+                serviceRepo.saveAll(services);
+            });
+        }
+        long deleteAndReinsert = System.nanoTime() - start;
+
+        transactionTemplate.executeWithoutResult(status -> serviceRepo.deleteByIp(IP));
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            stateStore.reconcileServices(IP, snapshot(round));
+        }
+        long reconcile = System.nanoTime() - start;
+
+        System.out.printf("service sync, %d services x %d rounds: delete+saveAll %.1f ms/round, reconcile %.1f ms/round%n",
+                SERVICES, ROUNDS, deleteAndReinsert / 1e6 / ROUNDS, reconcile / 1e6 / ROUNDS);
+        assertEquals(SERVICES, serviceRepo.findAllByIp(IP).size());
+    }
+}
@@ -0,0 +1,269 @@
+package marius.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import marius.server.controller.CallerIdentity;
+import marius.server.controller.SessionTokenFilter;
+import marius.server.controller.SessionTokens;
+import marius.server.data.RoleEnum;
+import marius.server.data.User;
+import marius.server.repo.UserCache;
+import marius.server.repo.UserRepo;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class SessionTokensTests {
+
+    private static final String SECRET = Base64.getEncoder().encodeToString(
+            "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII));
+    private static final UserCache.CachedUser ADMIN =
+            new UserCache.CachedUser("admin@corvo.local", "admin", RoleEnum.SUPERVISOR);
+
+    private static SessionTokens tokens(){
+        return new SessionTokens(new ObjectMapper(), SECRET, 900, 28800);
+    }
+
+    private static UserCache userCache(UserRepo userRepo){
+        return new UserCache(userRepo, new SimpleMeterRegistry(), 60_000, 100);
+    }
+
+    private static UserCache noUsers(){
+        return userCache(mock(UserRepo.class));
+    }
+
+    @Test
+    void testIssuedTokenIsVerified(){
+        SessionTokens tokens = tokens();
+        Instant now = Instant.parse("2025-01-01T10:00:00Z");
+        SessionTokens.Token token = tokens.issue(ADMIN, now);
+        assertEquals(now.plusSeconds(900), token.expiresAt());
+
+        SessionTokens.Session session = tokens.verify(token.value(), now.plusSeconds(60));
+        assertNotNull(session);
+        assertEquals(ADMIN, session.user());
+        assertEquals(token.expiresAt(), session.expiresAt());
+
+        // same secret, another instance (e.g. after a restart)
+        assertNotNull(new SessionTokens(new ObjectMapper(), SECRET, 900, 28800).verify(token.value(), now));
+    }
+
+    @Test
+    void testExpiredTokenIsRefused(){
+        SessionTokens tokens = tokens();
+        Instant now = Instant.parse("2025-01-01T10:00:00Z");
+        String token = tokens.issue(ADMIN, now).value();
+        assertNull(tokens.verify(token, now.plusSeconds(900)));
+    }
+
+    @Test
+    void testTamperedTokenIsRefused(){
+        SessionTokens tokens = tokens();
+        Instant now = Instant.now();
+        String token = tokens.issue(new UserCache.CachedUser("w@corvo.local", "w", RoleEnum.WORKER), now).value();
+        String[] parts = token.split("\\.");
+
+        // a worker who makes himself supervisor
+        String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8)
+                .replace("WORKER", "SUPERVISOR");
+        String forged = parts[0] + "." + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + "." + parts[2];
+        assertNull(tokens.verify(forged, now));
+
+        // unsigned token
+        String none = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("{\"alg\":\"none\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+        assertNull(tokens.verify(none + "." + parts[1] + ".", now));
+
+        // signed with another key
+        String other = Base64.getEncoder().encodeToString(new byte[32]);
+        assertNull(new SessionTokens(new ObjectMapper(), other, 900, 28800).verify(token, now));
+
+        assertNull(tokens.verify("not a token", now));
+        assertNull(tokens.verify(parts[0] + ".%%%." + parts[2], now));
+    }
+
+    @Test
+    void testShortSecretIsRefused(){
+        String shortSecret = Base64.getEncoder().encodeToString(new byte[16]);
+        assertThrows(IllegalArgumentException.class, () -> new SessionTokens(new ObjectMapper(), shortSecret, 900, 28800));
+    }
+
+    @Test
+    void testFilterPutsTheSessionInTheRequest() throws Exception {
+        SessionTokens tokens = tokens();
+        UserRepo userRepo = mock(UserRepo.class);
+        CallerIdentity identity = new CallerIdentity(userCache(userRepo));
+        SessionTokenFilter filter = new SessionTokenFilter(tokens, userCache(userRepo), false, "/authUser");
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/getAllServers");
+        request.addHeader("Authorization", "Bearer " + tokens.issue(ADMIN).value());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, response, chain);
+
+        assertSame(request, chain.getRequest(), "the request goes on to the handler");
+        assertEquals(ADMIN, identity.byEmail(request, "admin@corvo.local").orElseThrow());
+        assertEquals(ADMIN, identity.byUsername(request, "admin").orElseThrow());
+        // the token is the identity: claiming another user does not work
+        assertTrue(identity.byUsername(request, "someone.else").isEmpty());
+        verifyNoInteractions(userRepo);
+        // fresh token, no renewal
+        assertNull(response.getHeader(SessionTokenFilter.TOKEN_HEADER));
+    }
+
+    @Test
+    void testFilterRenewsATokenCloseToExpire() throws Exception {
+        SessionTokens tokens = tokens();
+        UserRepo userRepo = mock(UserRepo.class);
+        when(userRepo.findUserByEmail("admin@corvo.local"))
+                .thenReturn(Optional.of(new User("admin", "admin@corvo.local", "hash", RoleEnum.SUPERVISOR)));
+        SessionTokenFilter filter = new SessionTokenFilter(tokens, userCache(userRepo), false, "/authUser");
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/getAllServers");
+        request.addHeader("Authorization", "Bearer " + tokens.issue(ADMIN, Instant.now().minusSeconds(600)).value());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+
+        String renewed = response.getHeader(SessionTokenFilter.TOKEN_HEADER);
+        assertNotNull(renewed);
+        assertEquals(ADMIN, tokens.verify(renewed).user());
+    }
+
+    @Test
+    void testRenewalSeesARoleChangeOrADeletedUser() throws Exception {
+        SessionTokens tokens = tokens();
+        UserRepo userRepo = mock(UserRepo.class);
+        // demoted after the login
+        when(userRepo.findUserByEmail("admin@corvo.local"))
+                .thenReturn(Optional.of(new User("admin", "admin@corvo.local", "hash", RoleEnum.WORKER)));
+        SessionTokenFilter filter = new SessionTokenFilter(tokens, userCache(userRepo), false, "/authUser");
+        String old = tokens.issue(ADMIN, Instant.now().minusSeconds(600)).value();
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/getAllServers");
+        request.addHeader("Authorization", "Bearer " + old);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        assertEquals(RoleEnum.WORKER, CallerIdentity.session(request).user().role(), "the request already has the new role");
+        assertEquals(RoleEnum.WORKER, tokens.verify(response.getHeader(SessionTokenFilter.TOKEN_HEADER)).user().role());
+
+        // deleted after the login
+        SessionTokenFilter deleted = new SessionTokenFilter(tokens, noUsers(), false, "/authUser");
+        request = new MockHttpServletRequest("GET", "/getAllServers");
+        request.addHeader("Authorization", "Bearer " + old);
+        response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        deleted.doFilter(request, response, chain);
+        assertEquals(401, response.getStatus());
+        assertNull(chain.getRequest());
+        assertNull(response.getHeader(SessionTokenFilter.TOKEN_HEADER));
+    }
+
+    @Test
+    void testRenewedTokenDoesNotOutliveTheSession(){
+        // tokens of 15 minutes, sessions of one hour
+        SessionTokens tokens = new SessionTokens(new ObjectMapper(), SECRET, 900, 3600);
+        Instant login = Instant.parse("2025-01-01T10:00:00Z");
+        SessionTokens.Session session = tokens.verify(tokens.issue(ADMIN, login).value(), login);
+        assertEquals(login, session.authenticatedAt());
+
+        // an active client renews every ten minutes
+        Instant now = login;
+        for (int i = 0; i < 20; i++) {
+            now = now.plusSeconds(600);
+            SessionTokens.Session current = tokens.verify(currentToken(tokens, session, now), now);
+            if (current == null) {
+                break;
+            }
+            assertEquals(login, current.authenticatedAt(), "the renewals keep the time of the login");
+            assertFalse(current.expiresAt().isAfter(login.plusSeconds(3600)));
+            session = current;
+        }
+        assertFalse(now.isAfter(login.plusSeconds(3600)), "the session must end after one hour");
+        assertNull(tokens.renew(session, ADMIN, login.plusSeconds(3500)), "no renewal at the end of the session");
+        assertNull(tokens.verify(tokens.issue(ADMIN, login).value(), login.plusSeconds(3600)));
+    }
+
+    private static String currentToken(SessionTokens tokens, SessionTokens.Session session, Instant now){
+        SessionTokens.Token renewed = tokens.renew(session, session.user(), now);
+        return renewed == null ? null : renewed.value();
+    }
+
+    @Test
+    void testFilterRefusesBadOrMissingTokens() throws Exception {
+        SessionTokens tokens = tokens();
+        SessionTokenFilter optional = new SessionTokenFilter(tokens, noUsers(), false, "/authUser");
+        SessionTokenFilter required = new SessionTokenFilter(tokens, noUsers(), true, "/authUser,/actuator/**");
+
+        // a bad token is refused even when the token is optional
+        MockHttpServletRequest bad = new MockHttpServletRequest("GET", "/getAllServers");
+        bad.addHeader("Authorization", "Bearer abc.def.ghi");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        optional.doFilter(bad, response, chain);
+        assertEquals(401, response.getStatus());
+        assertNull(chain.getRequest());
+
+        // no token: the handler identifies the caller by the username it sends
+        UserRepo userRepo = mock(UserRepo.class);
+        CallerIdentity identity = new CallerIdentity(userCache(userRepo));
+        MockHttpServletRequest legacy = new MockHttpServletRequest("GET", "/getAllServers");
+        chain = new MockFilterChain();
+        optional.doFilter(legacy, new MockHttpServletResponse(), chain);
+        assertNotNull(chain.getRequest());
+        identity.byUsername(legacy, "admin");
+        verify(userRepo).findUserByUsername(anyString());
+
+        response = new MockHttpServletResponse();
+        chain = new MockFilterChain();
+        required.doFilter(new MockHttpServletRequest("GET", "/getAllServers"), response, chain);
+        assertEquals(401, response.getStatus());
+        assertNull(chain.getRequest());
+
+        for (String path : new String[]{"/authUser", "/actuator/health"}) {
+            chain = new MockFilterChain();
+            required.doFilter(new MockHttpServletRequest("POST", path), new MockHttpServletResponse(), chain);
+            assertNotNull(chain.getRequest(), path + " is public");
+        }
+        chain = new MockFilterChain();
+        required.doFilter(new MockHttpServletRequest("OPTIONS", "/getAllServers"), new MockHttpServletResponse(), chain);
+        assertNotNull(chain.getRequest(), "the preflight has no token");
+    }
+
+    @Test
+    void testTokenlessRequestIsRefusedByDefault() throws Exception {
+        UserRepo userRepo = mock(UserRepo.class);
+        SessionTokenFilter filter = new SessionTokenFilter(tokens(), userCache(userRepo), true,
+                "/authUser,/addUser,/ping1,/isEmailApproved,/actuator/**");
+
+        // claiming a username without a token does not reach the handler
+        MockHttpServletRequest claim = new MockHttpServletRequest("GET", "/getUserLogs");
+        claim.setParameter("username", "admin");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(claim, response, chain);
+        assertEquals(401, response.getStatus());
+        assertEquals("Bearer", response.getHeader("WWW-Authenticate"));
+        assertNull(chain.getRequest());
+        verifyNoInteractions(userRepo);
+
+        // the login and the registration of an approved email come before the token
+        for (String path : new String[]{"/authUser", "/addUser", "/isEmailApproved"}) {
+            chain = new MockFilterChain();
+            filter.doFilter(new MockHttpServletRequest("POST", path), new MockHttpServletResponse(), chain);
+            assertNotNull(chain.getRequest(), path + " is public");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package marius.server;
+
+import marius.server.client.StaleWhileRevalidateCache;
+import marius.server.client.StaleWhileRevalidateCache.Snapshot;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StaleWhileRevalidateCacheTests {
+
+    private final MutableClock clock = new MutableClock();
+    private final StaleWhileRevalidateCache<String> cache =
+            new StaleWhileRevalidateCache<>("test", Duration.ofSeconds(10), Duration.ofSeconds(60), clock);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private Supplier<CompletableFuture<String>> loader(CompletableFuture<String> result) {
+        return () -> {
+            loads.incrementAndGet();
+            return result;
+        };
+    }
+
+    @Test
+    void testFreshValueIsServedWithoutLoading(){
+        cache.put("a", "v1");
+        Instant writtenAt = clock.instant();
+        clock.advance(Duration.ofSeconds(10));
+        Snapshot<String> snapshot = cache.get("a", loader(CompletableFuture.completedFuture("v2"))).join();
+        assertEquals("v1", snapshot.value());
+        assertEquals(writtenAt, snapshot.asOf());
+        assertFalse(snapshot.stale());
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    void testStaleValueIsServedWhileASingleRefreshRuns(){
+        cache.put("a", "v1");
+        clock.advance(Duration.ofSeconds(11));
+        CompletableFuture<String> refresh = new CompletableFuture<>();
+        Snapshot<String> first = cache.get("a", loader(refresh)).join();
+        Snapshot<String> second = cache.get("a", loader(refresh)).join();
+        assertEquals("v1", first.value());
+        assertTrue(first.stale());
+        assertEquals("v1", second.value());
+        assertEquals(1, loads.get(), "a refresh already running must not be repeated");
+
+        refresh.complete("v2");
+        Snapshot<String> refreshed = cache.get("a", loader(CompletableFuture.completedFuture("v3"))).join();
+        assertEquals("v2", refreshed.value());
+        assertFalse(refreshed.stale());
+    }
+
+    @Test
+    void testFailedRefreshKeepsTheStaleValue(){
+        cache.put("a", "v1");
+        clock.advance(Duration.ofSeconds(20));
+        cache.get("a", loader(CompletableFuture.failedFuture(new IllegalStateException("down")))).join();
+        assertEquals("v1", cache.peek("a").value());
+        cache.get("a", loader(CompletableFuture.completedFuture("v2"))).join();
+        assertEquals(2, loads.get(), "after a failure the next read tries again");
+    }
+
+    @Test
+    void testTooOldOrMissingValueWaitsForTheLoader(){
+        assertEquals("v1", cache.get("a", loader(CompletableFuture.completedFuture("v1"))).join().value());
+        clock.advance(Duration.ofSeconds(71));
+        Snapshot<String> snapshot = cache.get("a", loader(CompletableFuture.completedFuture("v2"))).join();
+        assertEquals("v2", snapshot.value());
+        assertFalse(snapshot.stale());
+
+        CompletableFuture<Snapshot<String>> failed = cache.get("b", loader(CompletableFuture.failedFuture(new IllegalStateException("down"))));
+        assertTrue(failed.isCompletedExceptionally());
+    }
+
+    @Test
+    void testEvictedKeyIsNotBroughtBackByARefresh(){
+        cache.put("a", "v1");
+        clock.advance(Duration.ofSeconds(11));
+        CompletableFuture<String> refresh = new CompletableFuture<>();
+        cache.get("a", loader(refresh));
+        cache.evict("a");
+        refresh.complete("v2");
+        assertNull(cache.peek("a"));
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now = Instant.parse("2025-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
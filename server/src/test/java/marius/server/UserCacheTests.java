@@ -0,0 +1,137 @@
+package marius.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import marius.server.data.RoleEnum;
+import marius.server.data.User;
+import marius.server.repo.UserCache;
+import marius.server.repo.UserRepo;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UserCacheTests {
+
+    private static final User ADMIN = new User("admin", "admin@corvo.local", "hash", RoleEnum.SUPERVISOR);
+
+    private static UserRepo repoWith(User user){
+        UserRepo repo = mock(UserRepo.class);
+        when(repo.findUserByUsername(anyString())).thenReturn(Optional.empty());
+        when(repo.findUserByEmail(anyString())).thenReturn(Optional.empty());
+        when(repo.findUserByUsername(user.getUsername())).thenReturn(Optional.of(user));
+        when(repo.findUserByEmail(user.getEmail())).thenReturn(Optional.of(user));
+        return repo;
+    }
+
+    @Test
+    void testLookupsAreServedFromTheCache(){
+        UserRepo repo = repoWith(ADMIN);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        UserCache cache = new UserCache(repo, registry, 60_000, 100);
+
+        for (int i = 0; i < 10; i++) {
+            UserCache.CachedUser user = cache.findByUsername("admin").orElseThrow();
+            assertEquals("admin@corvo.local", user.email());
+            assertEquals(RoleEnum.SUPERVISOR, user.role());
+        }
+        // the user read by username is found also by email
+        assertTrue(cache.findByEmail("admin@corvo.local").isPresent());
+        assertTrue(cache.existsByUsername("admin"));
+
+        verify(repo, times(1)).findUserByUsername("admin");
+        verify(repo, never()).findUserByEmail(anyString());
+        verify(repo, never()).existsByUsername(anyString());
+        assertEquals(1, registry.get("corvo.user.cache.requests").tag("result", "miss").counter().count());
+        assertEquals(11, registry.get("corvo.user.cache.requests").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void testUnknownUsersAreNotCached(){
+        UserRepo repo = repoWith(ADMIN);
+        UserCache cache = new UserCache(repo, new SimpleMeterRegistry(), 60_000, 100);
+
+        assertFalse(cache.existsByUsername("ghost"));
+        assertFalse(cache.existsByUsername("ghost"));
+        verify(repo, times(2)).findUserByUsername("ghost");
+        assertEquals(0, cache.size());
+        assertTrue(cache.findByEmail(null).isEmpty());
+    }
+
+    @Test
+    void testInvalidationReadsTheUserAgain(){
+        User worker = new User("worker", "worker@corvo.local", "hash", RoleEnum.WORKER);
+        UserRepo repo = repoWith(worker);
+        UserCache cache = new UserCache(repo, new SimpleMeterRegistry(), 60_000, 100);
+        assertEquals(RoleEnum.WORKER, cache.findByUsername("worker").orElseThrow().role());
+
+        // updateRoleUser: the role changes on the database, then the cache is invalidated
+        User promoted = new User("worker", "worker@corvo.local", "hash", RoleEnum.SUPERVISOR);
+        when(repo.findUserByUsername("worker")).thenReturn(Optional.of(promoted));
+        assertEquals(RoleEnum.WORKER, cache.findByUsername("worker").orElseThrow().role());
+        cache.invalidate("worker@corvo.local");
+        assertEquals(RoleEnum.SUPERVISOR, cache.findByUsername("worker").orElseThrow().role());
+
+        // deleteUser
+        when(repo.findUserByUsername("worker")).thenReturn(Optional.empty());
+        cache.invalidate("worker@corvo.local");
+        assertFalse(cache.existsByUsername("worker"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testEntriesExpireAfterTheTtl() throws InterruptedException {
+        UserRepo repo = repoWith(ADMIN);
+        UserCache cache = new UserCache(repo, new SimpleMeterRegistry(), 50, 100);
+        cache.findByEmail("admin@corvo.local");
+        cache.findByEmail("admin@corvo.local");
+        verify(repo, times(1)).findUserByEmail("admin@corvo.local");
+
+        Thread.sleep(100);
+        cache.findByEmail("admin@corvo.local");
+        verify(repo, times(2)).findUserByEmail("admin@corvo.local");
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted(){
+        UserRepo repo = mock(UserRepo.class);
+        for (int i = 0; i < 3; i++) {
+            User user = new User("user" + i, "user" + i + "@corvo.local", "hash", RoleEnum.WORKER);
+            when(repo.findUserByEmail(user.getEmail())).thenReturn(Optional.of(user));
+        }
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        UserCache cache = new UserCache(repo, registry, 60_000, 2);
+        cache.findByEmail("user0@corvo.local");
+        cache.findByEmail("user1@corvo.local");
+        // user0 is used again, so user1 is the least recently used
+        cache.findByEmail("user0@corvo.local");
+        cache.findByEmail("user2@corvo.local");
+        assertEquals(2, cache.size());
+        assertEquals(1, registry.get("corvo.user.cache.evictions").counter().count());
+
+        cache.findByEmail("user0@corvo.local");
+        verify(repo, times(1)).findUserByEmail("user0@corvo.local");
+        cache.findByEmail("user1@corvo.local");
+        verify(repo, times(2)).findUserByEmail("user1@corvo.local");
+    }
+
+    @Test
+    void testDisabledCacheAlwaysReadsTheRepo(){
+        UserRepo repo = repoWith(ADMIN);
+        when(repo.existsByUsername("admin")).thenReturn(true);
+        UserCache cache = new UserCache(repo, new SimpleMeterRegistry(), 0, 100);
+        assertFalse(cache.isEnabled());
+        cache.findByUsername("admin");
+        cache.findByUsername("admin");
+        assertTrue(cache.existsByUsername("admin"));
+        verify(repo, times(2)).findUserByUsername("admin");
+        verify(repo, times(1)).existsByUsername("admin");
+        assertEquals(0, cache.size());
+    }
+}